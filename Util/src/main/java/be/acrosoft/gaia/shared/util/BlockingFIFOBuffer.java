@@ -0,0 +1,627 @@
+/**
+ * Copyright Acropolis Software SPRL (https://www.acrosoft.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.acrosoft.gaia.shared.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe wrapper around a {@link FIFOBuffer}, where producers wait for free space and consumers wait for
+ * available bytes instead of getting a BufferOverflowException or a BufferUnderflowException. It can be used
+ * through stream and channel adapters, so that a socket reader can feed a parser running in another thread.<br/>
+ * Producers can also be throttled from the outside through high/low watermark callbacks: the high watermark
+ * callback is called when the size of the buffer reaches the high watermark, and the low watermark callback is
+ * called when it drops back to the low watermark. Callbacks are called from the thread that crossed the
+ * watermark, after the buffer lock has been released and before that thread waits for the buffer. They are never
+ * called concurrently and always alternate, starting with the high watermark callback: a crossing that is undone
+ * before its callback could be called is not reported.<br/>
+ * Timeouts are expressed in ms, -1 meaning that the call waits as long as needed.
+ */
+public class BlockingFIFOBuffer
+{
+  private final FIFOBuffer _buffer;
+  private final ReentrantLock _lock;
+  private final Condition _notEmpty;
+  private final Condition _notFull;
+  private boolean _inputClosed;
+  private boolean _outputClosed;
+  private volatile long _readTimeout;
+  private volatile long _writeTimeout;
+  private int _lowWatermark;
+  private int _highWatermark;
+  private Runnable _onHigh;
+  private Runnable _onLow;
+  private boolean _aboveHigh;
+  /**
+   * Lock serializing the watermark callbacks, always taken before the buffer lock.
+   */
+  private final ReentrantLock _callbackLock;
+  /**
+   * Whether the last callback called was the high watermark one. Guarded by _callbackLock.
+   */
+  private boolean _notifiedHigh;
+  
+  /**
+   * Create a new BlockingFIFOBuffer.
+   * @param capacity capacity.
+   */
+  public BlockingFIFOBuffer(int capacity)
+  {
+    this(new FIFOBuffer(capacity));
+  }
+  
+  /**
+   * Create a new BlockingFIFOBuffer. The given buffer must not be used directly anymore.
+   * @param buffer underlying buffer.
+   */
+  public BlockingFIFOBuffer(FIFOBuffer buffer)
+  {
+    _buffer=buffer;
+    _lock=new ReentrantLock();
+    _notEmpty=_lock.newCondition();
+    _notFull=_lock.newCondition();
+    _inputClosed=false;
+    _outputClosed=false;
+    _readTimeout=-1;
+    _writeTimeout=-1;
+    _lowWatermark=0;
+    _highWatermark=Integer.MAX_VALUE;
+    _onHigh=null;
+    _onLow=null;
+    _aboveHigh=false;
+    _callbackLock=new ReentrantLock();
+    _notifiedHigh=false;
+  }
+  
+  /**
+   * Set the watermark callbacks.
+   * @param low low watermark, in bytes.
+   * @param high high watermark, in bytes. Must be greater than low.
+   * @param onHigh callback called when the size reaches the high watermark, or null.
+   * @param onLow callback called when the size drops back to the low watermark, or null.
+   */
+  public void setWatermarks(int low,int high,Runnable onHigh,Runnable onLow)
+  {
+    if(low<0 || high<=low) throw new IllegalArgumentException(low+"/"+high); //$NON-NLS-1$
+    _callbackLock.lock();
+    try
+    {
+      _lock.lock();
+      try
+      {
+        _lowWatermark=low;
+        _highWatermark=high;
+        _onHigh=onHigh;
+        _onLow=onLow;
+        _aboveHigh=_buffer.getSize()>=high;
+        _notifiedHigh=_aboveHigh;
+      }
+      finally
+      {
+        _lock.unlock();
+      }
+    }
+    finally
+    {
+      _callbackLock.unlock();
+    }
+  }
+  
+  /**
+   * Set the timeout of the stream and channel adapters reads. When it elapses before any byte is available, an
+   * InterruptedIOException is thrown.
+   * @param timeout timeout, in ms, or -1 to wait as long as needed.
+   */
+  public void setReadTimeout(long timeout)
+  {
+    _readTimeout=timeout;
+  }
+  
+  /**
+   * Set the timeout of the stream and channel adapters writes. When it elapses before all bytes have been
+   * written, an InterruptedIOException is thrown.
+   * @param timeout timeout, in ms, or -1 to wait as long as needed.
+   */
+  public void setWriteTimeout(long timeout)
+  {
+    _writeTimeout=timeout;
+  }
+  
+  /**
+   * Wait on the given condition. Must be called from the lock.
+   * @param condition condition.
+   * @param deadline deadline, from {@link System#nanoTime()}, or -1.
+   * @return false if the deadline has passed.
+   * @throws InterruptedIOException if the thread is interrupted.
+   */
+  private static boolean await(Condition condition,long deadline) throws InterruptedIOException
+  {
+    try
+    {
+      if(deadline==-1)
+      {
+        condition.await();
+        return true;
+      }
+      long remaining=deadline-System.nanoTime();
+      if(remaining<=0) return false;
+      condition.awaitNanos(remaining);
+      return true;
+    }
+    catch(InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+  
+  private static long deadline(long timeout)
+  {
+    if(timeout<0) return -1;
+    return System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(timeout);
+  }
+  
+  /**
+   * Check whether a watermark has been crossed. Must be called from the lock.
+   * @return true if a watermark has been crossed, in which case notifyWatermarks must be called once the lock has
+   * been released.
+   */
+  private boolean checkWatermarks()
+  {
+    int size=_buffer.getSize();
+    if(!_aboveHigh && size>=_highWatermark)
+    {
+      _aboveHigh=true;
+      return true;
+    }
+    if(_aboveHigh && size<=_lowWatermark)
+    {
+      _aboveHigh=false;
+      return true;
+    }
+    return false;
+  }
+  
+  /**
+   * Call the watermark callbacks until the observer has been told about the current state. Must not be called
+   * from the buffer lock. The state is read again from the callback lock, so that a thread that crossed a
+   * watermark never reports it after another thread has reported the opposite crossing.
+   */
+  private void notifyWatermarks()
+  {
+    _callbackLock.lock();
+    try
+    {
+      while(true)
+      {
+        boolean above;
+        Runnable callback;
+        _lock.lock();
+        try
+        {
+          above=_aboveHigh;
+          callback=above?_onHigh:_onLow;
+        }
+        finally
+        {
+          _lock.unlock();
+        }
+        if(above==_notifiedHigh) return;
+        _notifiedHigh=above;
+        if(callback!=null)
+          callback.run();
+      }
+    }
+    finally
+    {
+      _callbackLock.unlock();
+    }
+  }
+  
+  /**
+   * Read at most size bytes, waiting for at least one byte to be available.
+   * @param array array to write bytes into.
+   * @param offset first byte of the array to be modified.
+   * @param size maximum number of bytes to read.
+   * @param timeout timeout, in ms, or -1 to wait as long as needed.
+   * @return number of bytes read, 0 if the timeout elapsed, or -1 if the output has been closed and all the
+   * bytes have been read.
+   * @throws IOException if the input has been closed, or if the thread is interrupted.
+   */
+  public int read(byte[] array,int offset,int size,long timeout) throws IOException
+  {
+    if(size==0) return 0;
+    boolean crossed;
+    int ans;
+    _lock.lock();
+    try
+    {
+      long deadline=deadline(timeout);
+      while(true)
+      {
+        if(_inputClosed) throw new ClosedChannelException();
+        if(_buffer.getSize()>0) break;
+        if(_outputClosed) return -1;
+        if(!await(_notEmpty,deadline)) return 0;
+      }
+      ans=Math.min(size,_buffer.getSize());
+      _buffer.read(array,offset,ans);
+      _notFull.signalAll();
+      crossed=checkWatermarks();
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+    if(crossed)
+      notifyWatermarks();
+    return ans;
+  }
+  
+  /**
+   * Read at most dst.remaining() bytes, waiting for at least one byte to be available.
+   * @param dst buffer to write bytes into.
+   * @param timeout timeout, in ms, or -1 to wait as long as needed.
+   * @return number of bytes read, 0 if the timeout elapsed, or -1 if the output has been closed and all the
+   * bytes have been read.
+   * @throws IOException if the input has been closed, or if the thread is interrupted.
+   */
+  public int read(ByteBuffer dst,long timeout) throws IOException
+  {
+    if(!dst.hasRemaining()) return 0;
+    boolean crossed;
+    int ans;
+    _lock.lock();
+    try
+    {
+      long deadline=deadline(timeout);
+      while(true)
+      {
+        if(_inputClosed) throw new ClosedChannelException();
+        if(_buffer.getSize()>0) break;
+        if(_outputClosed) return -1;
+        if(!await(_notEmpty,deadline)) return 0;
+      }
+      ans=Math.min(dst.remaining(),_buffer.getSize());
+      for(ByteBuffer view:_buffer.peek(ans))
+        dst.put(view);
+      _buffer.remove(ans);
+      _notFull.signalAll();
+      crossed=checkWatermarks();
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+    if(crossed)
+      notifyWatermarks();
+    return ans;
+  }
+  
+  /**
+   * Write size bytes, waiting for free space as needed.
+   * @param array array.
+   * @param offset first element of the array to write.
+   * @param size number of bytes to write.
+   * @param timeout timeout, in ms, or -1 to wait as long as needed.
+   * @return number of bytes written, lower than size if the timeout elapsed.
+   * @throws IOException if the buffer has been closed, or if the thread is interrupted.
+   */
+  public int write(byte[] array,int offset,int size,long timeout) throws IOException
+  {
+    return write(ByteBuffer.wrap(array,offset,size),timeout);
+  }
+  
+  /**
+   * Write src.remaining() bytes, waiting for free space as needed.
+   * @param src buffer to write.
+   * @param timeout timeout, in ms, or -1 to wait as long as needed.
+   * @return number of bytes written, lower than the initial src.remaining() if the timeout elapsed.
+   * @throws IOException if the buffer has been closed, or if the thread is interrupted.
+   */
+  public int write(ByteBuffer src,long timeout) throws IOException
+  {
+    int written=0;
+    boolean crossed=false;
+    _lock.lock();
+    try
+    {
+      long deadline=deadline(timeout);
+      while(src.hasRemaining())
+      {
+        if(_inputClosed || _outputClosed) throw new ClosedChannelException();
+        int free=_buffer.getFreeSpace();
+        if(free==0)
+        {
+          if(crossed)
+          {
+            //Report the crossing before waiting, readers could otherwise report the opposite one first.
+            crossed=false;
+            _lock.unlock();
+            try
+            {
+              notifyWatermarks();
+            }
+            finally
+            {
+              _lock.lock();
+            }
+            continue;
+          }
+          if(!await(_notFull,deadline)) break;
+          continue;
+        }
+        int size=Math.min(free,src.remaining());
+        int limit=src.limit();
+        src.limit(src.position()+size);
+        _buffer.write(src);
+        src.limit(limit);
+        written+=size;
+        _notEmpty.signalAll();
+        if(checkWatermarks())
+          crossed=true;
+      }
+    }
+    finally
+    {
+      _lock.unlock();
+      if(crossed)
+        notifyWatermarks();
+    }
+    return written;
+  }
+  
+  /**
+   * Signal that no more bytes will be written. Readers get the remaining bytes, then an end-of-stream.
+   */
+  public void closeOutput()
+  {
+    _lock.lock();
+    try
+    {
+      _outputClosed=true;
+      _notEmpty.signalAll();
+      _notFull.signalAll();
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+  
+  /**
+   * Signal that no more bytes will be read. Pending bytes are discarded, and writers get an IOException.
+   */
+  public void closeInput()
+  {
+    _lock.lock();
+    try
+    {
+      _inputClosed=true;
+      _buffer.clear();
+      _notEmpty.signalAll();
+      _notFull.signalAll();
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+  
+  /**
+   * Get the current buffer size.
+   * @return number of bytes that can be read from the buffer.
+   */
+  public int getSize()
+  {
+    _lock.lock();
+    try
+    {
+      return _buffer.getSize();
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+  
+  /**
+   * Get the current free space.
+   * @return number of bytes that can be written to the buffer.
+   */
+  public int getFreeSpace()
+  {
+    _lock.lock();
+    try
+    {
+      return _buffer.getFreeSpace();
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+  
+  /**
+   * Get the buffer capacity.
+   * @return capacity.
+   */
+  public int getCapacity()
+  {
+    return _buffer.getCapacity();
+  }
+  
+  /**
+   * Get an input stream reading from this buffer. Reads wait for at most the read timeout, closing the stream
+   * closes the input.
+   * @return input stream.
+   */
+  public InputStream getInputStream()
+  {
+    return new InputStream()
+    {
+      @Override
+      public int read() throws IOException
+      {
+        byte[] b=new byte[1];
+        int read=read(b,0,1);
+        return read<0?-1:b[0]&0xFF;
+      }
+      
+      @Override
+      public int read(byte[] b,int off,int len) throws IOException
+      {
+        if(len==0) return 0;
+        int read=BlockingFIFOBuffer.this.read(b,off,len,_readTimeout);
+        if(read==0) throw new InterruptedIOException("Read timed out"); //$NON-NLS-1$
+        return read;
+      }
+      
+      @Override
+      public int available()
+      {
+        return getSize();
+      }
+      
+      @Override
+      public void close()
+      {
+        closeInput();
+      }
+    };
+  }
+  
+  /**
+   * Get an output stream writing to this buffer. Writes wait for at most the write timeout, closing the stream
+   * closes the output.
+   * @return output stream.
+   */
+  public OutputStream getOutputStream()
+  {
+    return new OutputStream()
+    {
+      @Override
+      public void write(int b) throws IOException
+      {
+        write(new byte[] {(byte)b},0,1);
+      }
+      
+      @Override
+      public void write(byte[] b,int off,int len) throws IOException
+      {
+        int written=BlockingFIFOBuffer.this.write(b,off,len,_writeTimeout);
+        if(written<len)
+        {
+          InterruptedIOException ex=new InterruptedIOException("Write timed out"); //$NON-NLS-1$
+          ex.bytesTransferred=written;
+          throw ex;
+        }
+      }
+      
+      @Override
+      public void close()
+      {
+        closeOutput();
+      }
+    };
+  }
+  
+  /**
+   * Get a channel reading from this buffer. Reads wait for at most the read timeout, closing the channel
+   * closes the input.
+   * @return readable channel.
+   */
+  public ReadableByteChannel getReadableChannel()
+  {
+    return new ReadableByteChannel()
+    {
+      private volatile boolean _open=true;
+      
+      @Override
+      public int read(ByteBuffer dst) throws IOException
+      {
+        if(!_open) throw new ClosedChannelException();
+        if(!dst.hasRemaining()) return 0;
+        int read=BlockingFIFOBuffer.this.read(dst,_readTimeout);
+        if(read==0) throw new InterruptedIOException("Read timed out"); //$NON-NLS-1$
+        return read;
+      }
+      
+      @Override
+      public boolean isOpen()
+      {
+        return _open;
+      }
+      
+      @Override
+      public void close()
+      {
+        _open=false;
+        closeInput();
+      }
+    };
+  }
+  
+  /**
+   * Get a channel writing to this buffer. Writes wait for at most the write timeout, closing the channel
+   * closes the output.
+   * @return writable channel.
+   */
+  public WritableByteChannel getWritableChannel()
+  {
+    return new WritableByteChannel()
+    {
+      private volatile boolean _open=true;
+      
+      @Override
+      public int write(ByteBuffer src) throws IOException
+      {
+        if(!_open) throw new ClosedChannelException();
+        int size=src.remaining();
+        int written=BlockingFIFOBuffer.this.write(src,_writeTimeout);
+        if(written<size)
+        {
+          InterruptedIOException ex=new InterruptedIOException("Write timed out"); //$NON-NLS-1$
+          ex.bytesTransferred=written;
+          throw ex;
+        }
+        return written;
+      }
+      
+      @Override
+      public boolean isOpen()
+      {
+        return _open;
+      }
+      
+      @Override
+      public void close()
+      {
+        _open=false;
+        closeOutput();
+      }
+    };
+  }
+}
@@ -16,13 +16,23 @@
 package be.acrosoft.gaia.shared.util;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The Bus implements the asynchronous Query/Answer paradigm. FIFO is not guaranteed.
- * All methods of the Bus class are multi-thread safe.
+ * All methods of the Bus class are multi-thread safe.<br/>
+ * Requests go through a lock-free queue, a semaphore counting the queued requests so that each request wakes up
+ * a single waiting server. Each request has its own completion slot, so that a response only wakes up the
+ * callers waiting for that very request.
  */
 public class Bus
 {
@@ -38,53 +48,59 @@ public class Bus
     /**
      * Token.
      */
-    public Token token;
+    public final Token token;
     /**
      * Request.
      */
-    public Object request;
+    public final Object request;
     /**
-     * Whether response is available.
+     * Whether response is available. Set while holding the item monitor.
      */
-    public boolean hasResponse;
+    public volatile boolean hasResponse;
     /**
-     * Response.
+     * Response, published by hasResponse.
      */
     public Object response;
     /**
      * Sync response callback
      */
-    public Runnable callBack;
+    public final Runnable callBack;
+    /**
+     * Async response, or null if the response is to be got through getResponse.
+     */
+    public final CompletableFuture<Object> future;
     
     /**
      * Create a new BusItem.
      * @param atoken token.
      * @param arequest request.
      * @param acallBack callback.
+     * @param afuture async response.
      */
-    public BusItem(Token atoken,Object arequest,Runnable acallBack)
+    public BusItem(Token atoken,Object arequest,Runnable acallBack,CompletableFuture<Object> afuture)
     {
       token=atoken;
       request=arequest;
       callBack=acallBack;
+      future=afuture;
       hasResponse=false;
       response=null;
       
     }
   }
   
-  private List<BusItem> _pendingItems;
+  private Queue<BusItem> _pendingItems;
+  private Semaphore _pendingCount;
   private Map<Token,BusItem> _items;
-  private Object _lock;
   
   /**
    * Create a new Bus.
    */
   public Bus()
   {
-    _pendingItems=new ArrayList<BusItem>();
-    _items=new HashMap<Token,BusItem>();
-    _lock=new Object();
+    _pendingItems=new ConcurrentLinkedQueue<BusItem>();
+    _pendingCount=new Semaphore(0);
+    _items=new ConcurrentHashMap<Token,BusItem>();
   }
   
   /**
@@ -109,16 +125,30 @@ public class Bus
   public Token sendRequest(Object request,Runnable callBack)
   {
     Token token=new Token();
-    BusItem item=new BusItem(token,request,callBack);
-    synchronized(_lock)
-    {
-      _pendingItems.add(item);
-      _items.put(token,item);
-      _lock.notify();
-    }
+    post(new BusItem(token,request,callBack,null));
     return token;
   }
   
+  /**
+   * Send a request, without having to wait for its response.
+   * @param request request to send.
+   * @return stage completed with the response. Dependent stages that are not async are run synchronously from
+   * the thread calling sendResponse, just like the callback of sendRequest(Object,Runnable).
+   */
+  public CompletionStage<Object> sendRequestAsync(Object request)
+  {
+    CompletableFuture<Object> future=new CompletableFuture<Object>();
+    post(new BusItem(new Token(),request,null,future));
+    return future;
+  }
+  
+  private void post(BusItem item)
+  {
+    _items.put(item.token,item);
+    _pendingItems.add(item);
+    _pendingCount.release();
+  }
+  
   /**
    * Get the response of a previously sent request.
    * @param token token.
@@ -133,30 +163,50 @@ public class Bus
    */
   public Object getResponse(Token token,long timeout) throws InterruptedException
   {
-    synchronized(_lock)
+    BusItem item=_items.get(token);
+    if(item==null) throw new GaiaRuntimeException(new IllegalArgumentException());
+    
+    if(!item.hasResponse)
     {
-      BusItem item=_items.get(token);
-      if(item==null) throw new GaiaRuntimeException(new IllegalArgumentException());
-      
-      if(timeout<0)
-      {
-        if(!item.hasResponse) return null;
-      }
-      else if(timeout>0)
+      if(timeout<0) return null;
+      synchronized(item)
       {
-        if(!item.hasResponse)
-          _lock.wait(timeout);
-        if(!item.hasResponse) return null;
+        if(timeout>0)
+        {
+          long deadline=System.currentTimeMillis()+timeout;
+          long remaining=timeout;
+          while(!item.hasResponse && remaining>0)
+          {
+            item.wait(remaining);
+            remaining=deadline-System.currentTimeMillis();
+          }
+          if(!item.hasResponse) return null;
+        }
+        else
+        {
+          while(!item.hasResponse)
+            item.wait();
+        }
       }
-      else
-      {
-        while(!item.hasResponse)
-          _lock.wait(timeout);
-      }
-      
-      _items.remove(token);
-      return item.response;
     }
+    
+    _items.remove(token);
+    return item.response;
+  }
+  
+  /**
+   * Wait for at least one request to be available.
+   * @param timeout maximum amount to wait. If timeout is equal to 0, infinite wait is done.
+   * If timeout is negative, no wait is done.
+   * @return true if a request has been reserved, false if the timeout expired.
+   * @throws InterruptedException if the wait gets interrupted.
+   */
+  private boolean acquire(long timeout) throws InterruptedException
+  {
+    if(timeout<0) return _pendingCount.tryAcquire();
+    if(timeout>0) return _pendingCount.tryAcquire(timeout,TimeUnit.MILLISECONDS);
+    _pendingCount.acquire();
+    return true;
   }
   
   /**
@@ -170,28 +220,41 @@ public class Bus
    */
   public Pair<Token,Object> getRequest(long timeout) throws InterruptedException
   {
-    synchronized(_lock)
+    if(!acquire(timeout)) return null;
+    
+    //Every permit matches a request that has already been queued.
+    BusItem first=_pendingItems.poll();
+    
+    return new Pair<Token,Object>(first.token,first.request);
+  }
+  
+  /**
+   * Get several requests at once, so that they can be processed in bulk.
+   * @param max maximum number of requests to get.
+   * @param timeout maximum amount to wait for a request if none is available.
+   * If timeout is equal to 0, infinite wait is done. If timeout is negative,
+   * no wait is done (ie, non-blocking operation). Once a request is available,
+   * this method does not wait for more.
+   * @return list of <Token,Request>, between 1 and max items, or an empty list if no request was available
+   * and the timeout expired.
+   * @throws InterruptedException if the wait gets interrupted.
+   */
+  public List<Pair<Token,Object>> getRequests(int max,long timeout) throws InterruptedException
+  {
+    if(max<=0) throw new GaiaRuntimeException(new IllegalArgumentException());
+    if(!acquire(timeout)) return Collections.emptyList();
+    
+    int count=1;
+    while(count<max && _pendingCount.tryAcquire())
+      count++;
+    
+    List<Pair<Token,Object>> ans=new ArrayList<Pair<Token,Object>>(count);
+    for(int i=0;i<count;i++)
     {
-      if(timeout<0)
-      {
-        if(_pendingItems.size()==0) return null;
-      }
-      else if(timeout>0)
-      {
-        if(_pendingItems.size()==0)
-          _lock.wait(timeout);
-        if(_pendingItems.size()==0) return null;
-      }
-      else
-      {
-        while(_pendingItems.size()==0)
-          _lock.wait(timeout);
-      }
-      
-      BusItem first=_pendingItems.remove(0);
-      
-      return new Pair<Token,Object>(first.token,first.request);
+      BusItem item=_pendingItems.poll();
+      ans.add(new Pair<Token,Object>(item.token,item.request));
     }
+    return ans;
   }
   
   /**
@@ -201,14 +264,20 @@ public class Bus
    */
   public void sendResponse(Token token,Object response)
   {
-    BusItem item;
-    synchronized(_lock)
+    BusItem item=_items.get(token);
+    if(item==null) throw new GaiaRuntimeException(new IllegalArgumentException());
+    if(item.future!=null)
+    {
+      //Nobody holds the token to get the response, so it is released right away.
+      _items.remove(token);
+      item.future.complete(response);
+      return;
+    }
+    synchronized(item)
     {
-      item=_items.get(token);
-      if(item==null) throw new GaiaRuntimeException(new IllegalArgumentException());
       item.response=response;
       item.hasResponse=true;
-      _lock.notifyAll();
+      item.notifyAll();
     }
     if(item.callBack!=null)
       item.callBack.run();
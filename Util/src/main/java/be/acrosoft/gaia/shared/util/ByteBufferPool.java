@@ -0,0 +1,134 @@
+/**
+ * Copyright Acropolis Software SPRL (https://www.acrosoft.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.acrosoft.gaia.shared.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of reusable ByteBuffers, organized in power-of-two size classes. Allocating direct buffers is expensive,
+ * and releasing them depends on the garbage collector, so code that repeatedly needs large buffers should draw
+ * them from a pool instead.<br/>
+ * The pool only retains released buffers up to a maximum number of bytes, the others are left to the garbage
+ * collector.<br/>
+ * Instances of this class are thread-safe.
+ */
+public class ByteBufferPool
+{
+  private static final int MAX_SIZE_CLASS=30;
+  
+  private static ByteBufferPool _directPool=null;
+  
+  private final boolean _direct;
+  private final long _maxRetained;
+  private final AtomicLong _retained;
+  private final ConcurrentLinkedQueue<ByteBuffer>[] _classes;
+  
+  /**
+   * Create a new ByteBufferPool.
+   * @param direct true to allocate direct buffers, false to allocate heap buffers.
+   * @param maxRetained maximum number of bytes held by the released buffers waiting to be reused.
+   */
+  public ByteBufferPool(boolean direct,long maxRetained)
+  {
+    _direct=direct;
+    _maxRetained=maxRetained;
+    _retained=new AtomicLong();
+    @SuppressWarnings("unchecked")
+    ConcurrentLinkedQueue<ByteBuffer>[] classes=(ConcurrentLinkedQueue<ByteBuffer>[])new ConcurrentLinkedQueue<?>[MAX_SIZE_CLASS+1];
+    _classes=classes;
+    for(int i=0;i<_classes.length;i++)
+      _classes[i]=new ConcurrentLinkedQueue<ByteBuffer>();
+  }
+  
+  /**
+   * Get the shared pool of direct buffers, retaining at most 64MB.
+   * @return shared direct pool.
+   */
+  public static synchronized ByteBufferPool getDirectPool()
+  {
+    if(_directPool==null)
+      _directPool=new ByteBufferPool(true,64L*1024*1024);
+    return _directPool;
+  }
+  
+  /**
+   * Check whether this pool allocates direct buffers.
+   * @return true for direct buffers, false for heap buffers.
+   */
+  public boolean isDirect()
+  {
+    return _direct;
+  }
+  
+  /**
+   * Get the capacity of the buffers returned for the given size.
+   * @param size requested size.
+   * @return smallest power of two greater than or equal to size.
+   */
+  public static int getSizeClass(int size)
+  {
+    if(size<=1) return 1;
+    if(size>1<<MAX_SIZE_CLASS) throw new IllegalArgumentException(Integer.toString(size));
+    return Integer.highestOneBit(size-1)<<1;
+  }
+  
+  /**
+   * Get a cleared buffer of at least the given size. The capacity of the buffer is the size rounded up to the
+   * next power of two.
+   * @param size minimum capacity.
+   * @return buffer.
+   */
+  public ByteBuffer acquire(int size)
+  {
+    int capacity=getSizeClass(size);
+    ByteBuffer ans=_classes[Integer.numberOfTrailingZeros(capacity)].poll();
+    if(ans!=null)
+    {
+      _retained.addAndGet(-capacity);
+      return ans;
+    }
+    return _direct?ByteBuffer.allocateDirect(capacity):ByteBuffer.allocate(capacity);
+  }
+  
+  /**
+   * Give a buffer back to the pool. The buffer must not be used by the caller anymore. Buffers that have not
+   * been acquired from a pool of the same kind are ignored.
+   * @param buffer buffer.
+   */
+  public void release(ByteBuffer buffer)
+  {
+    int capacity=buffer.capacity();
+    if(buffer.isDirect()!=_direct || Integer.bitCount(capacity)!=1 || buffer.isReadOnly()) return;
+    if(_retained.addAndGet(capacity)>_maxRetained)
+    {
+      _retained.addAndGet(-capacity);
+      return;
+    }
+    buffer.clear();
+    _classes[Integer.numberOfTrailingZeros(capacity)].offer(buffer);
+  }
+  
+  /**
+   * Get the number of bytes held by the buffers waiting to be reused.
+   * @return retained bytes.
+   */
+  public long getRetained()
+  {
+    return _retained.get();
+  }
+}
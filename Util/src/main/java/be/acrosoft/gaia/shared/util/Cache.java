@@ -15,59 +15,418 @@
  */
 package be.acrosoft.gaia.shared.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.lang.ref.Reference;
-import java.lang.ref.SoftReference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.lang.management.ManagementFactory;
+import java.time.Clock;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * Thread-safe cache, storing values through soft references. The key mustn't be null, but
  * the value can.<br/>
- * We can't really use {@link java.util.Optional} here since our values can be null.
+ * We can't really use {@link java.util.Optional} here since our values can be null.<br/>
+ * The cache is backed by a {@link ConcurrentHashMap}, so that a cache hit never takes any lock and
+ * concurrent writers only contend on the map bins they actually touch.<br/>
+ * A cache created through a {@link Builder} can additionally be bounded by a maximum number of entries and/or
+ * a maximum total weight. When the bounds are exceeded, the least recently used entries are evicted.<br/>
+ * Expired entries and entries whose value has been garbage-collected are reclaimed in amortized constant time
+ * while the cache is being written to, and optionally by a periodic background sweep.<br/>
+ * By default, {@link #write(Object[], Object[], Storage)} is write-through. A write-behind cache can be created
+ * through the builder instead: cachable writes then update the cache at once and reach the storage later, in
+ * batches. Such a cache must be flushed or closed to guarantee that all writes have reached the storage.<br/>
+ * Background storage calls run on a shared pool of threads, or on the executor given to the builder, so that a
+ * slow storage never delays the background tasks of other caches. The shared threads are only started by the
+ * caches that sweep, write behind or refresh ahead.<br/>
+ * Items that are about to expire can also be refreshed ahead of their expiration, so that hot keys never
+ * block readers on the storage.<br/>
+ * A second tier can be added through the builder, keeping serialized copies of the values outside of the Java
+ * heap. Values that have been garbage-collected or evicted from the heap are then read back from that tier,
+ * and promoted to the heap again, instead of being reloaded from the storage.<br/>
+ * Hits, misses, storage reads and removals are counted without locking, and can be observed through
+ * {@link #stats()} or through JMX, once the cache has been registered with {@link #registerMBean(String)}.
  * @param <K> key type.
  */
-public class Cache<K>
+public class Cache<K> implements AutoCloseable
 {
-  private static class CacheItem
+  private static final Logger LOGGER=Logger.getLogger(Cache.class.getName());
+
+  /**
+   * Compute the weight of a cache entry.
+   * @param <K> key type.
+   */
+  @FunctionalInterface
+  public static interface Weigher<K>
+  {
+    /**
+     * Get the weight of the given entry. The weight is computed once, when the entry is put in cache.
+     * @param key key.
+     * @param value value. Can be null.
+     * @return weight, must be non-negative.
+     */
+    public int weigh(K key,Object value);
+  }
+  
+  /**
+   * Convert values to bytes and back, for the off-heap tier. Serializers must not call back into the cache.
+   */
+  public static interface Serializer
   {
     /**
-     * Create a new CacheItem.
-     * @param exp expiration.
-     * @param v value.
-     * @param weak use weak instead of soft reference.
+     * Serialize the given value.
+     * @param value value, never null.
+     * @return serialized value.
+     * @throws IOException if the value cannot be serialized. The value is then only held on the heap.
+     */
+    public byte[] serialize(Object value) throws IOException;
+    
+    /**
+     * Deserialize a value.
+     * @param data serialized value.
+     * @return value.
+     * @throws IOException if the value cannot be deserialized. The value is then considered as missing.
+     */
+    public Object deserialize(byte[] data) throws IOException;
+    
+    /**
+     * Get a serializer using the standard Java serialization. Values that are not {@link java.io.Serializable}
+     * are not stored off-heap.
+     * @return standard serializer.
      */
-    public CacheItem(long exp,Object v,boolean weak)
+    public static Serializer standard()
     {
-      added=System.currentTimeMillis();
-      expiration=exp;
-      if(weak)
-        value=new WeakReference<Object>(v);
-      else
-        value=new SoftReference<Object>(v);
+      return new Serializer()
+      {
+        @Override
+        public byte[] serialize(Object value) throws IOException
+        {
+          ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+          try(ObjectOutputStream out=new ObjectOutputStream(bytes))
+          {
+            out.writeObject(value);
+          }
+          return bytes.toByteArray();
+        }
+        
+        @Override
+        public Object deserialize(byte[] data) throws IOException
+        {
+          try(ObjectInputStream in=new ObjectInputStream(new ByteArrayInputStream(data)))
+          {
+            return in.readObject();
+          }
+          catch(ClassNotFoundException ex)
+          {
+            throw new IOException(ex);
+          }
+        }
+      };
     }
-
+  }
+  
+  /**
+   * Size of the read buffer, must be a power of 2.
+   */
+  private static final int READ_BUFFER_SIZE=64;
+  
+  /**
+   * Shared single-thread executor timing the background tasks of the caches that do not have their own executor,
+   * created on first use. It never calls a storage, so that a slow storage cannot delay the other caches.
+   */
+  private static ScheduledExecutorService _executor=null;
+  /**
+   * Shared executor calling the storages from the background for the caches that do not have their own executor,
+   * created on first use. Threads are created as needed, so that a hung storage only holds its own threads.
+   */
+  private static Executor _storageExecutor=null;
+  
+  /**
+   * Periodic sweep of a cache. The task only holds a weak reference to the cache, and cancels itself once the
+   * cache has been garbage-collected.
+   */
+  private static class SweepTask implements Runnable
+  {
+    private WeakReference<Cache<?>> _cache;
+    private volatile ScheduledFuture<?> _future;
+    
+    /**
+     * Create a new SweepTask.
+     * @param cache cache to sweep.
+     */
+    public SweepTask(Cache<?> cache)
+    {
+      _cache=new WeakReference<Cache<?>>(cache);
+    }
+    
+    @Override
+    public void run()
+    {
+      Cache<?> cache=_cache.get();
+      if(cache!=null)
+      {
+        cache.cleanUp();
+        return;
+      }
+      ScheduledFuture<?> future=_future;
+      if(future!=null)
+        future.cancel(false);
+    }
+  }
+  
+  /**
+   * Where the values of a read come from.
+   */
+  private static enum Source
+  {
+    /**
+     * Found in cache.
+     */
+    CACHE,
+    /**
+     * Loaded from the storage by the current thread.
+     */
+    STORAGE,
+    /**
+     * Being loaded from the storage by another thread.
+     */
+    PENDING
+  }
+  
+  /**
+   * JMX view of a cache.
+   */
+  private static class Management implements CacheMXBean
+  {
+    private Cache<?> _cache;
+    
     /**
-     * Added time.
+     * Create a new Management.
+     * @param cache cache.
      */
-    public long added;
+    public Management(Cache<?> cache)
+    {
+      _cache=cache;
+    }
+    
+    @Override
+    public int getSize()
+    {
+      return _cache.size();
+    }
+    
+    @Override
+    public long getHitCount()
+    {
+      return _cache.stats().getHitCount();
+    }
+    
+    @Override
+    public long getMissCount()
+    {
+      return _cache.stats().getMissCount();
+    }
+    
+    @Override
+    public long getNotPresentCount()
+    {
+      return _cache.stats().getNotPresentCount();
+    }
+    
+    @Override
+    public double getHitRate()
+    {
+      return _cache.stats().getHitRate();
+    }
+    
+    @Override
+    public long getLoadCount()
+    {
+      return _cache.stats().getLoadCount();
+    }
+    
+    @Override
+    public long getLoadedKeyCount()
+    {
+      return _cache.stats().getLoadedKeyCount();
+    }
+    
+    @Override
+    public long getLoadFailureCount()
+    {
+      return _cache.stats().getLoadFailureCount();
+    }
+    
+    @Override
+    public double getAverageLoadSize()
+    {
+      return _cache.stats().getAverageLoadSize();
+    }
+    
+    @Override
+    public double getAverageLoadTime()
+    {
+      return _cache.stats().getAverageLoadTime();
+    }
+    
+    @Override
+    public long getCollectedCount()
+    {
+      return _cache.stats().getCollectedCount();
+    }
+    
+    @Override
+    public long getExpirationCount()
+    {
+      return _cache.stats().getExpirationCount();
+    }
+    
+    @Override
+    public long getEvictionCount()
+    {
+      return _cache.stats().getEvictionCount();
+    }
+  }
+  
+  /**
+   * Refresh request.
+   * @param <K> key type.
+   */
+  private static class Refresh<K>
+  {
     /**
-     * Expiration.
+     * Item to refresh.
      */
-    public long expiration;
+    public final CacheItem<K> item;
     /**
-     * Value.
+     * Storage to reload the item from.
      */
-    public Reference<Object> value;
+    public final Storage<K> storage;
+    /**
+     * Empty key array, with the runtime type expected by the storage.
+     */
+    public final K[] template;
+    
+    /**
+     * Create a new Refresh.
+     * @param i item to refresh.
+     * @param s storage.
+     * @param t key array template.
+     */
+    public Refresh(CacheItem<K> i,Storage<K> s,K[] t)
+    {
+      item=i;
+      storage=s;
+      template=t;
+    }
   }
   
   /**
    * User-provided null values will be stored as NULL.
    */
-  private HashMap<K,CacheItem> _map;
+  private ConcurrentHashMap<K,CacheItem<K>> _map;
+  /**
+   * Loads in progress, so that concurrent misses on the same key only hit the storage once.
+   */
+  private ConcurrentHashMap<K,CompletableFuture<Object>> _loading;
   /**
-   * Whether to use soft or weak references for the values.
+   * Value reference strength.
    */
-  private boolean _weak;
+  private CacheItem.Strength _strength;
+  /**
+   * Entry weigher, or null if all entries weigh 1.
+   */
+  private Weigher<? super K> _weigher;
+  /**
+   * Clock used for expiration.
+   */
+  private Clock _clock;
+  /**
+   * Queue receiving the references to garbage-collected values.
+   */
+  private ReferenceQueue<Object> _queue;
+  /**
+   * Eviction order, or null if the cache is unbounded.
+   */
+  private CacheEviction<K> _eviction;
+  /**
+   * Expiration order of the items that can expire.
+   */
+  private TimerWheel<K> _wheel;
+  /**
+   * Lock protecting the eviction and expiration orders. Never taken on a cache hit: reads are recorded in a lossy
+   * buffer that is replayed whenever the lock is acquired.
+   */
+  private ReentrantLock _lock;
+  private AtomicReferenceArray<CacheItem<K>> _readBuffer;
+  private AtomicInteger _readIndex;
+  /**
+   * Background sweep, or null.
+   */
+  private ScheduledFuture<?> _sweep;
+  /**
+   * Executor timing the background tasks, or null if the cache has none.
+   */
+  private ScheduledExecutorService _timer;
+  /**
+   * Executor calling the storages from the background, or null if the cache never does.
+   */
+  private Executor _storageIO;
+  /**
+   * Pending writes, or null if the cache is write-through.
+   */
+  private WriteBehindQueue<K> _writeBehind;
+  private volatile boolean _closed;
+  /**
+   * Fraction of the lifetime of an item after which a read refreshes it ahead of its expiration, or 0.
+   */
+  private double _refreshAhead;
+  /**
+   * Pending refreshes, per key.
+   */
+  private ConcurrentHashMap<K,Refresh<K>> _refreshes;
+  private ConcurrentLinkedQueue<Refresh<K>> _refreshQueue;
+  private AtomicBoolean _refreshScheduled;
+  private CacheCounters _counters;
+  /**
+   * Off-heap tier, or null.
+   */
+  private OffHeapStore<K> _offHeap;
+  /**
+   * Name under which the cache is registered in the platform MBean server, or null.
+   */
+  private ObjectName _mbeanName;
   
   /**
    * Because values can be null, we need a safe way to
@@ -96,35 +455,524 @@ public class Cache<K>
    */
   public Cache(boolean weak)
   {
-    _map=new HashMap<K,CacheItem>();
-    _weak=weak;
+    this(weak?builder().weakValues():builder());
   }
-    
+  
+  private Cache(Builder<? super K> builder)
+  {
+    _map=new ConcurrentHashMap<K,CacheItem<K>>();
+    _loading=new ConcurrentHashMap<K,CompletableFuture<Object>>();
+    _strength=builder.strength;
+    _weigher=builder.weigher;
+    _clock=builder.clock;
+    _queue=new ReferenceQueue<Object>();
+    _lock=new ReentrantLock();
+    _wheel=new TimerWheel<K>(_clock.millis());
+    _timer=builder.executor;
+    _storageIO=builder.executor;
+    //The shared executors are only created for the caches that need them.
+    if(_timer==null && (builder.sweepPeriod!=null || builder.writeBehindDelay!=null))
+      _timer=getExecutor();
+    if(_storageIO==null && (builder.writeBehindDelay!=null || builder.refreshAhead>0))
+      _storageIO=getStorageExecutor();
+    if(builder.maximumSize>=0 || builder.maximumWeight>=0)
+    {
+      _eviction=new CacheEviction<K>(builder.maximumSize,builder.maximumWeight);
+      _readBuffer=new AtomicReferenceArray<CacheItem<K>>(READ_BUFFER_SIZE);
+      _readIndex=new AtomicInteger();
+    }
+    if(builder.sweepPeriod!=null)
+    {
+      long period=Math.max(1,builder.sweepPeriod.toMillis());
+      SweepTask task=new SweepTask(this);
+      task._future=_timer.scheduleWithFixedDelay(task,period,period,TimeUnit.MILLISECONDS);
+      _sweep=task._future;
+    }
+    _refreshAhead=builder.refreshAhead;
+    _refreshes=new ConcurrentHashMap<K,Refresh<K>>();
+    _refreshQueue=new ConcurrentLinkedQueue<Refresh<K>>();
+    _refreshScheduled=new AtomicBoolean();
+    _counters=new CacheCounters();
+    if(builder.offHeapCapacity>0)
+    {
+      try
+      {
+        _offHeap=new OffHeapStore<K>(builder.offHeapCapacity,builder.serializer,builder.offHeapFile);
+      }
+      catch(IOException ex)
+      {
+        throw new GaiaRuntimeException(ex);
+      }
+    }
+    if(builder.writeBehindDelay!=null)
+      _writeBehind=new WriteBehindQueue<K>(builder.writeBehindBatchSize,builder.writeBehindDelay.toMillis(),_timer,_storageIO);
+  }
+  
+  private static synchronized ScheduledExecutorService getExecutor()
+  {
+    if(_executor==null)
+    {
+      ScheduledThreadPoolExecutor executor=new ScheduledThreadPoolExecutor(1,runnable->{
+        Thread thread=new Thread(runnable,"Cache maintenance"); //$NON-NLS-1$
+        thread.setDaemon(true);
+        return thread;
+      });
+      executor.setRemoveOnCancelPolicy(true);
+      _executor=executor;
+    }
+    return _executor;
+  }
+  
+  private static synchronized Executor getStorageExecutor()
+  {
+    if(_storageExecutor==null)
+    {
+      _storageExecutor=new ThreadPoolExecutor(0,Integer.MAX_VALUE,60,TimeUnit.SECONDS,new SynchronousQueue<Runnable>(),runnable->{
+        Thread thread=new Thread(runnable,"Cache storage"); //$NON-NLS-1$
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return _storageExecutor;
+  }
+  
   /**
-   * Get value for the key. Must be called from the lock.
+   * Create a new builder.
+   * @return a new builder.
+   */
+  public static Builder<Object> builder()
+  {
+    return new Builder<Object>();
+  }
+  
+  /**
+   * Check whether the given item is tracked by the eviction or expiration orders.
+   * @param item item.
+   * @return true if the item is tracked, false otherwise.
+   */
+  private boolean isTracked(CacheItem<K> item)
+  {
+    return _eviction!=null || item.expiresAt!=CacheItem.NEVER;
+  }
+  
+  /**
+   * Replay the buffered reads into the eviction order. Must be called from the lock.
+   */
+  private void drainReadBuffer()
+  {
+    if(_eviction==null) return;
+    for(int i=0;i<READ_BUFFER_SIZE;i++)
+    {
+      CacheItem<K> item=_readBuffer.getAndSet(i,null);
+      if(item!=null)
+        _eviction.touch(item);
+    }
+  }
+  
+  /**
+   * Stop tracking the given item. Must be called from the lock.
+   * @param item item.
+   */
+  private void retire(CacheItem<K> item)
+  {
+    item.retired=true;
+    if(_eviction!=null)
+      _eviction.remove(item);
+    _wheel.remove(item);
+  }
+  
+  /**
+   * Remove the items that have expired or have been garbage-collected, and evict items until the cache fits its
+   * bounds. Must be called from the lock.
+   */
+  private void maintain()
+  {
+    drainReadBuffer();
+    expungeCollected();
+    _wheel.advance(_clock.millis(),item->{
+      if(_map.remove(item.key,item))
+        _counters.expirations.increment();
+      retire(item);
+    });
+    if(_eviction!=null)
+    {
+      CacheItem<K> victim=_eviction.nextVictim();
+      while(victim!=null)
+      {
+        if(_map.remove(victim.key,victim))
+          _counters.evictions.increment();
+        retire(victim);
+        victim=_eviction.nextVictim();
+      }
+    }
+  }
+  
+  /**
+   * Remove the items whose value has been garbage-collected. Items that are not tracked are removed without
+   * taking the lock.
+   */
+  private void expungeCollected()
+  {
+    Reference<?> ref=_queue.poll();
+    while(ref!=null)
+    {
+      @SuppressWarnings("unchecked")
+      CacheItem<K> item=(CacheItem<K>)(ref instanceof CacheItem.SoftValue?((CacheItem.SoftValue)ref).item:((CacheItem.WeakValue)ref).item);
+      if(_map.remove(item.key,item))
+      {
+        _counters.collected.increment();
+        afterRemoval(item);
+      }
+      ref=_queue.poll();
+    }
+  }
+  
+  /**
+   * Record a cache hit. When the read buffer is full, it is drained if the lock is available, otherwise older
+   * reads are simply overwritten: the eviction order is a best effort, and a cache hit must never block.
+   * @param item item that has been read.
+   */
+  private void afterRead(CacheItem<K> item)
+  {
+    if(_eviction==null) return;
+    int index=_readIndex.getAndIncrement()&(READ_BUFFER_SIZE-1);
+    _readBuffer.lazySet(index,item);
+    if(index==READ_BUFFER_SIZE-1 && _lock.tryLock())
+    {
+      try
+      {
+        maintain();
+      }
+      finally
+      {
+        _lock.unlock();
+      }
+    }
+  }
+  
+  /**
+   * Record a new item.
+   * @param item new item.
+   * @param replaced previous item for the same key, or null.
+   */
+  private void afterWrite(CacheItem<K> item,CacheItem<K> replaced)
+  {
+    if(!isTracked(item) && (replaced==null || !isTracked(replaced)))
+    {
+      expungeCollected();
+      return;
+    }
+    _lock.lock();
+    try
+    {
+      if(replaced!=null)
+        retire(replaced);
+      if(!item.retired)
+      {
+        if(_eviction!=null)
+          _eviction.add(item);
+        if(item.expiresAt!=CacheItem.NEVER)
+          _wheel.schedule(item);
+      }
+      maintain();
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+  
+  /**
+   * Record the removal of an item.
+   * @param item removed item.
+   */
+  private void afterRemoval(CacheItem<K> item)
+  {
+    if(!isTracked(item)) return;
+    _lock.lock();
+    try
+    {
+      retire(item);
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+  
+  /**
+   * Get value for the key. This method does not lock: stale items are removed only if they have not been
+   * replaced in the meantime. The clock is only queried for items that can expire.
    * @param key key.
+   * @param storage storage the value comes from, used to refresh the value ahead of its expiration, or null.
+   * @param template empty key array used to build the refresh requests, or null.
    * @return value, or null if not defined. Can be NULL, but will not be NOT_PRESENT.
    */
-  private Object getInternal(K key)
+  private Object getInternal(K key,Storage<K> storage,K[] template)
   {
-    CacheItem ref=_map.get(key);
-    if(ref==null) return null;
-    Object v=ref.value.get();
-    if(v==null)
+    CacheItem<K> ref=_map.get(key);
+    if(ref==null) return promote(key);
+    Object v=ref.get();
+    LongAdder removal=_counters.collected;
+    if(v!=null && ref.expiresAt!=CacheItem.NEVER)
     {
-      _map.remove(key);
-      return null;
+      long now=_clock.millis();
+      if(now>ref.expiresAt)
+      {
+        v=null;
+        removal=_counters.expirations;
+      }
+      else if(now>ref.refreshAt && storage!=null)
+      {
+        scheduleRefresh(ref,storage,template);
+      }
     }
-    long exp=ref.expiration;
-    if(exp!=-1 && System.currentTimeMillis()-ref.added>exp)
+    if(v==null)
     {
-      _map.remove(key);
-      return null;
+      if(_map.remove(key,ref))
+      {
+        removal.increment();
+        afterRemoval(ref);
+      }
+      return promote(key);
     }
     
+    afterRead(ref);
     return v;
   }
   
+  /**
+   * Move the value of the given key from the off-heap tier back to the heap.
+   * @param key key.
+   * @return value, or null if the off-heap tier has no value for that key. Can be NULL.
+   */
+  private Object promote(K key)
+  {
+    if(_offHeap==null) return null;
+    while(true)
+    {
+      //The value is deserialized outside of the map lock, since the serializer is user code.
+      OffHeapStore.Value stored=_offHeap.get(key,_clock.millis());
+      if(stored==null) return null;
+      //The promoted item keeps its original lifetime.
+      CacheItem<K> item=newItem(key,stored.value,stored.expiration,stored.expiresAt-stored.expiration);
+      //The value is only promoted if it is still the stored one, so that a discarded value cannot come back.
+      CacheItem<K> current=_map.computeIfAbsent(key,k->_offHeap.isCurrent(k,stored)?item:null);
+      if(current==item)
+      {
+        afterWrite(item,null);
+        return stored.value==null?NULL:stored.value;
+      }
+      if(current!=null)
+      {
+        //Another thread has put a value in the meantime.
+        return current.get();
+      }
+      //The value has been discarded or replaced while being deserialized: read the off-heap tier again.
+    }
+  }
+  
+  /**
+   * Create a new item.
+   * @param key key.
+   * @param value value, can be null.
+   * @param expiration expiration, or -1 if no expiration.
+   * @return new item.
+   */
+  private CacheItem<K> newItem(K key,Object value,long expiration)
+  {
+    return newItem(key,value,expiration,expiration==-1?0:_clock.millis());
+  }
+  
+  /**
+   * Create a new item.
+   * @param key key.
+   * @param value value, can be null.
+   * @param expiration expiration, or -1 if no expiration.
+   * @param now creation time of the item, in ms. Only used if the item expires.
+   * @return new item.
+   */
+  private CacheItem<K> newItem(K key,Object value,long expiration,long now)
+  {
+    int weight=1;
+    if(_weigher!=null)
+    {
+      weight=_weigher.weigh(key,value);
+      if(weight<0) throw new IllegalArgumentException(Integer.toString(weight));
+    }
+    long expiresAt=CacheItem.NEVER;
+    long refreshAt=CacheItem.NEVER;
+    if(expiration!=-1)
+    {
+      expiresAt=now+expiration;
+      if(expiresAt<0) expiresAt=CacheItem.NEVER-1;
+      if(_refreshAhead>0)
+        refreshAt=now+(long)(expiration*_refreshAhead);
+    }
+    return new CacheItem<K>(key,expiration,expiresAt,refreshAt,value==null?NULL:value,_strength,_queue,weight);
+  }
+  
+  /**
+   * Put the given value in cache.
+   * @param key key.
+   * @param value value, can be null.
+   * @param expiration expiration, or -1 if no expiration.
+   */
+  private void putInternal(K key,Object value,long expiration)
+  {
+    CacheItem<K> item=newItem(key,value,expiration);
+    CacheItem<K> replaced;
+    if(_offHeap==null)
+    {
+      replaced=_map.put(key,item);
+    }
+    else
+    {
+      //Both tiers are updated under the map lock of the key, so that concurrent writes and discards of the same
+      //key always leave the same value in both tiers. The value is serialized beforehand, since the serializer is
+      //user code.
+      OffHeapStore.Encoded encoded=_offHeap.encode(key,value);
+      AtomicReference<CacheItem<K>> previous=new AtomicReference<>();
+      _map.compute(key,(k,old)->{
+        previous.set(old);
+        _offHeap.put(k,encoded,expiration,item.expiresAt);
+        return item;
+      });
+      replaced=previous.get();
+    }
+    afterWrite(item,replaced);
+  }
+  
+  /**
+   * Read the given keys from the storage, recording the read in the statistics.
+   * @param keys keys.
+   * @param storage storage.
+   * @return values.
+   */
+  private Object[] load(K[] keys,Storage<K> storage)
+  {
+    long start=System.nanoTime();
+    boolean success=false;
+    try
+    {
+      Object[] ans=storage.read(keys);
+      success=true;
+      return ans;
+    }
+    finally
+    {
+      _counters.recordLoad(keys.length,start,success);
+    }
+  }
+  
+  /**
+   * Request an asynchronous reload of the given item. Only one refresh per key can be pending at any time,
+   * and all the requests pending when the refresh task runs are batched per storage.
+   * @param item item to refresh.
+   * @param storage storage to reload the item from.
+   * @param template empty key array, with the runtime type expected by the storage.
+   */
+  private void scheduleRefresh(CacheItem<K> item,Storage<K> storage,K[] template)
+  {
+    Refresh<K> refresh=new Refresh<K>(item,storage,template);
+    if(_refreshes.putIfAbsent(item.key,refresh)!=null) return;
+    _refreshQueue.add(refresh);
+    if(_refreshScheduled.compareAndSet(false,true))
+      _storageIO.execute(this::refresh);
+  }
+  
+  /**
+   * Reload all the items whose refresh has been requested. The reloaded values only replace the items they
+   * were requested for, so that a value written in the meantime is not overwritten. Keys with a pending
+   * write-behind write are not reloaded, since the storage does not hold their latest value yet.
+   */
+  private void refresh()
+  {
+    _refreshScheduled.set(false);
+    HashMap<Storage<K>,List<Refresh<K>>> batches=new HashMap<>();
+    Refresh<K> refresh=_refreshQueue.poll();
+    while(refresh!=null)
+    {
+      batches.computeIfAbsent(refresh.storage,s->new ArrayList<>()).add(refresh);
+      refresh=_refreshQueue.poll();
+    }
+    
+    for(Map.Entry<Storage<K>,List<Refresh<K>>> batch:batches.entrySet())
+    {
+      Storage<K> storage=batch.getKey();
+      List<Refresh<K>> refreshes=batch.getValue();
+      try
+      {
+        List<Refresh<K>> reloads=refreshes;
+        if(_writeBehind!=null)
+        {
+          reloads=new ArrayList<>(refreshes.size());
+          for(Refresh<K> r:refreshes)
+          {
+            if(_writeBehind.lookup(r.item.key,storage)==NOT_PRESENT)
+              reloads.add(r);
+          }
+          if(reloads.isEmpty()) continue;
+        }
+        K[] keys=Arrays.copyOf(reloads.get(0).template,reloads.size());
+        for(int i=0;i<keys.length;i++)
+          keys[i]=reloads.get(i).item.key;
+        Object[] values=load(keys,storage);
+        for(int i=0;i<keys.length;i++)
+        {
+          CacheItem<K> previous=reloads.get(i).item;
+          if(!storage.cachable(keys[i])) continue;
+          //The key may have been written, or its failed write queued again, while it was being reloaded.
+          if(_writeBehind!=null && _writeBehind.lookup(keys[i],storage)!=NOT_PRESENT) continue;
+          CacheItem<K> item=newItem(keys[i],values[i],storage.getExpiration(keys[i]));
+          boolean replaced;
+          if(_offHeap==null)
+          {
+            replaced=_map.replace(keys[i],previous,item);
+          }
+          else
+          {
+            OffHeapStore.Encoded encoded=_offHeap.encode(keys[i],values[i]);
+            replaced=_map.computeIfPresent(keys[i],(k,current)->{
+              if(current!=previous) return current;
+              _offHeap.put(k,encoded,item.expiration,item.expiresAt);
+              return item;
+            })==item;
+          }
+          if(replaced)
+            afterWrite(item,previous);
+        }
+      }
+      catch(RuntimeException ex)
+      {
+        LOGGER.log(Level.WARNING,"Cache refresh failed",ex); //$NON-NLS-1$
+      }
+      finally
+      {
+        for(Refresh<K> r:refreshes)
+          _refreshes.remove(r.item.key,r);
+      }
+    }
+  }
+  
+  /**
+   * Remove the entries that have expired or whose value has been garbage-collected. This is done automatically
+   * while the cache is being written to, or periodically if a sweep period has been set on the builder, but
+   * this method can be used to reclaim memory from a cache that is not used anymore.
+   */
+  public void cleanUp()
+  {
+    _lock.lock();
+    try
+    {
+      maintain();
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+  
   /**
    * Put the given value in cache, using the given key.
    * @param key key.
@@ -133,12 +981,8 @@ public class Cache<K>
    */
   public void put(K key,Object value,long expiration)
   {
-    if(value==null) value=NULL;
     if(value==NOT_PRESENT) throw new IllegalArgumentException(value.toString());
-    synchronized(_map)
-    {
-      _map.put(key,new CacheItem(expiration,value,_weak));
-    }
+    putInternal(key,value,expiration);
   }
   
   /**
@@ -148,12 +992,14 @@ public class Cache<K>
    */
   public Object get(K key)
   {
-    Object v;
-    synchronized(_map)
+    Object v=getInternal(key,null,null);
+    if(v==null)
     {
-      v=getInternal(key);
+      _counters.misses.increment();
+      _counters.notPresent.increment();
+      return NOT_PRESENT;
     }
-    if(v==null) v=NOT_PRESENT;
+    _counters.hits.increment();
     if(v==NULL) v=null;
     return v;
   }
@@ -163,9 +1009,20 @@ public class Cache<K>
    */
   public void clear()
   {
-    synchronized(_map)
+    _lock.lock();
+    try
     {
       _map.clear();
+      if(_offHeap!=null)
+        _offHeap.clear();
+      drainReadBuffer();
+      if(_eviction!=null)
+        _eviction.clear();
+      _wheel.clear();
+    }
+    finally
+    {
+      _lock.unlock();
     }
   }
   
@@ -175,15 +1032,40 @@ public class Cache<K>
    */
   public void discard(K key)
   {
-    synchronized(_map)
+    CacheItem<K> item;
+    if(_offHeap==null)
     {
-      _map.remove(key);
+      item=_map.remove(key);
     }
+    else
+    {
+      AtomicReference<CacheItem<K>> removed=new AtomicReference<>();
+      _map.compute(key,(k,current)->{
+        removed.set(current);
+        _offHeap.remove(k);
+        return null;
+      });
+      item=removed.get();
+    }
+    if(item!=null)
+      afterRemoval(item);
+  }
+  
+  /**
+   * Get the number of entries currently held by the cache. Entries whose value has been garbage-collected
+   * or that have expired are counted until they are found to be stale.
+   * @return number of entries.
+   */
+  public int size()
+  {
+    return _map.size();
   }
   
   /**
    * Read all keys from the cache, or from the storage if not available. The cache will try
-   * to minimize the number of read calls to the storage, and will collate all results.
+   * to minimize the number of read calls to the storage, and will collate all results.<br/>
+   * If another thread is already loading some of the cachable keys from the storage, this method waits for that
+   * load instead of reading the same keys again. If that load fails, this method fails as well.
    * @param keys all keys to read.
    * @param storage storage to read the values from.
    * @return all values. The length of the returned array is the same as the length of keys. Individual items
@@ -206,59 +1088,107 @@ public class Cache<K>
     
     Object[] ans=new Object[keys.length];
     HashMap<K, Object> fromCacheValues=new HashMap<K, Object>();
+    HashMap<K, CompletableFuture<Object>> loading=new HashMap<K, CompletableFuture<Object>>();
+    HashMap<K, CompletableFuture<Object>> pending=new HashMap<K, CompletableFuture<Object>>();
+    K[] template=Arrays.copyOf(keys,0);
 
-    //Let us only hit the storage for items that are not in the cache.
-    Partition<K, Boolean> part;
-    
-    K[] fromStorageKeys=null;
-    Object[] fromStorageValues=null;
+    //Let us only hit the storage for items that are not in the cache, and that are not already being loaded
+    //by another thread.
+    Partition<K, Source> part;
     
-    synchronized(_map)
+    try
     {
+      //Each lookup is atomic on its own, but the scan as a whole is not: another thread may update the
+      //cache while we're going through the keys, which is fine since we keep the value we've seen.
       part=Partition.array(keys).using(item->{
-          Object v=getInternal(item);
-          if(v==null) return Boolean.FALSE;
-          fromCacheValues.put(item,v);
-          return Boolean.TRUE;
+          Object v=getInternal(item,storage,template);
+          if(v!=null)
+          {
+            fromCacheValues.put(item,v);
+            return Source.CACHE;
+          }
+          if(!storage.cachable(item) || loading.containsKey(item)) return Source.STORAGE;
+          if(_writeBehind!=null)
+          {
+            //The value may have been garbage-collected before the write reached the storage.
+            v=_writeBehind.lookup(item,storage);
+            if(v!=NOT_PRESENT)
+            {
+              fromCacheValues.put(item,v==null?NULL:v);
+              return Source.CACHE;
+            }
+          }
+          CompletableFuture<Object> future=new CompletableFuture<Object>();
+          CompletableFuture<Object> existing=_loading.putIfAbsent(item,future);
+          if(existing!=null)
+          {
+            pending.put(item,existing);
+            return Source.PENDING;
+          }
+          loading.put(item,future);
+          return Source.STORAGE;
       }).merge();
-    }
-    
-    //From now on, the cache might be stale, so we won't be using it for
-    //reading anymore.
-    
-    for(Partition<K, Boolean>.Element el : part)
-    {
-      Boolean cat=el.getCategory();
-      K[] k=el.getItems();
-      if(cat.equals(Boolean.TRUE))
+      _counters.hits.add(fromCacheValues.size());
+      _counters.misses.add(loading.size()+pending.size());
+      
+      //From now on, the cache might be stale, so we won't be using it for
+      //reading anymore.
+      
+      for(Partition<K, Source>.Element el : part)
       {
-        Object[] v=new Object[k.length];
-        for(int i=0;i<k.length;i++)
+        K[] k=el.getItems();
+        if(el.getCategory()==Source.CACHE)
         {
-          Object vv=fromCacheValues.get(k[i]);
-          if(vv==NULL) vv=null;
-          v[i]=vv;
+          Object[] v=new Object[k.length];
+          for(int i=0;i<k.length;i++)
+          {
+            Object vv=fromCacheValues.get(k[i]);
+            if(vv==NULL) vv=null;
+            v[i]=vv;
+          }
+          el.inject(v).into(ans);
+        }
+        else if(el.getCategory()==Source.STORAGE)
+        {
+          Object[] v=load(k,storage);
+          el.inject(v).into(ans);
+          
+          //Only publish the loaded values once they are in cache, so that a reader coming after the loading
+          //entry is removed finds them.
+          for(int i=0;i<k.length;i++)
+          {
+            CompletableFuture<Object> future=loading.remove(k[i]);
+            if(future!=null)
+            {
+              putInternal(k[i],v[i],storage.getExpiration(k[i]));
+              future.complete(v[i]);
+              _loading.remove(k[i],future);
+            }
+          }
         }
-        el.inject(v).into(ans);
       }
-      else
+    }
+    catch(RuntimeException|Error ex)
+    {
+      //The threads waiting for our loads must fail as well.
+      for(Map.Entry<K, CompletableFuture<Object>> entry:loading.entrySet())
       {
-        fromStorageKeys=k;
-        fromStorageValues=storage.read(k);
-        el.inject(fromStorageValues).into(ans);
+        entry.getValue().completeExceptionally(ex);
+        _loading.remove(entry.getKey(),entry.getValue());
       }
+      throw ex;
     }
-
-    if(fromStorageKeys!=null)
+    
+    //Only wait for the other threads once our own loads are done: they may be waiting for us as well.
+    for(Partition<K, Source>.Element el : part)
     {
-      assert fromStorageValues!=null;
-      synchronized(_map)
+      if(el.getCategory()==Source.PENDING)
       {
-        for(int i=0;i<fromStorageKeys.length;i++)
-        {
-          if(storage.cachable(fromStorageKeys[i]))
-            _map.put(fromStorageKeys[i],new CacheItem(storage.getExpiration(fromStorageKeys[i]),fromStorageValues[i],_weak));
-        }
+        K[] k=el.getItems();
+        Object[] v=new Object[k.length];
+        for(int i=0;i<k.length;i++)
+          v[i]=await(pending.get(k[i]));
+        el.inject(v).into(ans);
       }
     }
 
@@ -266,8 +1196,30 @@ public class Cache<K>
   }
   
   /**
-   * Write to the cache and to the storage, using a write-through policy. The cache
-   * is updated only if the storage write is successful.
+   * Wait for a value being loaded by another thread.
+   * @param future pending load.
+   * @return loaded value.
+   */
+  private static Object await(CompletableFuture<Object> future)
+  {
+    try
+    {
+      return future.join();
+    }
+    catch(CompletionException ex)
+    {
+      Throwable cause=ex.getCause();
+      if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+      if(cause instanceof Error) throw (Error)cause;
+      throw new GaiaRuntimeException(cause);
+    }
+  }
+  
+  /**
+   * Write to the cache and to the storage. With the default write-through policy, the cache
+   * is updated only if the storage write is successful. With a write-behind policy, cachable
+   * keys are written to the cache at once and queued for a later storage write, whereas
+   * the other keys are still written to the storage synchronously.
    * @param keys keys.
    * @param values values.
    * @param storage storage.
@@ -277,29 +1229,334 @@ public class Cache<K>
     for(int i=0;i<values.length;i++)
       if(values[i]==NOT_PRESENT) throw new IllegalArgumentException(values[i].toString());
     
-    boolean someCachable=false;
+    int cachable=0;
     for(K k:keys)
     {
       if(storage.cachable(k))
-      {
-        someCachable=true;
-        break;
-      }
+        cachable++;
     }
     
-    storage.write(keys,values);
-
-    if(someCachable)
+    if(_writeBehind!=null && !_closed && cachable>0)
     {
-      synchronized(_map)
+      K[] behindKeys=keys;
+      Object[] behindValues=values;
+      if(cachable<keys.length)
       {
+        //Write the non-cachable keys right now, the storage is the only place they can be read from.
+        K[] throughKeys=Arrays.copyOf(keys,keys.length-cachable);
+        Object[] throughValues=new Object[throughKeys.length];
+        behindKeys=Arrays.copyOf(keys,cachable);
+        behindValues=new Object[cachable];
+        int through=0;
+        int behind=0;
         for(int i=0;i<keys.length;i++)
         {
           if(storage.cachable(keys[i]))
-            _map.put(keys[i],new CacheItem(storage.getExpiration(keys[i]),values[i]==null?NULL:values[i],_weak));
+          {
+            behindKeys[behind]=keys[i];
+            behindValues[behind++]=values[i];
+          }
+          else
+          {
+            throughKeys[through]=keys[i];
+            throughValues[through++]=values[i];
+          }
         }
+        storage.write(throughKeys,throughValues);
       }
+      
+      for(int i=0;i<behindKeys.length;i++)
+        putInternal(behindKeys[i],behindValues[i],storage.getExpiration(behindKeys[i]));
+      _writeBehind.add(behindKeys,behindValues,storage);
+      return;
+    }
+    
+    storage.write(keys,values);
+
+    if(cachable>0)
+    {
+      for(int i=0;i<keys.length;i++)
+      {
+        if(storage.cachable(keys[i]))
+          putInternal(keys[i],values[i],storage.getExpiration(keys[i]));
+      }
+    }
+  }
+  
+  /**
+   * Write all the pending writes of a write-behind cache to their storage, from the calling thread. This
+   * method does nothing for a write-through cache.
+   * @throws RuntimeException if a storage write fails. The writes that could not be done remain pending.
+   */
+  public void flush()
+  {
+    if(_writeBehind!=null)
+      _writeBehind.flush();
+  }
+  
+  /**
+   * Get a snapshot of the cache statistics.
+   * @return statistics since the cache was created.
+   */
+  public CacheStats stats()
+  {
+    return _counters.snapshot();
+  }
+  
+  /**
+   * Register this cache in the platform MBean server, as a {@link CacheMXBean} named
+   * <code>be.acrosoft.gaia.shared.util:type=Cache,name=&lt;name&gt;</code>. The registration keeps the cache
+   * reachable: it is removed when the cache is closed.
+   * @param name cache name, unique among the registered caches.
+   * @return object name of the registered MBean.
+   * @throws GaiaRuntimeException if the registration fails, for instance because the name is already in use.
+   */
+  public synchronized ObjectName registerMBean(String name)
+  {
+    if(_mbeanName!=null) throw new IllegalStateException(_mbeanName.toString());
+    try
+    {
+      ObjectName objectName=new ObjectName("be.acrosoft.gaia.shared.util:type=Cache,name="+ObjectName.quote(name)); //$NON-NLS-1$
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new Management(this),objectName);
+      _mbeanName=objectName;
+      return objectName;
+    }
+    catch(JMException ex)
+    {
+      throw new GaiaRuntimeException(ex);
     }
   }
   
+  /**
+   * Remove this cache from the platform MBean server, if it has been registered.
+   */
+  private synchronized void unregisterMBean()
+  {
+    if(_mbeanName==null) return;
+    try
+    {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(_mbeanName);
+    }
+    catch(JMException ex)
+    {
+      LOGGER.log(Level.WARNING,"Unable to unregister "+_mbeanName,ex); //$NON-NLS-1$
+    }
+    _mbeanName=null;
+  }
+  
+  /**
+   * Close the cache: stop the background sweep, if any, unregister it from JMX, and flush the pending writes.
+   * The cache can still be used afterwards, but all writes will be write-through.
+   * @throws RuntimeException if a storage write fails. The writes that could not be done remain pending,
+   * and can be retried with {@link #flush()}.
+   */
+  @Override
+  public void close()
+  {
+    _closed=true;
+    if(_sweep!=null)
+      _sweep.cancel(false);
+    unregisterMBean();
+    flush();
+  }
+  
+  /**
+   * Cache builder.
+   * @param <K> key type.
+   */
+  public static class Builder<K>
+  {
+    private CacheItem.Strength strength;
+    private long maximumSize;
+    private long maximumWeight;
+    private Weigher<? super K> weigher;
+    private Clock clock;
+    private Duration sweepPeriod;
+    private int writeBehindBatchSize;
+    private Duration writeBehindDelay;
+    private double refreshAhead;
+    private long offHeapCapacity;
+    private Serializer serializer;
+    private Path offHeapFile;
+    private ScheduledExecutorService executor;
+    
+    private Builder()
+    {
+      strength=CacheItem.Strength.SOFT;
+      maximumSize=-1;
+      maximumWeight=-1;
+      weigher=null;
+      clock=Clock.systemUTC();
+      sweepPeriod=null;
+      writeBehindBatchSize=0;
+      writeBehindDelay=null;
+      refreshAhead=0;
+      offHeapCapacity=0;
+      serializer=null;
+      offHeapFile=null;
+      executor=null;
+    }
+    
+    /**
+     * Create the Cache using the builder options.
+     * @param <K1> key type.
+     * @return new Cache.
+     */
+    @SuppressWarnings("unchecked")
+    public <K1 extends K> Cache<K1> build()
+    {
+      return new Cache<K1>((Builder<? super K1>)this);
+    }
+    
+    /**
+     * Hold values through weak references. By default, values are held through soft references.
+     * @return this instance.
+     */
+    public Builder<K> weakValues()
+    {
+      strength=CacheItem.Strength.WEAK;
+      return this;
+    }
+    
+    /**
+     * Hold values through strong references, so that they are only evicted according to the cache bounds
+     * and expiration. By default, values are held through soft references.
+     * @return this instance.
+     */
+    public Builder<K> strongValues()
+    {
+      strength=CacheItem.Strength.STRONG;
+      return this;
+    }
+    
+    /**
+     * Set the maximum number of entries. By default, the number of entries is not bounded.
+     * @param size maximum number of entries.
+     * @return this instance.
+     */
+    public Builder<K> maximumSize(long size)
+    {
+      if(size<0) throw new IllegalArgumentException(Long.toString(size));
+      maximumSize=size;
+      return this;
+    }
+    
+    /**
+     * Set the maximum total weight of the entries. By default, the total weight is not bounded.
+     * @param <K1> key type.
+     * @param weight maximum total weight.
+     * @param w weigher used to compute the weight of each entry.
+     * @return this instance.
+     */
+    @SuppressWarnings("unchecked")
+    public <K1 extends K> Builder<K1> maximumWeight(long weight,Weigher<? super K1> w)
+    {
+      if(weight<0) throw new IllegalArgumentException(Long.toString(weight));
+      Builder<K1> self=(Builder<K1>)this;
+      self.maximumWeight=weight;
+      self.weigher=w;
+      return self;
+    }
+    
+    /**
+     * Set the clock used to get the current time when computing expirations.
+     * @param c clock to use.
+     * @return this instance.
+     */
+    public Builder<K> usingClock(Clock c)
+    {
+      clock=c;
+      return this;
+    }
+    
+    /**
+     * Periodically remove the expired entries and the entries whose value has been garbage-collected from a
+     * background thread, even if the cache is not used anymore. By default, no background sweep is done.
+     * @param period sweep period.
+     * @return this instance.
+     */
+    public Builder<K> sweepEvery(Duration period)
+    {
+      sweepPeriod=period;
+      return this;
+    }
+    
+    /**
+     * Run the background tasks of the cache, including the background storage reads and writes, on the given
+     * executor. By default, background tasks are timed by a single thread shared by all caches, and storages
+     * are called from a shared pool of threads created as needed.
+     * @param e executor. It is not shut down when the cache is closed.
+     * @return this instance.
+     */
+    public Builder<K> executor(ScheduledExecutorService e)
+    {
+      executor=e;
+      return this;
+    }
+    
+    /**
+     * Use a write-behind policy instead of the default write-through policy. Pending writes are flushed to the
+     * storage from a background thread, as soon as the given number of keys are pending or as soon as the
+     * oldest pending write has waited for the given delay.
+     * @param batchSize number of pending keys triggering a flush.
+     * @param delay maximum delay before a pending write is flushed.
+     * @return this instance.
+     */
+    public Builder<K> writeBehind(int batchSize,Duration delay)
+    {
+      if(batchSize<=0) throw new IllegalArgumentException(Integer.toString(batchSize));
+      writeBehindBatchSize=batchSize;
+      writeBehindDelay=delay;
+      return this;
+    }
+    
+    /**
+     * Refresh items ahead of their expiration. When {@link Cache#read(Object[], Storage)} hits an item that has
+     * lived for more than the given fraction of its expiration delay, the current value is returned at once and
+     * the item is reloaded from the storage in the background. By default, items are not refreshed ahead.
+     * @param fraction fraction of the expiration delay, strictly between 0 and 1.
+     * @return this instance.
+     */
+    public Builder<K> refreshAhead(double fraction)
+    {
+      if(!(fraction>0 && fraction<1)) throw new IllegalArgumentException(Double.toString(fraction));
+      refreshAhead=fraction;
+      return this;
+    }
+    
+    /**
+     * Keep serialized copies of the values in direct memory, outside of the Java heap. Values that are not found
+     * on the heap anymore are then read back from that second tier before falling back to the storage. Note that
+     * the direct memory of a JVM is bounded by <code>-XX:MaxDirectMemorySize</code>.
+     * @param capacity capacity of the second tier, in bytes. When it is full, the least recently used values
+     * are dropped from it.
+     * @param s serializer used to store the values.
+     * @return this instance.
+     */
+    public Builder<K> offHeap(long capacity,Serializer s)
+    {
+      if(capacity<OffHeapStore.BLOCK_SIZE) throw new IllegalArgumentException(Long.toString(capacity));
+      offHeapCapacity=capacity;
+      serializer=s;
+      offHeapFile=null;
+      return this;
+    }
+    
+    /**
+     * Keep serialized copies of the values in a memory-mapped file, so that the second tier is only bounded by
+     * the disk space and paged in and out by the OS. The file is scratch space: it is overwritten, and its
+     * content cannot be reused by another cache.
+     * @param file file to map. Created if it does not exist.
+     * @param capacity capacity of the second tier, in bytes. When it is full, the least recently used values
+     * are dropped from it.
+     * @param s serializer used to store the values.
+     * @return this instance.
+     */
+    public Builder<K> memoryMapped(Path file,long capacity,Serializer s)
+    {
+      offHeap(capacity,s);
+      offHeapFile=file;
+      return this;
+    }
+  }
 }
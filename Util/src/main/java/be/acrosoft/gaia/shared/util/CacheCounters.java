@@ -0,0 +1,92 @@
+/**
+ * Copyright Acropolis Software SPRL (https://www.acrosoft.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.acrosoft.gaia.shared.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics counters of a Cache. Counters are striped {@link LongAdder}s, so that recording an event never
+ * takes a lock and does not make concurrent readers contend on a single memory location.
+ */
+class CacheCounters
+{
+  /**
+   * Lookups that found a value.
+   */
+  final LongAdder hits=new LongAdder();
+  /**
+   * Lookups of cachable keys that did not find a value.
+   */
+  final LongAdder misses=new LongAdder();
+  /**
+   * NOT_PRESENT values returned by get.
+   */
+  final LongAdder notPresent=new LongAdder();
+  /**
+   * Storage reads.
+   */
+  final LongAdder loads=new LongAdder();
+  /**
+   * Keys read from the storage.
+   */
+  final LongAdder loadedKeys=new LongAdder();
+  /**
+   * Failed storage reads.
+   */
+  final LongAdder loadFailures=new LongAdder();
+  /**
+   * Time spent reading from the storage, in ns.
+   */
+  final LongAdder loadTime=new LongAdder();
+  /**
+   * Entries removed because their value has been garbage-collected.
+   */
+  final LongAdder collected=new LongAdder();
+  /**
+   * Entries removed because they have expired.
+   */
+  final LongAdder expirations=new LongAdder();
+  /**
+   * Entries evicted.
+   */
+  final LongAdder evictions=new LongAdder();
+  
+  /**
+   * Record a storage read.
+   * @param keys number of keys read.
+   * @param start start time of the read, from {@link System#nanoTime()}.
+   * @param success true if the read succeeded.
+   */
+  void recordLoad(int keys,long start,boolean success)
+  {
+    loadTime.add(System.nanoTime()-start);
+    loads.increment();
+    if(success)
+      loadedKeys.add(keys);
+    else
+      loadFailures.increment();
+  }
+  
+  /**
+   * Take a snapshot of the counters.
+   * @return snapshot.
+   */
+  CacheStats snapshot()
+  {
+    return new CacheStats(hits.sum(),misses.sum(),notPresent.sum(),loads.sum(),loadedKeys.sum(),loadFailures.sum(),
+        loadTime.sum(),collected.sum(),expirations.sum(),evictions.sum());
+  }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright Acropolis Software SPRL (https://www.acrosoft.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.acrosoft.gaia.shared.util;
+
+/**
+ * Least-recently-used eviction order for the Cache, bounded by an entry count and/or a total weight.
+ * This class is not thread-safe: all methods must be called from the cache maintenance lock.
+ * @param <K> key type.
+ */
+class CacheEviction<K>
+{
+  private final long _maximumSize;
+  private final long _maximumWeight;
+  private final CacheItem<K> _head;
+  private long _size;
+  private long _weight;
+
+  /**
+   * Create a new CacheEviction.
+   * @param maximumSize maximum number of entries, or -1 if unbounded.
+   * @param maximumWeight maximum total weight, or -1 if unbounded.
+   */
+  CacheEviction(long maximumSize,long maximumWeight)
+  {
+    _maximumSize=maximumSize;
+    _maximumWeight=maximumWeight;
+    _head=CacheItem.sentinel();
+    _head.accessPrev=_head;
+    _head.accessNext=_head;
+    _size=0;
+    _weight=0;
+  }
+
+  private void unlink(CacheItem<K> item)
+  {
+    item.accessPrev.accessNext=item.accessNext;
+    item.accessNext.accessPrev=item.accessPrev;
+    item.accessPrev=null;
+    item.accessNext=null;
+  }
+
+  private void linkLast(CacheItem<K> item)
+  {
+    item.accessPrev=_head.accessPrev;
+    item.accessNext=_head;
+    _head.accessPrev.accessNext=item;
+    _head.accessPrev=item;
+  }
+
+  /**
+   * Track a newly added item as the most recently used one.
+   * @param item added item.
+   */
+  void add(CacheItem<K> item)
+  {
+    if(item.accessNext!=null) return;
+    linkLast(item);
+    _size++;
+    _weight+=item.weight;
+  }
+
+  /**
+   * Mark the given item as the most recently used one.
+   * @param item accessed item.
+   */
+  void touch(CacheItem<K> item)
+  {
+    if(item.accessNext==null) return;
+    unlink(item);
+    linkLast(item);
+  }
+
+  /**
+   * Stop tracking the given item.
+   * @param item removed item.
+   */
+  void remove(CacheItem<K> item)
+  {
+    if(item.accessNext==null) return;
+    unlink(item);
+    _size--;
+    _weight-=item.weight;
+  }
+
+  /**
+   * Get the next item to evict, if the cache currently exceeds its budget. The returned item is not tracked
+   * anymore.
+   * @return least recently used item, or null if no eviction is needed.
+   */
+  CacheItem<K> nextVictim()
+  {
+    boolean overflow=(_maximumSize>=0 && _size>_maximumSize) || (_maximumWeight>=0 && _weight>_maximumWeight);
+    if(!overflow) return null;
+    CacheItem<K> victim=_head.accessNext;
+    if(victim==_head) return null;
+    remove(victim);
+    return victim;
+  }
+
+  /**
+   * Stop tracking all items.
+   */
+  void clear()
+  {
+    while(_head.accessNext!=_head)
+      remove(_head.accessNext);
+  }
+
+  /**
+   * Get the number of tracked items.
+   * @return number of tracked items.
+   */
+  long getSize()
+  {
+    return _size;
+  }
+
+  /**
+   * Get the total weight of tracked items.
+   * @return total weight.
+   */
+  long getWeight()
+  {
+    return _weight;
+  }
+}
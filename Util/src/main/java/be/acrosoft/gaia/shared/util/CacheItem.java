@@ -0,0 +1,195 @@
+/**
+ * Copyright Acropolis Software SPRL (https://www.acrosoft.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.acrosoft.gaia.shared.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+
+/**
+ * Cache entry. The value and timing fields are immutable, whereas the linkage fields are owned by the
+ * cache policies and must only be accessed from the cache maintenance lock.
+ * @param <K> key type.
+ */
+class CacheItem<K>
+{
+  /**
+   * Value reference strength.
+   */
+  static enum Strength
+  {
+    /**
+     * Values are held through a SoftReference.
+     */
+    SOFT,
+    /**
+     * Values are held through a WeakReference.
+     */
+    WEAK,
+    /**
+     * Values are held directly.
+     */
+    STRONG
+  }
+
+  /**
+   * Soft reference to a value, remembering the item it belongs to so that the item can be removed
+   * once the value has been garbage-collected.
+   */
+  static class SoftValue extends SoftReference<Object>
+  {
+    /**
+     * Item.
+     */
+    final CacheItem<?> item;
+    
+    SoftValue(Object value,ReferenceQueue<Object> queue,CacheItem<?> i)
+    {
+      super(value,queue);
+      item=i;
+    }
+  }
+  
+  /**
+   * Weak reference to a value, remembering the item it belongs to so that the item can be removed
+   * once the value has been garbage-collected.
+   */
+  static class WeakValue extends WeakReference<Object>
+  {
+    /**
+     * Item.
+     */
+    final CacheItem<?> item;
+    
+    WeakValue(Object value,ReferenceQueue<Object> queue,CacheItem<?> i)
+    {
+      super(value,queue);
+      item=i;
+    }
+  }
+  
+  /**
+   * Expiration time value for items that never expire.
+   */
+  static final long NEVER=Long.MAX_VALUE;
+
+  /**
+   * Key.
+   */
+  final K key;
+  /**
+   * Expiration delay, or -1 if the item does not expire.
+   */
+  final long expiration;
+  /**
+   * Time after which the item is expired, in ms, or NEVER.
+   */
+  final long expiresAt;
+  /**
+   * Time after which the item should be refreshed ahead of its expiration, in ms, or NEVER.
+   */
+  final long refreshAt;
+  /**
+   * Weight.
+   */
+  final int weight;
+  /**
+   * Value, or Reference to the value.
+   */
+  private final Object _value;
+  /**
+   * Whether _value is a Reference.
+   */
+  private final boolean _referenced;
+
+  /**
+   * Previous item in access order.
+   */
+  CacheItem<K> accessPrev;
+  /**
+   * Next item in access order.
+   */
+  CacheItem<K> accessNext;
+  /**
+   * Previous item in the timer wheel bucket.
+   */
+  CacheItem<K> wheelPrev;
+  /**
+   * Next item in the timer wheel bucket.
+   */
+  CacheItem<K> wheelNext;
+  /**
+   * Whether this item has been removed from the cache and must not be tracked anymore.
+   */
+  boolean retired;
+
+  /**
+   * Create a new CacheItem.
+   * @param k key.
+   * @param exp expiration delay, or -1 if the item does not expire.
+   * @param expAt time after which the item is expired, or NEVER.
+   * @param refAt time after which the item should be refreshed, or NEVER.
+   * @param v value.
+   * @param strength value reference strength.
+   * @param queue queue receiving the references to garbage-collected values.
+   * @param w weight.
+   */
+  CacheItem(K k,long exp,long expAt,long refAt,Object v,Strength strength,ReferenceQueue<Object> queue,int w)
+  {
+    key=k;
+    expiration=exp;
+    expiresAt=expAt;
+    refreshAt=refAt;
+    weight=w;
+    switch(strength)
+    {
+      case WEAK:
+        _value=new WeakValue(v,queue,this);
+        _referenced=true;
+        break;
+      case SOFT:
+        _value=new SoftValue(v,queue,this);
+        _referenced=true;
+        break;
+      default:
+        _value=v;
+        _referenced=false;
+        break;
+    }
+  }
+
+  /**
+   * Get the value.
+   * @return value, or null if the value has been garbage-collected.
+   */
+  @SuppressWarnings("unchecked")
+  Object get()
+  {
+    if(_referenced) return ((Reference<Object>)_value).get();
+    return _value;
+  }
+
+  /**
+   * Create a list sentinel, which is not an actual cache item.
+   * @param <K> key type.
+   * @return new sentinel.
+   */
+  static <K> CacheItem<K> sentinel()
+  {
+    return new CacheItem<K>(null,-1,NEVER,NEVER,null,Strength.STRONG,null,0);
+  }
+}
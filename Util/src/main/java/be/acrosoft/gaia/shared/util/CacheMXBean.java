@@ -0,0 +1,101 @@
+/**
+ * Copyright Acropolis Software SPRL (https://www.acrosoft.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.acrosoft.gaia.shared.util;
+
+/**
+ * Management interface of a {@link Cache} registered through {@link Cache#registerMBean(String)}. All values
+ * are read from a fresh {@link CacheStats} snapshot.
+ */
+public interface CacheMXBean
+{
+  /**
+   * Get the number of entries currently held by the cache.
+   * @return number of entries.
+   */
+  public int getSize();
+  
+  /**
+   * Get the number of lookups that found a value in cache.
+   * @return hit count.
+   */
+  public long getHitCount();
+  
+  /**
+   * Get the number of lookups of cachable keys that did not find a value in cache.
+   * @return miss count.
+   */
+  public long getMissCount();
+  
+  /**
+   * Get the number of times {@link Cache#get(Object)} returned {@link Cache#NOT_PRESENT}.
+   * @return NOT_PRESENT count.
+   */
+  public long getNotPresentCount();
+  
+  /**
+   * Get the ratio of lookups that found a value in cache.
+   * @return hit rate, between 0 and 1.
+   */
+  public double getHitRate();
+  
+  /**
+   * Get the number of storage reads.
+   * @return load count.
+   */
+  public long getLoadCount();
+  
+  /**
+   * Get the total number of keys read from the storage.
+   * @return loaded key count.
+   */
+  public long getLoadedKeyCount();
+  
+  /**
+   * Get the number of storage reads that failed.
+   * @return load failure count.
+   */
+  public long getLoadFailureCount();
+  
+  /**
+   * Get the average number of keys per storage read.
+   * @return average load size.
+   */
+  public double getAverageLoadSize();
+  
+  /**
+   * Get the average duration of a storage read.
+   * @return average load time, in ns.
+   */
+  public double getAverageLoadTime();
+  
+  /**
+   * Get the number of entries removed because their value has been garbage-collected.
+   * @return collected count.
+   */
+  public long getCollectedCount();
+  
+  /**
+   * Get the number of entries removed because they have expired.
+   * @return expiration count.
+   */
+  public long getExpirationCount();
+  
+  /**
+   * Get the number of entries evicted to keep the cache within its bounds.
+   * @return eviction count.
+   */
+  public long getEvictionCount();
+}
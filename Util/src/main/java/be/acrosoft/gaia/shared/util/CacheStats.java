@@ -0,0 +1,213 @@
+/**
+ * Copyright Acropolis Software SPRL (https://www.acrosoft.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.acrosoft.gaia.shared.util;
+
+/**
+ * Immutable snapshot of the statistics of a {@link Cache}. All counts are cumulative since the cache was created.
+ * Since the counters are updated without any lock, a snapshot taken while the cache is in use is not atomic:
+ * each count is exact, but two counts may not reflect exactly the same instant.
+ */
+public class CacheStats
+{
+  private final long _hitCount;
+  private final long _missCount;
+  private final long _notPresentCount;
+  private final long _loadCount;
+  private final long _loadedKeyCount;
+  private final long _loadFailureCount;
+  private final long _totalLoadTime;
+  private final long _collectedCount;
+  private final long _expirationCount;
+  private final long _evictionCount;
+  
+  /**
+   * Create a new CacheStats.
+   * @param hitCount number of lookups that found a value.
+   * @param missCount number of lookups that did not find a value.
+   * @param notPresentCount number of times {@link Cache#get(Object)} returned {@link Cache#NOT_PRESENT}.
+   * @param loadCount number of storage reads.
+   * @param loadedKeyCount number of keys read from the storage.
+   * @param loadFailureCount number of storage reads that failed.
+   * @param totalLoadTime total time spent reading from the storage, in ns.
+   * @param collectedCount number of entries removed because their value has been garbage-collected.
+   * @param expirationCount number of entries removed because they have expired.
+   * @param evictionCount number of entries evicted to keep the cache within its bounds.
+   */
+  public CacheStats(long hitCount,long missCount,long notPresentCount,long loadCount,long loadedKeyCount,long loadFailureCount,
+      long totalLoadTime,long collectedCount,long expirationCount,long evictionCount)
+  {
+    _hitCount=hitCount;
+    _missCount=missCount;
+    _notPresentCount=notPresentCount;
+    _loadCount=loadCount;
+    _loadedKeyCount=loadedKeyCount;
+    _loadFailureCount=loadFailureCount;
+    _totalLoadTime=totalLoadTime;
+    _collectedCount=collectedCount;
+    _expirationCount=expirationCount;
+    _evictionCount=evictionCount;
+  }
+  
+  /**
+   * Get the number of lookups that found a value in cache.
+   * @return hit count.
+   */
+  public long getHitCount()
+  {
+    return _hitCount;
+  }
+  
+  /**
+   * Get the number of lookups of cachable keys that did not find a value in cache.
+   * @return miss count.
+   */
+  public long getMissCount()
+  {
+    return _missCount;
+  }
+  
+  /**
+   * Get the number of times {@link Cache#get(Object)} returned {@link Cache#NOT_PRESENT}. These lookups are
+   * also counted as misses.
+   * @return NOT_PRESENT count.
+   */
+  public long getNotPresentCount()
+  {
+    return _notPresentCount;
+  }
+  
+  /**
+   * Get the number of lookups.
+   * @return hit count plus miss count.
+   */
+  public long getRequestCount()
+  {
+    return _hitCount+_missCount;
+  }
+  
+  /**
+   * Get the ratio of lookups that found a value in cache.
+   * @return hit rate, between 0 and 1. 1 if there has been no lookup yet.
+   */
+  public double getHitRate()
+  {
+    long requests=getRequestCount();
+    return requests==0?1.0:(double)_hitCount/requests;
+  }
+  
+  /**
+   * Get the number of storage reads done by the cache, including the background refreshes. Each read
+   * is counted once, whatever the number of keys it contains.
+   * @return load count.
+   */
+  public long getLoadCount()
+  {
+    return _loadCount;
+  }
+  
+  /**
+   * Get the total number of keys read from the storage.
+   * @return loaded key count.
+   */
+  public long getLoadedKeyCount()
+  {
+    return _loadedKeyCount;
+  }
+  
+  /**
+   * Get the number of storage reads that failed.
+   * @return load failure count.
+   */
+  public long getLoadFailureCount()
+  {
+    return _loadFailureCount;
+  }
+  
+  /**
+   * Get the total time spent reading from the storage, including failed reads.
+   * @return total load time, in ns.
+   */
+  public long getTotalLoadTime()
+  {
+    return _totalLoadTime;
+  }
+  
+  /**
+   * Get the average number of keys per storage read.
+   * @return average load size, or 0 if there has been no load yet.
+   */
+  public double getAverageLoadSize()
+  {
+    return _loadCount==0?0.0:(double)_loadedKeyCount/_loadCount;
+  }
+  
+  /**
+   * Get the average duration of a storage read.
+   * @return average load time, in ns, or 0 if there has been no load yet.
+   */
+  public double getAverageLoadTime()
+  {
+    return _loadCount==0?0.0:(double)_totalLoadTime/_loadCount;
+  }
+  
+  /**
+   * Get the number of entries removed because their value has been garbage-collected.
+   * @return collected count.
+   */
+  public long getCollectedCount()
+  {
+    return _collectedCount;
+  }
+  
+  /**
+   * Get the number of entries removed because they have expired.
+   * @return expiration count.
+   */
+  public long getExpirationCount()
+  {
+    return _expirationCount;
+  }
+  
+  /**
+   * Get the number of entries evicted to keep the cache within its maximum size or weight.
+   * @return eviction count.
+   */
+  public long getEvictionCount()
+  {
+    return _evictionCount;
+  }
+  
+  /**
+   * Get the difference between this snapshot and an older one.
+   * @param older older snapshot of the same cache.
+   * @return statistics of the period between both snapshots.
+   */
+  public CacheStats minus(CacheStats older)
+  {
+    return new CacheStats(_hitCount-older._hitCount,_missCount-older._missCount,_notPresentCount-older._notPresentCount,
+        _loadCount-older._loadCount,_loadedKeyCount-older._loadedKeyCount,_loadFailureCount-older._loadFailureCount,
+        _totalLoadTime-older._totalLoadTime,_collectedCount-older._collectedCount,_expirationCount-older._expirationCount,
+        _evictionCount-older._evictionCount);
+  }
+  
+  @Override
+  public String toString()
+  {
+    return "CacheStats[hits="+_hitCount+",misses="+_missCount+",notPresent="+_notPresentCount+",loads="+_loadCount //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+        +",loadedKeys="+_loadedKeyCount+",loadFailures="+_loadFailureCount+",loadTime="+_totalLoadTime //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        +"ns,collected="+_collectedCount+",expirations="+_expirationCount+",evictions="+_evictionCount+"]"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+  }
+}
@@ -0,0 +1,632 @@
+/**
+ * Copyright Acropolis Software SPRL (https://www.acrosoft.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.acrosoft.gaia.shared.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.text.CollationElementIterator;
+import java.text.Collator;
+import java.text.RuleBasedCollator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collation tables used by CollatorUtil for a given locale: the mapping from primary orders to primitive characters,
+ * the secondary and tertiary orders identifying spaces and tabs, and the direct cleanup of Latin-1 characters. See
+ * CollatorUtil for the cleanup rules.
+ * <p>
+ * Computing a table means collating thousands of code points, which takes a noticeable time. Tables are therefore
+ * computed in parallel, and can be saved to a cache directory so that the next JVM can load them with a single
+ * mapped read. Cache files are keyed by locale and Java runtime version, since the collation rules come with the
+ * runtime. The cache is disabled unless the gaia.collator.cache system property gives its directory. Since the
+ * content of cache files is trusted, the directory and the files must belong to the current user and must not be
+ * writable by other users, otherwise they are ignored.
+ * <p>
+ * Instances of this class are immutable and thread-safe, each thread collating with its own collator.
+ */
+class CollationTable
+{
+  private static final Logger LOGGER=Logger.getLogger(CollationTable.class.getName());
+
+  /**
+   * Cache directory system property. The cache is disabled if it is not set.
+   */
+  static final String CACHE_PROPERTY="gaia.collator.cache"; //$NON-NLS-1$
+
+  private static final int MAGIC=0x47434F4C;
+  private static final int FORMAT=2;
+
+  /**
+   * From experience and testing, no code point above a certain range will be considered "primitive" using our
+   * approach, and we really care about start-up speed.
+   */
+  private static final int MAX_POINT=0x02FFF; //Instead of Character.MAX_CODE_POINT
+
+  /**
+   * Number of code points handled by each fork/join task.
+   */
+  private static final int CHUNK=1024;
+
+  /**
+   * Number of characters covered by the direct lookup table.
+   */
+  private static final int LATIN1=256;
+
+  /**
+   * Locale.
+   */
+  final Locale locale;
+  /**
+   * Primitive BMP character for each primary order, or 0.
+   */
+  final char[] primaryToChar;
+  /**
+   * Secondary and tertiary orders of a space.
+   */
+  final int[] whiteSpace;
+  /**
+   * Secondary and tertiary orders of a tab.
+   */
+  final int[] tab;
+  /**
+   * Cleaned-up string of each Latin-1 character, or null if Latin-1 strings cannot be cleaned up character per
+   * character with this locale.
+   */
+  final String[] latin1;
+
+  /**
+   * Collation iterator of each thread, collators and iterators not being thread-safe.
+   */
+  private final ThreadLocal<CollationElementIterator> _iterators;
+
+  private CollationTable(Locale l,char[] p,int[] w,int[] t,String[] l1)
+  {
+    locale=l;
+    primaryToChar=p;
+    whiteSpace=w;
+    tab=t;
+    latin1=l1;
+    _iterators=ThreadLocal.withInitial(()->newCollator(locale).getCollationElementIterator("")); //$NON-NLS-1$
+  }
+
+  /**
+   * Cleanup the given string, as described in CollatorUtil.cleanup.
+   * @param s input string.
+   * @param out builder receiving the cleaned-up string.
+   */
+  void cleanup(String s,StringBuilder out)
+  {
+    String[] direct=latin1;
+    if(direct!=null)
+    {
+      int len=s.length();
+      int i=0;
+      while(i<len && s.charAt(i)<LATIN1)
+        i++;
+      if(i==len)
+      {
+        for(i=0;i<len;i++)
+          out.append(direct[s.charAt(i)]);
+        return;
+      }
+    }
+
+    CollationElementIterator it=_iterators.get();
+    it.setText(s);
+    collate(s,it,out);
+  }
+
+  /**
+   * Cleanup the given string by collating it.
+   * @param s input string.
+   * @param it collation iterator set on the input string.
+   * @param out builder receiving the cleaned-up string.
+   */
+  private void collate(String s,CollationElementIterator it,StringBuilder out)
+  {
+    int offset=it.getOffset();
+    int v=it.next();
+
+    while(v!=CollationElementIterator.NULLORDER)
+    {
+      //Get the primary order of this element.
+      int prim=CollationElementIterator.primaryOrder(v);
+      if(prim>0)
+      {
+        char c=0;
+        if(prim<primaryToChar.length)
+        {
+          //The primary characteristic of this element is within the mapping table.
+          c=primaryToChar[prim];
+        }
+
+        if(c>0)
+        {
+          //We have a mapping to a primitive BMP character, let's use it.
+          out.append(c);
+        }
+        else
+        {
+          //There is a primary order, but we have no known mapping to a primitive BMP character. We'll
+          //just copy from the input string.
+          int len=it.getOffset()-offset;
+          if(offset+len<=s.length())
+          {
+            out.append(s,offset,offset+len);
+          }
+        }
+      }
+      else
+      {
+        //This element does not have any primary order characteristic, probably a whitespace or something.
+
+        int sec=CollationElementIterator.secondaryOrder(v);
+        int tier=CollationElementIterator.tertiaryOrder(v);
+        if(whiteSpace[0]==sec && whiteSpace[1]==tier)
+        {
+          out.append(' ');
+        }
+        else if(tab[0]==sec && tab[1]==tier)
+        {
+          out.append(' ');
+        }
+        else
+        {
+          //Skip this character.
+        }
+      }
+      offset=it.getOffset();
+      v=it.next();
+    }
+  }
+
+  /**
+   * Create a collator configured for cleaning up strings.
+   * @param locale locale.
+   * @return new collator.
+   */
+  static RuleBasedCollator newCollator(Locale locale)
+  {
+    RuleBasedCollator col=(RuleBasedCollator)Collator.getInstance(locale);
+    col.setDecomposition(Collator.FULL_DECOMPOSITION);
+    col.setStrength(Collator.TERTIARY);
+    return col;
+  }
+
+  /**
+   * Get the table of the given locale, from the cache directory if possible, otherwise by computing it.
+   * @param locale locale.
+   * @return table.
+   */
+  static CollationTable load(Locale locale)
+  {
+    Path file=getCacheFile(locale);
+    if(file!=null)
+    {
+      try
+      {
+        if(!prepareDirectory(file.getParent()))
+        {
+          LOGGER.warning("Ignoring collation table cache "+file.getParent()+", which is not private to the current user"); //$NON-NLS-1$ //$NON-NLS-2$
+          file=null;
+        }
+      }
+      catch(IOException|RuntimeException ex)
+      {
+        LOGGER.log(Level.FINE,"Unable to create collation table cache "+file.getParent(),ex); //$NON-NLS-1$
+        file=null;
+      }
+    }
+    if(file!=null && Files.isRegularFile(file))
+    {
+      try
+      {
+        if(isPrivate(file))
+        {
+          CollationTable table=read(file,locale);
+          if(table!=null) return table;
+        }
+      }
+      catch(IOException|RuntimeException ex)
+      {
+        LOGGER.log(Level.FINE,"Unable to read collation table "+file,ex); //$NON-NLS-1$
+      }
+    }
+
+    CollationTable table=compute(locale);
+    if(file!=null)
+    {
+      try
+      {
+        write(file,table);
+      }
+      catch(IOException|RuntimeException ex)
+      {
+        LOGGER.log(Level.FINE,"Unable to write collation table "+file,ex); //$NON-NLS-1$
+      }
+    }
+    return table;
+  }
+
+  /**
+   * Create the given cache directory if needed, only accessible to the current user, and check that it is private.
+   * @param dir cache directory.
+   * @return true if the directory can be used, false if it is not private to the current user.
+   * @throws IOException in case of I/O error.
+   */
+  private static boolean prepareDirectory(Path dir) throws IOException
+  {
+    if(!Files.isDirectory(dir))
+    {
+      if(dir.getFileSystem().supportedFileAttributeViews().contains("posix")) //$NON-NLS-1$
+        Files.createDirectories(dir,PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------"))); //$NON-NLS-1$
+      else
+        Files.createDirectories(dir);
+    }
+    return isPrivate(dir);
+  }
+
+  /**
+   * Check whether the given path belongs to the current user and cannot be written by other users. Always true on
+   * file systems without POSIX permissions.
+   * @param path file or directory.
+   * @return true if the path is private to the current user.
+   * @throws IOException in case of I/O error.
+   */
+  private static boolean isPrivate(Path path) throws IOException
+  {
+    PosixFileAttributeView view=Files.getFileAttributeView(path,PosixFileAttributeView.class);
+    if(view==null) return true;
+    PosixFileAttributes attributes=view.readAttributes();
+    if(!attributes.owner().getName().equals(System.getProperty("user.name"))) return false; //$NON-NLS-1$
+    Set<PosixFilePermission> permissions=attributes.permissions();
+    return !permissions.contains(PosixFilePermission.GROUP_WRITE) && !permissions.contains(PosixFilePermission.OTHERS_WRITE);
+  }
+
+  private static String getRuntimeVersion()
+  {
+    return Runtime.version().toString();
+  }
+
+  /**
+   * Get the cache file of the given locale.
+   * @param locale locale.
+   * @return cache file, or null if the cache is disabled.
+   */
+  static Path getCacheFile(Locale locale)
+  {
+    String dir=System.getProperty(CACHE_PROPERTY);
+    if(dir==null || dir.isEmpty()) return null;
+    String name=locale.toLanguageTag()+"-"+getRuntimeVersion()+"-"+FORMAT+".bin"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    return Paths.get(dir,name.replaceAll("[^A-Za-z0-9._-]","_")); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  /**
+   * Compute the table of the given locale.
+   * <p>
+   * So how does all this actually work? The RuleBasedCollator will return an iteration of components for each
+   * character in a string, but the value of these components is arbitrary and does not immediately map to a
+   * particular code point. So for instance, the character 'A' could be mapped to 12345, but this 12345 value is
+   * meaningless per se. However both 'a' and 'A' would share the same "primary order" value, whereas 'A' would also
+   * have secondary or tertiary order values (basically, the uppercase characteristic). So what we do here is that
+   * we will scan all the code points and will identify the ones that consist only of a primary order characteristic
+   * (i.e. "primitive" characters), building a mapping table of "primary order characteristic value to code point".
+   * <p>
+   * Strictly speaking, the table we're building gives BMP characters only, whereas the proper way should be to
+   * target an int[] instead of a char[], but in practice such "primitive" characters only exist within the BMP
+   * range and this gives much better performance when building the resulting string.
+   * @param locale locale.
+   * @return new table.
+   */
+  static CollationTable compute(Locale locale)
+  {
+    //Code points are collated in parallel, each task with its own collator since collators are not thread-safe.
+    int[] primitives=new int[MAX_POINT+1];
+    ForkJoinPool.commonPool().invoke(new ScanTask(locale,primitives,0,MAX_POINT+1));
+
+    //Now that we know the highest primitive value, we can size our array accordingly. Of course we could be using
+    //a Map instead, but an array is much faster.
+    int maxPrim=0;
+    for(int prim:primitives)
+      maxPrim=Math.max(maxPrim,prim);
+
+    char[] primaryToChar=new char[maxPrim+1];
+    for(int i=0;i<=MAX_POINT;i++)
+    {
+      int prim=primitives[i];
+      //In the unlikely situation where two code points would be considered primitive for the same primary
+      //order characteristic, we basically only keep the lowest point.
+      if(prim>0 && primaryToChar[prim]==0)
+        primaryToChar[prim]=(char)i;
+    }
+
+    //Special cases for spaces and tabs.
+    CollationElementIterator it=newCollator(locale).getCollationElementIterator(" \t"); //$NON-NLS-1$
+    int v=it.next();
+    int[] whiteSpace={CollationElementIterator.secondaryOrder(v),CollationElementIterator.tertiaryOrder(v)};
+    v=it.next();
+    int[] tab={CollationElementIterator.secondaryOrder(v),CollationElementIterator.tertiaryOrder(v)};
+
+    CollationTable table=new CollationTable(locale,primaryToChar,whiteSpace,tab,null);
+    return new CollationTable(locale,primaryToChar,whiteSpace,tab,table.computeLatin1());
+  }
+
+  /**
+   * Compute the cleaned-up string of each Latin-1 character. The direct lookup is only valid if no Latin-1
+   * character is affected by its neighbors, as it would be with contractions: this is checked on all pairs of
+   * Latin-1 characters.
+   * @return cleaned-up string of each Latin-1 character, or null if the lookup is not valid for this locale.
+   */
+  private String[] computeLatin1()
+  {
+    String[] direct=new String[LATIN1];
+    CollationElementIterator it=newCollator(locale).getCollationElementIterator(""); //$NON-NLS-1$
+    StringBuilder out=new StringBuilder();
+    for(int c=0;c<LATIN1;c++)
+    {
+      String s=String.valueOf((char)c);
+      it.setText(s);
+      out.setLength(0);
+      collate(s,it,out);
+      direct[c]=out.toString();
+    }
+
+    boolean[] valid={true};
+    ForkJoinPool.commonPool().invoke(new PairTask(direct,valid,0,LATIN1));
+    return valid[0]?direct:null;
+  }
+
+  /**
+   * Fork/join task checking that pairs of Latin-1 characters starting with a given range of characters are cleaned
+   * up character per character.
+   */
+  private class PairTask extends RecursiveAction
+  {
+    private static final long serialVersionUID=1L;
+
+    private transient String[] _direct;
+    private transient boolean[] _valid;
+    private int _from;
+    private int _to;
+
+    /**
+     * Create a new PairTask.
+     * @param direct cleaned-up string of each Latin-1 character.
+     * @param valid single-item array set to false when a pair is not cleaned up character per character.
+     * @param from first character of the range, inclusive.
+     * @param to last character of the range, exclusive.
+     */
+    public PairTask(String[] direct,boolean[] valid,int from,int to)
+    {
+      _direct=direct;
+      _valid=valid;
+      _from=from;
+      _to=to;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if(_to-_from>16)
+      {
+        int middle=(_from+_to)>>>1;
+        invokeAll(new PairTask(_direct,_valid,_from,middle),new PairTask(_direct,_valid,middle,_to));
+        return;
+      }
+
+      CollationElementIterator it=newCollator(locale).getCollationElementIterator(""); //$NON-NLS-1$
+      StringBuilder out=new StringBuilder();
+      char[] pair=new char[2];
+      for(int a=_from;a<_to;a++)
+      {
+        pair[0]=(char)a;
+        for(int b=0;b<LATIN1;b++)
+        {
+          pair[1]=(char)b;
+          String s=new String(pair);
+          it.setText(s);
+          out.setLength(0);
+          collate(s,it,out);
+          if(out.length()!=_direct[a].length()+_direct[b].length() || !out.toString().equals(_direct[a]+_direct[b]))
+          {
+            _valid[0]=false;
+            return;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Fork/join task finding the primary order of the primitive code points of a range.
+   */
+  private static class ScanTask extends RecursiveAction
+  {
+    private static final long serialVersionUID=1L;
+
+    private transient Locale _locale;
+    private transient int[] _primitives;
+    private int _from;
+    private int _to;
+
+    /**
+     * Create a new ScanTask.
+     * @param locale locale.
+     * @param primitives array receiving the primary order of each primitive code point, 0 for the others.
+     * @param from first code point, inclusive.
+     * @param to last code point, exclusive.
+     */
+    public ScanTask(Locale locale,int[] primitives,int from,int to)
+    {
+      _locale=locale;
+      _primitives=primitives;
+      _from=from;
+      _to=to;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if(_to-_from>CHUNK)
+      {
+        int middle=(_from+_to)>>>1;
+        invokeAll(new ScanTask(_locale,_primitives,_from,middle),new ScanTask(_locale,_primitives,middle,_to));
+        return;
+      }
+
+      RuleBasedCollator col=newCollator(_locale);
+      CollationElementIterator it=col.getCollationElementIterator(""); //$NON-NLS-1$
+      for(int i=_from;i<_to;i++)
+      {
+        it.setText(new String(Character.toChars(i)));
+        int v=it.next();
+
+        //Will this code point have only one component, and this unique component has only a primary order
+        //characteristic with no secondary nor tertiary orders? That's what we call a "primitive" character.
+        if(v!=CollationElementIterator.NULLORDER && it.next()==CollationElementIterator.NULLORDER)
+        {
+          int prim=CollationElementIterator.primaryOrder(v);
+          int sec=CollationElementIterator.secondaryOrder(v);
+          int tier=CollationElementIterator.tertiaryOrder(v);
+          if(prim>0 && sec==0 && tier==0)
+            _primitives[i]=prim;
+        }
+      }
+    }
+  }
+
+  /**
+   * Read a table from a cache file.
+   * @param file cache file.
+   * @param locale expected locale.
+   * @return table, or null if the file does not hold a table for the given locale and runtime.
+   * @throws IOException in case of I/O error.
+   */
+  private static CollationTable read(Path file,Locale locale) throws IOException
+  {
+    try(FileChannel channel=FileChannel.open(file,StandardOpenOption.READ))
+    {
+      MappedByteBuffer buffer=channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
+      if(buffer.getInt()!=MAGIC || buffer.getInt()!=FORMAT) return null;
+      if(!readString(buffer).equals(locale.toLanguageTag())) return null;
+      if(!readString(buffer).equals(getRuntimeVersion())) return null;
+      int[] whiteSpace={buffer.getInt(),buffer.getInt()};
+      int[] tab={buffer.getInt(),buffer.getInt()};
+      char[] primaryToChar=new char[buffer.getInt()];
+      buffer.asCharBuffer().get(primaryToChar);
+      buffer.position(buffer.position()+primaryToChar.length*2);
+      String[] latin1=null;
+      if(buffer.get()!=0)
+      {
+        latin1=new String[LATIN1];
+        for(int i=0;i<LATIN1;i++)
+        {
+          char[] chars=new char[buffer.get()&0xFF];
+          for(int j=0;j<chars.length;j++)
+            chars[j]=buffer.getChar();
+          latin1[i]=new String(chars);
+        }
+      }
+      return new CollationTable(locale,primaryToChar,whiteSpace,tab,latin1);
+    }
+  }
+
+  private static String readString(ByteBuffer buffer)
+  {
+    byte[] bytes=new byte[buffer.getShort()];
+    buffer.get(bytes);
+    return new String(bytes,StandardCharsets.UTF_8);
+  }
+
+  private static void writeString(ByteBuffer buffer,String s)
+  {
+    byte[] bytes=s.getBytes(StandardCharsets.UTF_8);
+    buffer.putShort((short)bytes.length);
+    buffer.put(bytes);
+  }
+
+  /**
+   * Write a table to a cache file. The file is written next to its final location then moved, so that concurrent
+   * JVMs never see a partial file.
+   * @param file cache file.
+   * @param table table.
+   * @throws IOException in case of I/O error.
+   */
+  private static void write(Path file,CollationTable table) throws IOException
+  {
+    int size=1024+table.primaryToChar.length*2;
+    if(table.latin1!=null)
+    {
+      for(String s:table.latin1)
+        size+=1+s.length()*2;
+    }
+    ByteBuffer buffer=ByteBuffer.allocate(size);
+    buffer.putInt(MAGIC);
+    buffer.putInt(FORMAT);
+    writeString(buffer,table.locale.toLanguageTag());
+    writeString(buffer,getRuntimeVersion());
+    buffer.putInt(table.whiteSpace[0]);
+    buffer.putInt(table.whiteSpace[1]);
+    buffer.putInt(table.tab[0]);
+    buffer.putInt(table.tab[1]);
+    buffer.putInt(table.primaryToChar.length);
+    buffer.asCharBuffer().put(table.primaryToChar);
+    buffer.position(buffer.position()+table.primaryToChar.length*2);
+    buffer.put((byte)(table.latin1==null?0:1));
+    if(table.latin1!=null)
+    {
+      for(String s:table.latin1)
+      {
+        buffer.put((byte)s.length());
+        for(int i=0;i<s.length();i++)
+          buffer.putChar(s.charAt(i));
+      }
+    }
+    buffer.flip();
+
+    Files.createDirectories(file.getParent());
+    Path tmp=Files.createTempFile(file.getParent(),file.getFileName().toString(),".tmp"); //$NON-NLS-1$
+    try
+    {
+      try(FileChannel channel=FileChannel.open(tmp,StandardOpenOption.WRITE))
+      {
+        while(buffer.hasRemaining())
+          channel.write(buffer);
+      }
+      Files.move(tmp,file,StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+    }
+    finally
+    {
+      Files.deleteIfExists(tmp);
+    }
+  }
+}
@@ -15,107 +15,103 @@
  */
 package be.acrosoft.gaia.shared.util;
 
-import java.text.CollationElementIterator;
-import java.text.Collator;
-import java.text.RuleBasedCollator;
+import java.util.Arrays;
+import java.util.Locale;
 
 /**
  * Provides utilities on top of java.text.Collator.
+ * <p>
+ * The collation tables used by these utilities are computed on first use. If the gaia.collator.cache system
+ * property gives a cache directory, they are also saved there, so that the next runs load them instead of computing
+ * them again. The directory must only be writable by the current user, otherwise it is ignored.
+ * <p>
+ * Strings are cleaned up according to the collation rules of the default locale, or of an explicit locale. The
+ * tables of explicit locales are kept in a bounded cache.
  */
 public class CollatorUtil
 {
-  private static char[] _primaryToChar=null;
-  private static int[] _whiteSpace=new int[2];
-  private static int[] _tab=new int[2];
+  /**
+   * Maximum number of locales whose collation table is kept in memory, besides the default locale.
+   */
+  private static final int MAX_LOCALES=32;
+
+  private static volatile CollationTable _table=null;
   private static Object _lock=new Object();
+  private static final Cache<Locale> _tables=Cache.builder().strongValues().maximumSize(MAX_LOCALES).build();
+
+  /**
+   * Storage loading the collation table of each locale. Tables are computed from the collation rules, so the
+   * storage is read-only.
+   */
+  private static class TableStorage implements Storage<Locale>
+  {
+    /**
+     * Create a new TableStorage.
+     */
+    public TableStorage()
+    {
+    }
+
+    @Override
+    public Object[] read(Locale[] key)
+    {
+      Object[] ans=new Object[key.length];
+      for(int i=0;i<key.length;i++)
+        ans[i]=CollationTable.load(key[i]);
+      return ans;
+    }
+
+    @Override
+    public void write(Locale[] key,Object[] value)
+    {
+      //Nothing to write: the tables are always computed from the collation rules.
+    }
+
+    @Override
+    public boolean cachable(Locale key)
+    {
+      return true;
+    }
+
+    @Override
+    public long getExpiration(Locale key)
+    {
+      return -1;
+    }
+  }
+
+  private static final TableStorage STORAGE=new TableStorage();
   
   /**
-   * So how does all this actually work? The RuleBasedCollator will return an iteration of components for each character
-   * in a string, but the value of these components is arbitrary and does not immediately map to a particular code point.
-   * So for instance, the character 'A' could be mapped to 12345, but this 12345 value is meaningless per se. However
-   * both 'a' and 'A' would share the same "primary order" value, whereas 'A' would also have secondary or tertiary
-   * order values (basically, the uppercase characteristic). So what we do here is that we will scan all the code points
-   * and will identify the ones that consist only of a primary order characteristic (i.e. "primitive" characters),
-   * building a mapping table of "primary order characteristic value to code point".
-   * <p>
-   * Strictly speaking, the table we're building gives BMP characters only, whereas the proper way should be to target
-   * an int[] instead of a char[], but in practice such "primitive" characters only exist within the BMP range and
-   * this gives much better performance when building the resulting string.
+   * Get the collation table of the default locale, loading it on first use.
+   * @return collation table.
    */
-  private static void computeTable()
+  private static CollationTable getTable()
   {
+    CollationTable table=_table;
+    if(table!=null)
+      return table;
     synchronized(_lock)
     {
-      if(_primaryToChar!=null)
-        return;
-      
-      RuleBasedCollator col=(RuleBasedCollator)Collator.getInstance();
-      col.setDecomposition(Collator.FULL_DECOMPOSITION);
-      col.setStrength(Collator.TERTIARY);
-      
-      //From experience and testing, no code point above a certain range will be considered "primitive" using our
-      //approach, and we really care about start-up speed.
-      int maxPoint = 0x02FFF; //Instead of Character.MAX_CODE_POINT
-      
-      //First we need to find out which is the highest possible primitive value so that we can size our array
-      //accordingly. Of course we could be using a Map instead, but an array is much faster.
-      
-      int maxPrim=0;
-      for(int i=0;i<=maxPoint;i++)
-      {
-        CollationElementIterator it=col.getCollationElementIterator(new String(Character.toChars(i)));
-        int v=it.next();
-        
-        //Will this code point have only one component, and this unique component has only a primary order
-        //characteristic with no secondary nor tertiary orders? That's what we call a "primitive" character.
-        if(v!=CollationElementIterator.NULLORDER && it.next()==CollationElementIterator.NULLORDER)
-        {
-          int prim=CollationElementIterator.primaryOrder(v);
-          int sec=CollationElementIterator.secondaryOrder(v);
-          int tier=CollationElementIterator.tertiaryOrder(v);
-          if(prim>maxPrim && sec==0 && tier==0)
-          {
-            maxPrim=prim;
-          }
-        }
-      }
-      
-      //Now we can create our table.
-      _primaryToChar=new char[maxPrim+1];
-      for(int i=0;i<=maxPoint;i++)
-      {
-        CollationElementIterator it=col.getCollationElementIterator(new String(Character.toChars(i)));
-        int v=it.next();
-
-        //Will this code point have only one component, and this unique component has only a primary order
-        //characteristic with no secondary nor tertiary orders? That's what we call a "primitive" character.
-        if(v!=CollationElementIterator.NULLORDER && it.next()==CollationElementIterator.NULLORDER)
-        {
-          int prim=CollationElementIterator.primaryOrder(v);
-          int sec=CollationElementIterator.secondaryOrder(v);
-          int tier=CollationElementIterator.tertiaryOrder(v);
-          if(prim>0 && prim<_primaryToChar.length && sec==0 && tier==0)
-          {
-            //In the unlikely situation where two code points would be considered primitive for the same primary
-            //order characteristic, we basically only keep the lowest point.
-            if(_primaryToChar[prim]==0)
-            {
-              _primaryToChar[prim]=(char)i;
-            }
-          }
-        }
-      }
-      
-      //Special cases for spaces and tabs.
-      CollationElementIterator it=col.getCollationElementIterator(" \t"); //$NON-NLS-1$
-      int v=it.next();
-      _whiteSpace[0]=CollationElementIterator.secondaryOrder(v);
-      _whiteSpace[1]=CollationElementIterator.tertiaryOrder(v);
-      v=it.next();
-      _tab[0]=CollationElementIterator.secondaryOrder(v);
-      _tab[1]=CollationElementIterator.tertiaryOrder(v);
+      if(_table==null)
+        _table=CollationTable.load(Locale.getDefault());
+      return _table;
     }
   }
+
+  /**
+   * Get the collation table of the given locale, loading it on first use. Tables of different locales are loaded
+   * concurrently, whereas threads needing the table of the same locale wait for a single load.
+   * @param locale locale.
+   * @return collation table.
+   */
+  private static CollationTable getTable(Locale locale)
+  {
+    CollationTable table=_table;
+    if(table!=null && table.locale.equals(locale))
+      return table;
+    return (CollationTable)_tables.read(new Locale[]{locale},STORAGE)[0];
+  }
   
   /**
    * Cleanup the given string by removing non-primary characteristics where possible, in order to get an output
@@ -130,74 +126,79 @@ public class CollatorUtil
    * </ul>
    * The resulting string can be shorter, of the same length or longer than the input string.
    * Codepoints above BMP are supported, but nothing much will happen outside of BMP and SMP. Characters from other planes will remain mostly unaffected.
+   * <p>
+   * This method is thread-safe. Strings made of Latin-1 characters only are cleaned up through a direct lookup table
+   * whenever the locale allows it, other strings are collated with a collator dedicated to the calling thread.
    * @param s input string.
    * @return cleaned-up string.
    */
   public static String cleanup(String s)
   {
-    computeTable();
+    CollationTable table=getTable();
     if(s==null)
       return null;
-    
-    StringBuilder ans=new StringBuilder();
-    RuleBasedCollator col=(RuleBasedCollator)Collator.getInstance();
-    col.setDecomposition(Collator.FULL_DECOMPOSITION);
-    col.setStrength(Collator.TERTIARY);
-    
-    CollationElementIterator it=col.getCollationElementIterator(s);
-    int offset=it.getOffset();
-    int v=it.next();
-    
-    while(v!=CollationElementIterator.NULLORDER)
-    {
-      //Get the primary order of this element.
-      int prim=CollationElementIterator.primaryOrder(v);
-      if(prim>0)
-      {
-        char c=0;
-        if(prim<_primaryToChar.length)
-        {
-          //The primary characteristic of this element is within the mapping table.
-          c=_primaryToChar[prim];
-        }
-        
-        if(c>0)
-        {
-          //We have a mapping to a primitive BMP character, let's use it.
-          ans.append(c);
-        }
-        else
-        {
-          //There is a primary order, but we have no known mapping to a primitive BMP character. We'll
-          //just copy from the input string.
-          int len=it.getOffset()-offset;
-          if(offset+len<=s.length())
-          {
-            ans.append(s.substring(offset,offset+len));
-          }
-        }
-      }
-      else
-      {
-        //This element does not have any primary order characteristic, probably a whitespace or something.
-        
-        if(_whiteSpace[0]==CollationElementIterator.secondaryOrder(v) && _whiteSpace[1]==CollationElementIterator.tertiaryOrder(v))
-        {
-          ans.append(" "); //$NON-NLS-1$
-        }
-        else if(_tab[0]==CollationElementIterator.secondaryOrder(v) && _tab[1]==CollationElementIterator.tertiaryOrder(v))
-        {
-          ans.append(" "); //$NON-NLS-1$
-        }
-        else
-        {
-          //Skip this character.
-        }
-      }
-      offset=it.getOffset();
-      v=it.next();
-    }
-    
+
+    StringBuilder ans=new StringBuilder(s.length());
+    table.cleanup(s,ans);
     return ans.toString();
   }
+
+  /**
+   * Cleanup the given string as described in cleanup(String), using the collation rules of the given locale
+   * instead of the default locale. The tables of the most recently used locales are kept in memory.
+   * @param s input string.
+   * @param locale locale.
+   * @return cleaned-up string.
+   */
+  public static String cleanup(String s,Locale locale)
+  {
+    if(s==null)
+      return null;
+
+    StringBuilder ans=new StringBuilder(s.length());
+    getTable(locale).cleanup(s,ans);
+    return ans.toString();
+  }
+
+  /**
+   * Cleanup the given string as described in cleanup(String,Locale), appending the result to the given builder.
+   * @param s input string. Nothing is appended if null.
+   * @param locale locale.
+   * @param out builder receiving the cleaned-up string.
+   * @return out.
+   */
+  public static StringBuilder cleanup(String s,Locale locale,StringBuilder out)
+  {
+    if(s!=null)
+      getTable(locale).cleanup(s,out);
+    return out;
+  }
+
+  /**
+   * Cleanup the given string as described in cleanup(String), appending the result to the given builder. Reusing
+   * the same builder across calls avoids allocating any intermediate string.
+   * @param s input string. Nothing is appended if null.
+   * @param out builder receiving the cleaned-up string.
+   * @return out.
+   */
+  public static StringBuilder cleanup(String s,StringBuilder out)
+  {
+    CollationTable table=getTable();
+    if(s!=null)
+      table.cleanup(s,out);
+    return out;
+  }
+
+  /**
+   * Cleanup all the given strings as described in cleanup(String), in parallel.
+   * @param s input strings, possibly containing null values.
+   * @return cleaned-up strings, in the same order as the input strings.
+   */
+  public static String[] cleanupAll(String[] s)
+  {
+    getTable();
+    String[] ans=new String[s.length];
+    Arrays.parallelSetAll(ans,i->cleanup(s[i]));
+    return ans;
+  }
 }
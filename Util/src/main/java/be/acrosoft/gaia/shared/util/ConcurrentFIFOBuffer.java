@@ -0,0 +1,668 @@
+/**
+ * Copyright Acropolis Software SPRL (https://www.acrosoft.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.acrosoft.gaia.shared.util;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Lock-free FIFO cyclic buffer for one producer thread and one consumer thread, with the same typed API as
+ * {@link FIFOBuffer}.<br/>
+ * Unlike FIFOBuffer, the capacity is fixed and allocated up front. The producer and the consumer each own a
+ * sequence counter, the total number of bytes written and read so far, and only publish it once the bytes
+ * have been copied, so that no lock is ever needed. Both counters are padded to live on separate cache lines,
+ * and each side caches the last value it has seen of the other side's counter, so that the shared counters are
+ * only read again when the buffer looks full or empty.<br/>
+ * Methods are split between the producer and the consumer: the write methods must only be called from the
+ * producer thread, and the read, peek, remove and clear methods from the consumer thread. The size and free
+ * space can be queried from any thread, but are only a snapshot.
+ */
+public class ConcurrentFIFOBuffer
+{
+  /**
+   * Padding laid out before the sequence value, superclass fields coming first.
+   */
+  @SuppressWarnings("unused")
+  private static class SequencePadding
+  {
+    private long _p1,_p2,_p3,_p4,_p5,_p6,_p7;
+  }
+
+  /**
+   * Sequence value.
+   */
+  private static class SequenceValue extends SequencePadding
+  {
+    private static final VarHandle VALUE;
+
+    static
+    {
+      try
+      {
+        VALUE=MethodHandles.lookup().findVarHandle(SequenceValue.class,"_value",long.class); //$NON-NLS-1$
+      }
+      catch(ReflectiveOperationException ex)
+      {
+        throw new ExceptionInInitializerError(ex);
+      }
+    }
+
+    protected volatile long _value;
+
+    /**
+     * Get the value.
+     * @return value.
+     */
+    public long get()
+    {
+      return _value;
+    }
+
+    /**
+     * Set the value with release semantics only, as AtomicLong.lazySet.
+     * @param value new value.
+     */
+    public void lazySet(long value)
+    {
+      VALUE.setRelease(this,value);
+    }
+  }
+
+  /**
+   * Sequence counter padded on both sides, so that it does not share a cache line with other data.
+   */
+  @SuppressWarnings("unused")
+  private static class Sequence extends SequenceValue
+  {
+    private long _q1,_q2,_q3,_q4,_q5,_q6,_q7;
+  }
+  
+  private final int _capacity;
+  private final int _mask;
+  private final ByteBuffer _writeView;
+  private final ByteBuffer _readView;
+  /**
+   * Views used for absolute accesses only, whose limit is never changed.
+   */
+  private final ByteBuffer _writeIndexed;
+  private final ByteBuffer _readIndexed;
+  private final ByteBuffer[] _writeSegments;
+  private final ByteBuffer[] _readSegments;
+  private final Sequence _head;
+  private final Sequence _tail;
+  
+  /**
+   * Producer side: next sequence to write, and last head seen.
+   */
+  @SuppressWarnings("unused")
+  private long _p1,_p2,_p3,_p4,_p5,_p6,_p7;
+  private long _producerTail;
+  private long _cachedHead;
+  
+  /**
+   * Consumer side: next sequence to read, and last tail seen.
+   */
+  @SuppressWarnings("unused")
+  private long _q1,_q2,_q3,_q4,_q5,_q6,_q7;
+  private long _consumerHead;
+  private long _cachedTail;
+  
+  /**
+   * Create a new ConcurrentFIFOBuffer, backed by a heap buffer.
+   * @param capacity capacity.
+   */
+  public ConcurrentFIFOBuffer(int capacity)
+  {
+    this(capacity,false);
+  }
+  
+  /**
+   * Create a new ConcurrentFIFOBuffer.
+   * @param capacity capacity.
+   * @param direct true to allocate a direct buffer, false to allocate a heap buffer.
+   */
+  public ConcurrentFIFOBuffer(int capacity,boolean direct)
+  {
+    if(capacity<=0) throw new IllegalArgumentException(Integer.toString(capacity));
+    _capacity=capacity;
+    int size=ByteBufferPool.getSizeClass(capacity);
+    _mask=size-1;
+    ByteBuffer buffer=direct?ByteBuffer.allocateDirect(size):ByteBuffer.allocate(size);
+    _writeView=buffer.duplicate();
+    _readView=buffer.duplicate();
+    _writeIndexed=buffer.duplicate();
+    _readIndexed=buffer.duplicate();
+    _writeSegments=new ByteBuffer[] {buffer.duplicate(),buffer.duplicate()};
+    _readSegments=new ByteBuffer[] {buffer.duplicate(),buffer.duplicate()};
+    _head=new Sequence();
+    _tail=new Sequence();
+    _producerTail=0;
+    _cachedHead=0;
+    _consumerHead=0;
+    _cachedTail=0;
+  }
+  
+  private int bufferSize()
+  {
+    return _mask+1;
+  }
+  
+  /**
+   * Get the free space, as seen by the producer.
+   * @return free space.
+   */
+  private int producerFreeSpace()
+  {
+    _cachedHead=_head.get();
+    return (int)(_capacity-(_producerTail-_cachedHead));
+  }
+  
+  /**
+   * Reserve room for size bytes. Producer only.
+   * @param size number of bytes.
+   * @return index of the first byte in the buffer.
+   */
+  private int reserve(int size)
+  {
+    if(_producerTail+size-_cachedHead>_capacity)
+    {
+      _cachedHead=_head.get();
+      if(_producerTail+size-_cachedHead>_capacity) throw new BufferOverflowException();
+    }
+    return (int)(_producerTail&_mask);
+  }
+  
+  /**
+   * Make the written bytes visible to the consumer. Producer only.
+   * @param size number of bytes written.
+   */
+  private void publish(int size)
+  {
+    _producerTail+=size;
+    _tail.lazySet(_producerTail);
+  }
+  
+  /**
+   * Get the number of readable bytes, as seen by the consumer.
+   * @return readable bytes.
+   */
+  private int consumerSize()
+  {
+    _cachedTail=_tail.get();
+    return (int)(_cachedTail-_consumerHead);
+  }
+  
+  /**
+   * Check that size bytes can be read at the given offset. Consumer only.
+   * @param offset offset from the first readable byte.
+   * @param size number of bytes.
+   * @return index of the first byte in the buffer.
+   */
+  private int available(int offset,int size)
+  {
+    if(offset<0) throw new IndexOutOfBoundsException(Integer.toString(offset));
+    if(_consumerHead+offset+size>_cachedTail)
+    {
+      _cachedTail=_tail.get();
+      if(_consumerHead+offset+size>_cachedTail) throw new BufferUnderflowException();
+    }
+    return (int)((_consumerHead+offset)&_mask);
+  }
+  
+  /**
+   * Release the read bytes to the producer. Consumer only.
+   * @param size number of bytes read.
+   */
+  private void consume(int size)
+  {
+    _consumerHead+=size;
+    _head.lazySet(_consumerHead);
+  }
+  
+  /**
+   * Write the given array in the buffer. If size is greater than getFreeSpace(),
+   * a BufferOverflowException is thrown and the buffer is left unchanged.
+   * @param array array.
+   * @param offset first element of the array to write.
+   * @param size number of elements to write.
+   */
+  public void write(byte[] array,int offset,int size)
+  {
+    int index=reserve(size);
+    int size1=Math.min(size,bufferSize()-index);
+    _writeView.limit(index+size1);
+    _writeView.position(index);
+    _writeView.put(array,offset,size1);
+    if(size1<size)
+    {
+      _writeView.limit(size-size1);
+      _writeView.position(0);
+      _writeView.put(array,offset+size1,size-size1);
+    }
+    publish(size);
+  }
+  
+  /**
+   * Write the given array in the buffer. If size is greater than getFreeSpace(),
+   * a BufferOverflowException is thrown and the buffer is left unchanged.
+   * @param array array.
+   */
+  public void write(byte[] array)
+  {
+    write(array,0,array.length);
+  }
+  
+  /**
+   * Write buffer.remaining() bytes into this buffer. If that is greater than getFreeSpace(),
+   * a BufferOverflowException is thrown and both buffers are left unchanged.
+   * @param buffer buffer to write.
+   */
+  public void write(ByteBuffer buffer)
+  {
+    int size=buffer.remaining();
+    int index=reserve(size);
+    int size1=Math.min(size,bufferSize()-index);
+    int limit=buffer.limit();
+    _writeView.limit(index+size1);
+    _writeView.position(index);
+    buffer.limit(buffer.position()+size1);
+    _writeView.put(buffer);
+    buffer.limit(limit);
+    if(size1<size)
+    {
+      _writeView.limit(size-size1);
+      _writeView.position(0);
+      _writeView.put(buffer);
+    }
+    publish(size);
+  }
+  
+  /**
+   * Write at most getFreeSpace() bytes in the buffer, from the given readable channel. If the free region
+   * wraps around the end of the internal buffer and the channel is a {@link ScatteringByteChannel}, both parts
+   * of the region are filled by a single vectored read.
+   * @param channel channel to read from.
+   * @return number of actually written bytes, or -1 if the channel has reached end-of-stream.
+   * @throws IOException in case of channel error.
+   */
+  public int write(ReadableByteChannel channel) throws IOException
+  {
+    int free=producerFreeSpace();
+    if(free==0) return 0;
+    int index=(int)(_producerTail&_mask);
+    int size1=Math.min(free,bufferSize()-index);
+    int read;
+    if(size1==free)
+    {
+      _writeView.limit(index+size1);
+      _writeView.position(index);
+      read=channel.read(_writeView);
+    }
+    else if(channel instanceof ScatteringByteChannel)
+    {
+      _writeSegments[0].limit(index+size1);
+      _writeSegments[0].position(index);
+      _writeSegments[1].limit(free-size1);
+      _writeSegments[1].position(0);
+      read=(int)((ScatteringByteChannel)channel).read(_writeSegments);
+    }
+    else
+    {
+      _writeView.limit(index+size1);
+      _writeView.position(index);
+      read=channel.read(_writeView);
+      if(read==size1)
+      {
+        _writeView.limit(free-size1);
+        _writeView.position(0);
+        int read2=channel.read(_writeView);
+        if(read2>0)
+          read+=read2;
+      }
+    }
+    if(read>0)
+      publish(read);
+    return read;
+  }
+  
+  /**
+   * Write the given value, big-endian, byte per byte.
+   * @param index index of the first byte in the buffer.
+   * @param value value.
+   * @param size number of bytes.
+   */
+  private void writeBytes(int index,long value,int size)
+  {
+    for(int i=size-1;i>=0;i--)
+    {
+      _writeIndexed.put((index+i)&_mask,(byte)value);
+      value>>>=8;
+    }
+  }
+  
+  /**
+   * Write the given byte in the buffer. If 1 is greater than getFreeSpace(),
+   * a BufferOverflowException is thrown and the buffer is left unchanged.
+   * @param aByte a byte.
+   */
+  public void writeByte(byte aByte)
+  {
+    int index=reserve(1);
+    _writeIndexed.put(index,aByte);
+    publish(1);
+  }
+  
+  /**
+   * Write the given char in the buffer. If size of char (2 bytes) is greater than getFreeSpace(),
+   * a BufferOverflowException is thrown and the buffer is left unchanged.
+   * @param aChar a char.
+   */
+  public void writeChar(char aChar)
+  {
+    writeShort((short)aChar);
+  }
+  
+  /**
+   * Write the given short in the buffer. If size of short (2 bytes) is greater than getFreeSpace(),
+   * a BufferOverflowException is thrown and the buffer is left unchanged.
+   * @param aShort a short.
+   */
+  public void writeShort(short aShort)
+  {
+    int index=reserve(2);
+    if(index+2>bufferSize())
+      writeBytes(index,aShort,2);
+    else
+      _writeIndexed.putShort(index,aShort);
+    publish(2);
+  }
+  
+  /**
+   * Write the given integer in the buffer. If size of int (4 bytes) is greater than getFreeSpace(),
+   * a BufferOverflowException is thrown and the buffer is left unchanged.
+   * @param anInt an int.
+   */
+  public void writeInt(int anInt)
+  {
+    int index=reserve(4);
+    if(index+4>bufferSize())
+      writeBytes(index,anInt,4);
+    else
+      _writeIndexed.putInt(index,anInt);
+    publish(4);
+  }
+  
+  /**
+   * Write the given float in the buffer. If size of float (4 bytes) is greater than getFreeSpace(),
+   * a BufferOverflowException is thrown and the buffer is left unchanged.
+   * @param aFloat a float.
+   */
+  public void writeFloat(float aFloat)
+  {
+    writeInt(Float.floatToRawIntBits(aFloat));
+  }
+  
+  /**
+   * Write the given long in the buffer. If size of long (8 bytes) is greater than getFreeSpace(),
+   * a BufferOverflowException is thrown and the buffer is left unchanged.
+   * @param aLong a long.
+   */
+  public void writeLong(long aLong)
+  {
+    int index=reserve(8);
+    if(index+8>bufferSize())
+      writeBytes(index,aLong,8);
+    else
+      _writeIndexed.putLong(index,aLong);
+    publish(8);
+  }
+  
+  /**
+   * Write the given double in the buffer. If size of double (8 bytes) is greater than getFreeSpace(),
+   * a BufferOverflowException is thrown and the buffer is left unchanged.
+   * @param aDouble a double.
+   */
+  public void writeDouble(double aDouble)
+  {
+    writeLong(Double.doubleToRawLongBits(aDouble));
+  }
+  
+  /**
+   * Read from the buffer to the given array the given amount of bytes. If
+   * size is greater than getSize(), a BufferUnderflowException is thrown
+   * and the buffer is left unchanged.
+   * @param array array to write bytes into.
+   * @param offset first byte of the array to be modified.
+   * @param size number of bytes to be modified.
+   */
+  public void read(byte[] array,int offset,int size)
+  {
+    int index=available(0,size);
+    int size1=Math.min(size,bufferSize()-index);
+    _readView.limit(index+size1);
+    _readView.position(index);
+    _readView.get(array,offset,size1);
+    if(size1<size)
+    {
+      _readView.limit(size-size1);
+      _readView.position(0);
+      _readView.get(array,offset+size1,size-size1);
+    }
+    consume(size);
+  }
+  
+  /**
+   * Read from the buffer to the given array the given amount of bytes. If
+   * size is greater than getSize(), a BufferUnderflowException is thrown
+   * and the buffer is left unchanged.
+   * @param array array to write bytes into.
+   */
+  public void read(byte[] array)
+  {
+    read(array,0,array.length);
+  }
+  
+  /**
+   * Read from the buffer and write to the channel at most getSize() bytes. If the content wraps around the end
+   * of the internal buffer and the channel is a {@link GatheringByteChannel}, both parts of the content are
+   * written by a single vectored write.
+   * @param channel channel to write to.
+   * @return number of bytes actually read from the buffer and written to the channel.
+   * @throws IOException in case of channel error.
+   */
+  public int read(WritableByteChannel channel) throws IOException
+  {
+    int size=consumerSize();
+    if(size==0) return 0;
+    int index=(int)(_consumerHead&_mask);
+    int size1=Math.min(size,bufferSize()-index);
+    int written;
+    if(size1==size)
+    {
+      _readView.limit(index+size1);
+      _readView.position(index);
+      written=channel.write(_readView);
+    }
+    else if(channel instanceof GatheringByteChannel)
+    {
+      _readSegments[0].limit(index+size1);
+      _readSegments[0].position(index);
+      _readSegments[1].limit(size-size1);
+      _readSegments[1].position(0);
+      written=(int)((GatheringByteChannel)channel).write(_readSegments);
+    }
+    else
+    {
+      _readView.limit(index+size1);
+      _readView.position(index);
+      written=channel.write(_readView);
+      if(written==size1)
+      {
+        _readView.limit(size-size1);
+        _readView.position(0);
+        written+=channel.write(_readView);
+      }
+    }
+    consume(written);
+    return written;
+  }
+  
+  private long peekBytes(int index,int size)
+  {
+    long ans=0;
+    for(int i=0;i<size;i++)
+      ans=(ans<<8)|(_readIndexed.get((index+i)&_mask)&0xFF);
+    return ans;
+  }
+  
+  /**
+   * Peek a byte at the given offset.
+   * @param offset offset, must be non-negative and lower than getSize().
+   * @return byte at given offset.
+   */
+  public byte peekByte(int offset)
+  {
+    return _readIndexed.get(available(offset,1));
+  }
+  
+  /**
+   * Peek a short at the given offset.
+   * @param offset offset, must be non-negative and lower than getSize()-1.
+   * @return short at given offset.
+   */
+  public short peekShort(int offset)
+  {
+    int index=available(offset,2);
+    if(index+2>bufferSize()) return (short)peekBytes(index,2);
+    return _readIndexed.getShort(index);
+  }
+  
+  /**
+   * Peek a char at the given offset.
+   * @param offset offset, must be non-negative and lower than getSize()-1.
+   * @return char at given offset.
+   */
+  public char peekChar(int offset)
+  {
+    return (char)peekShort(offset);
+  }
+  
+  /**
+   * Peek an int at the given offset.
+   * @param offset offset, must be non-negative and lower than getSize()-3.
+   * @return int at given offset.
+   */
+  public int peekInt(int offset)
+  {
+    int index=available(offset,4);
+    if(index+4>bufferSize()) return (int)peekBytes(index,4);
+    return _readIndexed.getInt(index);
+  }
+  
+  /**
+   * Peek a float at the given offset.
+   * @param offset offset, must be non-negative and lower than getSize()-3.
+   * @return float at given offset.
+   */
+  public float peekFloat(int offset)
+  {
+    return Float.intBitsToFloat(peekInt(offset));
+  }
+  
+  /**
+   * Peek a long at the given offset.
+   * @param offset offset, must be non-negative and lower than getSize()-7.
+   * @return long at given offset.
+   */
+  public long peekLong(int offset)
+  {
+    int index=available(offset,8);
+    if(index+8>bufferSize()) return peekBytes(index,8);
+    return _readIndexed.getLong(index);
+  }
+  
+  /**
+   * Peek a double at the given offset.
+   * @param offset offset, must be non-negative and lower than getSize()-7.
+   * @return double at given offset.
+   */
+  public double peekDouble(int offset)
+  {
+    return Double.longBitsToDouble(peekLong(offset));
+  }
+  
+  /**
+   * Remove the count first bytes of the buffer.
+   * @param count number of bytes to remove. It must not be greater than getSize().
+   */
+  public void remove(int count)
+  {
+    available(0,count);
+    consume(count);
+  }
+  
+  /**
+   * Remove all the bytes that have been written so far.
+   */
+  public void clear()
+  {
+    consume(consumerSize());
+  }
+  
+  /**
+   * Get the current buffer size. When called from another thread than the consumer, the value is only a snapshot.
+   * @return number of bytes that can be read from the buffer.
+   */
+  public int getSize()
+  {
+    long head=_head.get();
+    return (int)Math.min(_tail.get()-head,_capacity);
+  }
+  
+  /**
+   * Get the buffer capacity.
+   * @return buffer capacity.
+   */
+  public int getCapacity()
+  {
+    return _capacity;
+  }
+  
+  /**
+   * Get the current free space. When called from another thread than the producer, the value is only a snapshot.
+   * @return number of bytes that can be written to the buffer.
+   */
+  public int getFreeSpace()
+  {
+    return getCapacity()-getSize();
+  }
+  
+  @SuppressWarnings("nls")
+  @Override
+  public String toString()
+  {
+    String ans=super.toString();
+    return ans+" [size = "+getSize()+" capacity = "+getCapacity()+" free space = "+getFreeSpace()+"]";
+  }
+}
@@ -19,11 +19,17 @@ import java.io.IOException;
 import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
 import java.nio.channels.WritableByteChannel;
 
 /**
- * Very efficient FIFO cyclic buffer based on ByteBuffer implementation.
+ * Very efficient FIFO cyclic buffer based on ByteBuffer implementation.<br/>
+ * By default, the internal buffer is a heap buffer, reallocated whenever the buffer grows or shrinks. A
+ * FIFOBuffer can also draw its internal buffers from a {@link ByteBufferPool}: with a direct pool, channel
+ * transfers go straight between the channel and the internal buffer, and resizing reuses pooled buffers
+ * instead of allocating new ones.
  */
 public class FIFOBuffer
 {
@@ -32,7 +38,12 @@ public class FIFOBuffer
   private int _size;
   private int _offset;
   private ByteBuffer _buffer;
-  private ByteBuffer _tmp;
+  private ByteBufferPool _pool;
+  /**
+   * Views of the internal buffer, used to transfer both segments of a wrapped region in a single vectored
+   * channel operation.
+   */
+  private ByteBuffer[] _segments;
   
   /**
    * Create a new FIFOBuffer.
@@ -49,31 +60,82 @@ public class FIFOBuffer
    * @param minimumSize minimum internal buffer size.
    */
   public FIFOBuffer(int capacity,int minimumSize)
+  {
+    this(capacity,minimumSize,null);
+  }
+  
+  /**
+   * Create a new FIFOBuffer whose internal buffers are drawn from the given pool. Since pooled buffers have a
+   * power-of-two size, the minimum internal buffer size is rounded up to a power of two. The internal buffer
+   * should be given back to the pool with {@link #release()} once the FIFOBuffer is not used anymore.
+   * @param capacity capacity.
+   * @param minimumSize minimum internal buffer size.
+   * @param pool pool to draw the internal buffers from, or null to allocate heap buffers.
+   */
+  public FIFOBuffer(int capacity,int minimumSize,ByteBufferPool pool)
   {
     _capacity=capacity;
     _size=0;
     _offset=0;
+    _pool=pool;
     _minimumSize=Math.min(capacity,minimumSize);
-    _buffer=ByteBuffer.allocate(_minimumSize);
-    _tmp=ByteBuffer.allocate(8);
+    if(_pool!=null)
+      _minimumSize=ByteBufferPool.getSizeClass(_minimumSize);
+    setBuffer(allocate(_minimumSize));
+  }
+  
+  private void setBuffer(ByteBuffer buffer)
+  {
+    _buffer=buffer;
+    _segments=new ByteBuffer[] {buffer.duplicate(),buffer.duplicate()};
+  }
+  
+  /**
+   * Set up the segment views on the wrapped region going from first to the end of the internal buffer, then from
+   * its start to last.
+   * @param first start of the first segment.
+   * @param last end of the second segment.
+   * @return segment views.
+   */
+  private ByteBuffer[] wrappedSegments(int first,int last)
+  {
+    _segments[0].limit(_buffer.capacity());
+    _segments[0].position(first);
+    _segments[1].limit(last);
+    _segments[1].position(0);
+    return _segments;
+  }
+  
+  private ByteBuffer allocate(int size)
+  {
+    if(_pool==null) return ByteBuffer.allocate(size);
+    return _pool.acquire(size);
   }
   
   private void resize(int newSize)
   {
-    ByteBuffer newBuffer=ByteBuffer.allocate(newSize);
+    ByteBuffer newBuffer=allocate(newSize);
     
     int last=_offset+_size;
     if(last<=_buffer.capacity())
     {
-      newBuffer.put(_buffer.array(),_offset,_size);
+      _buffer.limit(last);
+      _buffer.position(_offset);
+      newBuffer.put(_buffer);
     }
     else
     {
-      newBuffer.put(_buffer.array(),_offset,_buffer.capacity()-_offset);
-      newBuffer.put(_buffer.array(),0,_size+_offset-_buffer.capacity());
+      _buffer.limit(_buffer.capacity());
+      _buffer.position(_offset);
+      newBuffer.put(_buffer);
+      _buffer.limit(last-_buffer.capacity());
+      _buffer.position(0);
+      newBuffer.put(_buffer);
     }
-        
-    _buffer=newBuffer;
+    
+    if(_pool!=null)
+      _pool.release(_buffer);
+    setBuffer(newBuffer);
     _offset=0;
   }
   
@@ -122,33 +184,104 @@ public class FIFOBuffer
       resize(_buffer.capacity());
   }
    
+  /**
+   * Make room for size more bytes, and get the index at which they must be written.
+   * The limit of the internal buffer is reset to its capacity, for absolute puts.
+   * @param size number of bytes to write.
+   * @return index of the first byte to write.
+   */
+  private int writeIndex(int size)
+  {
+    adaptSize(_size+size);
+    _buffer.limit(_buffer.capacity());
+    return (_offset+_size)%_buffer.capacity();
+  }
+  
+  /**
+   * Put the given value, big-endian, byte per byte, wrapping around the end of the internal buffer.
+   * @param index index of the first byte.
+   * @param value value.
+   * @param size number of bytes.
+   */
+  private void putBytes(int index,long value,int size)
+  {
+    for(int i=size-1;i>=0;i--)
+    {
+      _buffer.put((index+i)%_buffer.capacity(),(byte)value);
+      value>>>=8;
+    }
+  }
+  
+  /**
+   * Get a big-endian value, byte per byte, wrapping around the end of the internal buffer.
+   * The limit of the internal buffer must be its capacity.
+   * @param index index of the first byte.
+   * @param size number of bytes.
+   * @return value.
+   */
+  private long getBytes(int index,int size)
+  {
+    long ans=0;
+    for(int i=0;i<size;i++)
+      ans=(ans<<8)|(_buffer.get((index+i)%_buffer.capacity())&0xFF);
+    return ans;
+  }
+  
+  /**
+   * Remove the count first bytes after they have been read, shrinking the internal buffer if needed.
+   * @param count number of bytes read.
+   */
+  private void consumed(int count)
+  {
+    _size-=count;
+    _offset=(_offset+count)%_buffer.capacity();
+    if(_size==0)
+      _offset=0;
+    adaptSize(_size);
+  }
+  
   /**
    * Write at most getFreeSpace() bytes in the buffer, from the given readable
-   * channel.
+   * channel. If the free region wraps around the end of the internal buffer and
+   * the channel is a {@link ScatteringByteChannel}, both parts of the region are
+   * filled by a single vectored read.
    * @param channel channel to read from.
-   * @return number of actually written bytes.
+   * @return number of actually written bytes, or -1 if the channel has reached end-of-stream and nothing was
+   * written.
    * @throws IOException in case of channel error.
    */
   public int write(ReadableByteChannel channel) throws IOException
   {
     if(_buffer.capacity()<_size*3/2)
       adaptSize(Math.min(_buffer.capacity()*2,_capacity));
+    if(_size==_buffer.capacity()) return 0;
     
     int first=(_offset+_size)%_buffer.capacity();
     int last=(first+_buffer.capacity()-_size)%_buffer.capacity();
     
-    if(first<last)
+    if(first<last || last==0)
     {
-      _buffer.limit(last);
+      _buffer.limit(last==0?_buffer.capacity():last);
       _buffer.position(first);
       int read=channel.read(_buffer);
-      _size+=read;
+      if(read>0)
+        _size+=read;
+      return read;
+    }
+    
+    if(channel instanceof ScatteringByteChannel)
+    {
+      int read=(int)((ScatteringByteChannel)channel).read(wrappedSegments(first,last));
+      if(read>0)
+        _size+=read;
       return read;
     }
     
     _buffer.limit(_buffer.capacity());
     _buffer.position(first);
     int read=channel.read(_buffer);
+    if(read<=0)
+      return read;
     _size+=read;
     
     if(_buffer.position()!=_buffer.capacity())
@@ -157,8 +290,11 @@ public class FIFOBuffer
     _buffer.limit(last);
     _buffer.position(0);
     int read2=channel.read(_buffer);
-    read+=read2;
-    _size+=read2;
+    if(read2>0)
+    {
+      read+=read2;
+      _size+=read2;
+    }
     return read;
     
   }
@@ -209,6 +345,7 @@ public class FIFOBuffer
    */
   public void write(byte[] array,int offset,int size)
   {
+    if(size==0) return;
     adaptSize(_size+size);
     
     int first=(_offset+_size)%_buffer.capacity();
@@ -253,10 +390,9 @@ public class FIFOBuffer
    */
   public void writeByte(byte aByte)
   {
-    _tmp.clear();
-    _tmp.put(aByte);
-    _tmp.flip(); 
-    write(_tmp.array(), 0, 1);
+    int index=writeIndex(1);
+    _buffer.put(index,aByte);
+    _size++;
   }  
   /**
    * Write the given char in the buffer. If size of char (2 byte) is greater than getFreeSpace(),
@@ -265,10 +401,7 @@ public class FIFOBuffer
    */
   public void writeChar(char aChar)
   {
-    _tmp.clear();
-    _tmp.putChar(aChar);
-    _tmp.flip(); 
-    write(_tmp.array(), 0, 2);
+    writeShort((short)aChar);
   }
   /**
    * Write the given integer in the buffer. If size of int (8 bytes) is greater than getFreeSpace(),
@@ -277,10 +410,7 @@ public class FIFOBuffer
    */
   public void writeDouble(double aDouble)
   {
-	_tmp.clear();
-    _tmp.putDouble(aDouble);
-    _tmp.flip(); 
-    write(_tmp.array(), 0, 8);
+    writeLong(Double.doubleToRawLongBits(aDouble));
   }
   /**
    * Write the given float in the buffer. If size of int (4 bytes) is greater than getFreeSpace(),
@@ -289,10 +419,7 @@ public class FIFOBuffer
    */
   public void writeFloat(float aFloat)
   {
-	_tmp.clear();
-    _tmp.putFloat(aFloat);
-    _tmp.flip(); 
-    write(_tmp.array(), 0, 4);
+    writeInt(Float.floatToRawIntBits(aFloat));
   }
   /**
    * Write the given integer in the buffer. If size of int (4 bytes) is greater than getFreeSpace(),
@@ -301,10 +428,12 @@ public class FIFOBuffer
    */
   public void writeInt(int anInt)
   {
-	_tmp.clear();
-    _tmp.putInt(anInt);
-    _tmp.flip();
-    write(_tmp.array(), 0, 4);
+    int index=writeIndex(4);
+    if(index+4<=_buffer.capacity())
+      _buffer.putInt(index,anInt);
+    else
+      putBytes(index,anInt,4);
+    _size+=4;
   }
   /**
    * Write the given long in the buffer. If size of int (8 bytes) is greater than getFreeSpace(),
@@ -313,10 +442,12 @@ public class FIFOBuffer
    */
   public void writeLong(long aLong)
   {
-	_tmp.clear();
-    _tmp.putLong(aLong);
-    _tmp.flip(); 
-    write(_tmp.array(), 0, 8);
+    int index=writeIndex(8);
+    if(index+8<=_buffer.capacity())
+      _buffer.putLong(index,aLong);
+    else
+      putBytes(index,aLong,8);
+    _size+=8;
   }
   /**
    * Write the given long in the buffer. If size of int (2 bytes) is greater than getFreeSpace(),
@@ -325,13 +456,18 @@ public class FIFOBuffer
    */
   public void writeShort(short aShort)
   {
-	_tmp.clear();
-    _tmp.putShort(aShort);
-    _tmp.flip(); 
-    write(_tmp.array(), 0, 2);
+    int index=writeIndex(2);
+    if(index+2<=_buffer.capacity())
+      _buffer.putShort(index,aShort);
+    else
+      putBytes(index,aShort,2);
+    _size+=2;
   }
   /**
-   * Read from the buffer and write to the channel at most getSize() bytes.
+   * Read from the buffer and write to the channel at most getSize() bytes. If
+   * the content wraps around the end of the internal buffer and the channel is
+   * a {@link GatheringByteChannel}, both parts of the content are written by a
+   * single vectored write.
    * @param channel channel to write to.
    * @return number of bytes actually read from the buffer and written to
    * the channel.
@@ -342,9 +478,9 @@ public class FIFOBuffer
     if(getSize()==0) return 0;
     int first=_offset;
     int last=(_offset+_size)%_buffer.capacity();
-    if(first<last)
+    if(first<last || last==0)
     {
-      _buffer.limit(last);
+      _buffer.limit(last==0?_buffer.capacity():last);
       _buffer.position(first);
       int written=channel.write(_buffer);
       _size-=written;
@@ -355,6 +491,17 @@ public class FIFOBuffer
       return written;
     }
     
+    if(channel instanceof GatheringByteChannel)
+    {
+      int written=(int)((GatheringByteChannel)channel).write(wrappedSegments(first,last));
+      _size-=written;
+      _offset=(_offset+written)%_buffer.capacity();
+      if(_size==0)
+        _offset=0;
+      adaptSize(_size);
+      return written;
+    }
+    
     _buffer.limit(_buffer.capacity());
     _buffer.position(first);
     int written=channel.write(_buffer);
@@ -488,11 +635,7 @@ public class FIFOBuffer
     int last=(first+1)%_buffer.capacity();
     if(first<last) return _buffer.getShort(first);
     
-    _tmp.clear();
-    _tmp.put(peekByte(offset++));
-    _tmp.put(peekByte(offset++));
-    _tmp.rewind();
-    return _tmp.getShort();
+    return (short)getBytes(first,2);
   }
   
   /**
@@ -508,11 +651,7 @@ public class FIFOBuffer
     int last=(first+1)%_buffer.capacity();
     if(first<last) return _buffer.getChar(first);
     
-    _tmp.clear();
-    _tmp.put(peekByte(offset++));
-    _tmp.put(peekByte(offset++));
-    _tmp.rewind();
-    return _tmp.getChar();
+    return (char)getBytes(first,2);
   }
   
   /**
@@ -530,12 +669,7 @@ public class FIFOBuffer
     	return _buffer.getInt(first);
     }
     
-    _tmp.clear();
-    for(int i=0;i<4;i++){
-      _tmp.put(peekByte(offset++));
-    }
-    _tmp.rewind();
-    return _tmp.getInt();
+    return (int)getBytes(first,4);
   }
   
   /**
@@ -551,11 +685,7 @@ public class FIFOBuffer
     int last=(first+3)%_buffer.capacity();
     if(first<last) return _buffer.getFloat(first);
     
-    _tmp.clear();
-    for(int i=0;i<4;i++)
-      _tmp.put(peekByte(offset++));
-    _tmp.rewind();
-    return _tmp.getFloat();
+    return Float.intBitsToFloat((int)getBytes(first,4));
   }
   
   /**
@@ -571,11 +701,7 @@ public class FIFOBuffer
     int last=(first+7)%_buffer.capacity();
     if(first<last) return _buffer.getLong(first);
     
-    _tmp.clear();
-    for(int i=0;i<8;i++)
-      _tmp.put(peekByte(offset++));
-    _tmp.rewind();
-    return _tmp.getLong();
+    return getBytes(first,8);
   }
   
   /**
@@ -591,11 +717,292 @@ public class FIFOBuffer
     int last=(first+7)%_buffer.capacity();
     if(first<last) return _buffer.getDouble(first);
     
-    _tmp.clear();
-    for(int i=0;i<8;i++)
-      _tmp.put(peekByte(offset++));
-    _tmp.rewind();
-    return _tmp.getDouble();
+    return Double.longBitsToDouble(getBytes(first,8));
+  }
+  
+  /**
+   * Write the given ints in the buffer, big-endian. If the total size is greater than getFreeSpace(),
+   * a BufferOverflowException is thrown and the buffer is left unchanged.
+   * @param array array.
+   * @param offset first element of the array to write.
+   * @param count number of elements to write.
+   */
+  public void writeInts(int[] array,int offset,int count)
+  {
+    int index=writeIndex(count*4);
+    int capacity=_buffer.capacity();
+    int i=0;
+    while(i<count)
+    {
+      int run=Math.min(count-i,(capacity-index)/4);
+      if(run>0)
+      {
+        _buffer.position(index);
+        _buffer.slice().asIntBuffer().put(array,offset+i,run);
+      }
+      else
+      {
+        //The next value straddles the end of the internal buffer.
+        putBytes(index,array[offset+i],4);
+        run=1;
+      }
+      i+=run;
+      index=(index+run*4)%capacity;
+    }
+    _size+=count*4;
+  }
+  
+  /**
+   * Write the given ints in the buffer, big-endian. If the total size is greater than getFreeSpace(),
+   * a BufferOverflowException is thrown and the buffer is left unchanged.
+   * @param array array.
+   */
+  public void writeInts(int[] array)
+  {
+    writeInts(array,0,array.length);
+  }
+  
+  /**
+   * Read big-endian ints from the buffer to the given array. If the total size is greater than getSize(),
+   * a BufferUnderflowException is thrown and the buffer is left unchanged.
+   * @param array array to write values into.
+   * @param offset first element of the array to be modified.
+   * @param count number of elements to read.
+   */
+  public void readInts(int[] array,int offset,int count)
+  {
+    if(count*4>getSize()) throw new BufferUnderflowException();
+    int capacity=_buffer.capacity();
+    _buffer.limit(capacity);
+    int index=_offset;
+    int i=0;
+    while(i<count)
+    {
+      int run=Math.min(count-i,(capacity-index)/4);
+      if(run>0)
+      {
+        _buffer.position(index);
+        _buffer.slice().asIntBuffer().get(array,offset+i,run);
+      }
+      else
+      {
+        array[offset+i]=(int)getBytes(index,4);
+        run=1;
+      }
+      i+=run;
+      index=(index+run*4)%capacity;
+    }
+    consumed(count*4);
+  }
+  
+  /**
+   * Read big-endian ints from the buffer to the given array. If the total size is greater than getSize(),
+   * a BufferUnderflowException is thrown and the buffer is left unchanged.
+   * @param array array to write values into.
+   */
+  public void readInts(int[] array)
+  {
+    readInts(array,0,array.length);
+  }
+  
+  /**
+   * Write the given longs in the buffer, big-endian. If the total size is greater than getFreeSpace(),
+   * a BufferOverflowException is thrown and the buffer is left unchanged.
+   * @param array array.
+   * @param offset first element of the array to write.
+   * @param count number of elements to write.
+   */
+  public void writeLongs(long[] array,int offset,int count)
+  {
+    int index=writeIndex(count*8);
+    int capacity=_buffer.capacity();
+    int i=0;
+    while(i<count)
+    {
+      int run=Math.min(count-i,(capacity-index)/8);
+      if(run>0)
+      {
+        _buffer.position(index);
+        _buffer.slice().asLongBuffer().put(array,offset+i,run);
+      }
+      else
+      {
+        //The next value straddles the end of the internal buffer.
+        putBytes(index,array[offset+i],8);
+        run=1;
+      }
+      i+=run;
+      index=(index+run*8)%capacity;
+    }
+    _size+=count*8;
+  }
+  
+  /**
+   * Write the given longs in the buffer, big-endian. If the total size is greater than getFreeSpace(),
+   * a BufferOverflowException is thrown and the buffer is left unchanged.
+   * @param array array.
+   */
+  public void writeLongs(long[] array)
+  {
+    writeLongs(array,0,array.length);
+  }
+  
+  /**
+   * Read big-endian longs from the buffer to the given array. If the total size is greater than getSize(),
+   * a BufferUnderflowException is thrown and the buffer is left unchanged.
+   * @param array array to write values into.
+   * @param offset first element of the array to be modified.
+   * @param count number of elements to read.
+   */
+  public void readLongs(long[] array,int offset,int count)
+  {
+    if(count*8>getSize()) throw new BufferUnderflowException();
+    int capacity=_buffer.capacity();
+    _buffer.limit(capacity);
+    int index=_offset;
+    int i=0;
+    while(i<count)
+    {
+      int run=Math.min(count-i,(capacity-index)/8);
+      if(run>0)
+      {
+        _buffer.position(index);
+        _buffer.slice().asLongBuffer().get(array,offset+i,run);
+      }
+      else
+      {
+        array[offset+i]=getBytes(index,8);
+        run=1;
+      }
+      i+=run;
+      index=(index+run*8)%capacity;
+    }
+    consumed(count*8);
+  }
+  
+  /**
+   * Read big-endian longs from the buffer to the given array. If the total size is greater than getSize(),
+   * a BufferUnderflowException is thrown and the buffer is left unchanged.
+   * @param array array to write values into.
+   */
+  public void readLongs(long[] array)
+  {
+    readLongs(array,0,array.length);
+  }
+  
+  /**
+   * Write the given long as an unsigned variable-length integer: 7 bits per byte, least significant group
+   * first, the high bit of each byte being set if more bytes follow. Small values take fewer bytes, up to
+   * 10 bytes for negative values. If the encoded size is greater than getFreeSpace(), a BufferOverflowException
+   * is thrown and the buffer is left unchanged.
+   * @param aLong a long.
+   */
+  public void writeVarLong(long aLong)
+  {
+    int size=1;
+    for(long v=aLong>>>7;v!=0;v>>>=7)
+      size++;
+    int index=writeIndex(size);
+    int capacity=_buffer.capacity();
+    for(int i=0;i<size-1;i++)
+    {
+      _buffer.put((index+i)%capacity,(byte)(aLong|0x80));
+      aLong>>>=7;
+    }
+    _buffer.put((index+size-1)%capacity,(byte)aLong);
+    _size+=size;
+  }
+  
+  /**
+   * Write the given int as an unsigned variable-length integer, taking from 1 to 5 bytes. See
+   * {@link #writeVarLong(long)}.
+   * @param anInt an int.
+   */
+  public void writeVarInt(int anInt)
+  {
+    writeVarLong(anInt&0xFFFFFFFFL);
+  }
+  
+  /**
+   * Get the size of the variable-length integer at the start of the buffer.
+   * @param maxSize maximum number of bytes of the value.
+   * @return size in bytes.
+   */
+  private int varLongSize(int maxSize)
+  {
+    int max=Math.min(_size,maxSize);
+    for(int i=0;i<max;i++)
+    {
+      if(_buffer.get((_offset+i)%_buffer.capacity())>=0) return i+1;
+    }
+    if(max<maxSize) throw new BufferUnderflowException();
+    throw new IllegalStateException("Malformed variable-length integer"); //$NON-NLS-1$
+  }
+  
+  /**
+   * Decode the variable-length integer at the start of the buffer, without removing it.
+   * @param size size in bytes.
+   * @return value.
+   */
+  private long peekVarLong(int size)
+  {
+    long ans=0;
+    for(int i=0;i<size;i++)
+      ans|=(long)(_buffer.get((_offset+i)%_buffer.capacity())&0x7F)<<(7*i);
+    return ans;
+  }
+  
+  /**
+   * Read an unsigned variable-length integer written by {@link #writeVarLong(long)}. If the buffer does not
+   * contain a complete value, a BufferUnderflowException is thrown and the buffer is left unchanged.
+   * @return value.
+   * @throws IllegalStateException if the next bytes are not a valid variable-length integer.
+   */
+  public long readVarLong()
+  {
+    int size=varLongSize(10);
+    long ans=peekVarLong(size);
+    consumed(size);
+    return ans;
+  }
+  
+  /**
+   * Read an unsigned variable-length integer written by {@link #writeVarInt(int)}. If the buffer does not
+   * contain a complete value, a BufferUnderflowException is thrown and the buffer is left unchanged.
+   * @return value.
+   * @throws IllegalStateException if the next bytes are not a valid variable-length integer, or if the
+   * value does not fit in 32 bits. The buffer is then left unchanged.
+   */
+  public int readVarInt()
+  {
+    int size=varLongSize(5);
+    long ans=peekVarLong(size);
+    if((ans>>>32)!=0) throw new IllegalStateException("Variable-length integer too large"); //$NON-NLS-1$
+    consumed(size);
+    return (int)ans;
+  }
+  
+  /**
+   * Get read-only views of the next size bytes of the buffer, without copying them nor removing them. If the
+   * bytes wrap around the end of the internal buffer, two views are returned, to be read in order. The views
+   * remain valid as long as no write, read, remove or clear operation is performed on the buffer.
+   * @param size number of bytes, must not be greater than getSize().
+   * @return one or two views, each positioned at 0.
+   */
+  public ByteBuffer[] peek(int size)
+  {
+    if(size>getSize()) throw new BufferUnderflowException();
+    int size1=Math.min(size,_buffer.capacity()-_offset);
+    if(size1==size) return new ByteBuffer[] {view(_offset,size)};
+    return new ByteBuffer[] {view(_offset,size1),view(0,size-size1)};
+  }
+  
+  private ByteBuffer view(int index,int size)
+  {
+    ByteBuffer ans=_buffer.asReadOnlyBuffer();
+    ans.limit(index+size);
+    ans.position(index);
+    return ans.slice();
   }
   
   /**
@@ -615,9 +1022,11 @@ public class FIFOBuffer
    * operation is performed on the buffer. 
    * @return continuous byte array, the first index to read, and the array size,
    * in that order.
+   * @throws UnsupportedOperationException if the internal buffer is a direct buffer.
    */
   public Pair<byte[],Pair<Integer,Integer>> getArray()
   {
+    if(!_buffer.hasArray()) throw new UnsupportedOperationException();
     defrag();
     return new Pair<byte[],Pair<Integer,Integer>>(_buffer.array(),new Pair<Integer,Integer>(_offset,_size));
   }
@@ -635,6 +1044,18 @@ public class FIFOBuffer
       _offset=0;
   }
   
+  /**
+   * Clear the buffer and give its internal buffer back to the pool it was drawn from. The FIFOBuffer must not
+   * be used anymore afterwards. This method does nothing if the FIFOBuffer does not use a pool.
+   */
+  public void release()
+  {
+    if(_pool==null || _buffer==null) return;
+    clear();
+    _pool.release(_buffer);
+    _buffer=null;
+  }
+  
   @SuppressWarnings("nls")
   @Override
   public String toString()
@@ -71,6 +71,39 @@ public class HostChecker
     return true;
   }
   
+  /**
+   * Get the subnet of the given address, with all the bits beyond the mask length set to 0.
+   * @param address address.
+   * @param subNetLength mask length, in bits.
+   * @return subnet address.
+   */
+  public static InetAddress getSubNet(InetAddress address,short subNetLength)
+  {
+    byte[] bytes=address.getAddress();
+    for(int i=0;i<bytes.length;i++)
+    {
+      int leftBitsInMask=subNetLength-i*8;
+      if(leftBitsInMask<=0)
+      {
+        bytes[i]=0;
+      }
+      else if(leftBitsInMask<8)
+      {
+        int mask=~((1<<(8-leftBitsInMask))-1);
+        bytes[i]=(byte)(bytes[i]&mask);
+      }
+    }
+    try
+    {
+      return InetAddress.getByAddress(bytes);
+    }
+    catch(UnknownHostException ex)
+    {
+      //Cannot happen with an address length coming from an InetAddress.
+      throw new GaiaRuntimeException(ex);
+    }
+  }
+  
   /**
    * Check whether the given address is a LAN address.
    * @param address address to check.
@@ -0,0 +1,300 @@
+/**
+ * Copyright Acropolis Software SPRL (https://www.acrosoft.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.acrosoft.gaia.shared.util;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * The KeyedRateLimiter limits the rate of execution separately for each key, such as a client address, a user or
+ * an API key, each key having its own RateLimiter.
+ * <p>
+ * Keys are spread over several stripes, each stripe being guarded by its own lock that is only held to look up
+ * the RateLimiter of a key, the RateLimiter itself being lock-free. In order to bound memory, the keys that have
+ * not been used for a while are forgotten, as well as the least recently used keys of a stripe that holds too
+ * many keys. By default, keys are forgotten once idle for twice the RateLimiter duration, at which point their
+ * RateLimiter is back to its initial state anyway.
+ * <p>
+ * Keys can be grouped, so that several keys share the same RateLimiter. For instance, client addresses can be
+ * limited per subnet using HostChecker.getSubNet.
+ * <p>
+ * Instances of this class are thread-safe.
+ * @param <K> key type.
+ */
+public class KeyedRateLimiter<K>
+{
+  /**
+   * RateLimiter of a key.
+   */
+  private static class Entry
+  {
+    /**
+     * Rate limiter.
+     */
+    public final RateLimiter limiter;
+    /**
+     * Last access time, in ns. Guarded by the stripe.
+     */
+    public long lastAccess;
+
+    /**
+     * Create a new Entry.
+     * @param l rate limiter.
+     * @param now current time.
+     */
+    public Entry(RateLimiter l,long now)
+    {
+      limiter=l;
+      lastAccess=now;
+    }
+  }
+
+  /**
+   * Keys of a stripe, in access order.
+   */
+  private static class Stripe extends LinkedHashMap<Object,Entry>
+  {
+    private static final long serialVersionUID=1L;
+
+    /**
+     * Create a new Stripe.
+     */
+    public Stripe()
+    {
+      super(16,0.75f,true);
+    }
+  }
+
+  private final Supplier<RateLimiter> _factory;
+  private final Function<? super K,?> _grouping;
+  private final Clock _clock;
+  private final long _idle;
+  private final int _maximumKeys;
+  private final Stripe[] _stripes;
+
+  private KeyedRateLimiter(Supplier<RateLimiter> factory,Function<? super K,?> grouping,Clock clock,long idle,
+    int maximumKeys,int stripes)
+  {
+    _factory=factory;
+    _grouping=grouping;
+    _clock=clock;
+    _idle=idle;
+    _stripes=new Stripe[stripes];
+    for(int i=0;i<stripes;i++)
+      _stripes[i]=new Stripe();
+    _maximumKeys=Math.max(1,(maximumKeys+stripes-1)/stripes);
+  }
+
+  private Stripe stripe(Object group)
+  {
+    int h=group==null?0:group.hashCode();
+    h^=h>>>16;
+    return _stripes[h&(_stripes.length-1)];
+  }
+
+  /**
+   * Forget the keys of a stripe that have been idle for too long, or that exceed the maximum number of keys.
+   * Must be called while holding the stripe lock.
+   * @param stripe stripe.
+   * @param now current time.
+   */
+  private void expunge(Stripe stripe,long now)
+  {
+    Iterator<Entry> it=stripe.values().iterator();
+    while(it.hasNext())
+    {
+      Entry eldest=it.next();
+      if(stripe.size()<=_maximumKeys && now-eldest.lastAccess<=_idle) break;
+      it.remove();
+    }
+  }
+
+  /**
+   * Get the RateLimiter of the given key, creating it if needed.
+   * @param key key.
+   * @return rate limiter.
+   */
+  private RateLimiter getLimiter(K key)
+  {
+    Object group=_grouping.apply(key);
+    Stripe stripe=stripe(group);
+    long now=RateLimiter.nanoTime(_clock);
+    synchronized(stripe)
+    {
+      Entry entry=stripe.get(group);
+      if(entry==null)
+      {
+        entry=new Entry(_factory.get(),now);
+        stripe.put(group,entry);
+      }
+      else
+      {
+        entry.lastAccess=now;
+      }
+      expunge(stripe,now);
+      return entry.limiter;
+    }
+  }
+
+  /**
+   * Return whether a new occurrence for the given key should be accepted at this time.
+   * @param key key.
+   * @return true if the occurrence is accepted, false if it is rejected.
+   */
+  public boolean accept(K key)
+  {
+    return getLimiter(key).accept();
+  }
+
+  /**
+   * Return whether several occurrences for the given key should be accepted at this time, all of them being
+   * either accepted or rejected.
+   * @param key key.
+   * @param permits number of occurrences.
+   * @return true if the occurrences are accepted, false otherwise.
+   */
+  public boolean tryAcquire(K key,int permits)
+  {
+    return getLimiter(key).tryAcquire(permits);
+  }
+
+  /**
+   * Forget all the keys that have been idle for too long. Idle keys are forgotten anyway as other keys of the same
+   * stripe are used, so that calling this method is only needed to release memory after a burst of keys.
+   */
+  public void cleanUp()
+  {
+    long now=RateLimiter.nanoTime(_clock);
+    for(Stripe stripe:_stripes)
+    {
+      synchronized(stripe)
+      {
+        expunge(stripe,now);
+      }
+    }
+  }
+
+  /**
+   * Get the number of keys, or key groups, currently tracked.
+   * @return number of keys.
+   */
+  public int size()
+  {
+    int ans=0;
+    for(Stripe stripe:_stripes)
+    {
+      synchronized(stripe)
+      {
+        ans+=stripe.size();
+      }
+    }
+    return ans;
+  }
+
+  /**
+   * Builder, created from a RateLimiter builder.
+   * @param <K> key type.
+   */
+  public static class Builder<K>
+  {
+    private Supplier<RateLimiter> factory;
+    private Function<? super K,?> grouping;
+    private Clock clock;
+    private Duration idle;
+    private int maximumKeys;
+    private int stripes;
+
+    /**
+     * Create a new Builder.
+     * @param f factory creating the RateLimiter of each key.
+     * @param duration RateLimiter duration.
+     * @param c clock, or null to use System.nanoTime().
+     */
+    Builder(Supplier<RateLimiter> f,Duration duration,Clock c)
+    {
+      factory=f;
+      grouping=Function.identity();
+      clock=c;
+      idle=duration.multipliedBy(2);
+      maximumKeys=100000;
+      stripes=16;
+    }
+
+    /**
+     * Create the KeyedRateLimiter using the builder options.
+     * @return new KeyedRateLimiter.
+     */
+    public KeyedRateLimiter<K> build()
+    {
+      return new KeyedRateLimiter<K>(factory,grouping,clock,idle.toNanos(),maximumKeys,stripes);
+    }
+
+    /**
+     * Set the function mapping keys to the group sharing a RateLimiter. By default, each key has its own
+     * RateLimiter.
+     * @param g grouping function.
+     * @return this instance.
+     */
+    public Builder<K> groupingBy(Function<? super K,?> g)
+    {
+      grouping=g;
+      return this;
+    }
+
+    /**
+     * Set the delay after which an unused key is forgotten. The default value is twice the RateLimiter duration.
+     * A shorter delay saves memory, but a forgotten key starts over with a fresh RateLimiter.
+     * @param d idle delay.
+     * @return this instance.
+     */
+    public Builder<K> expireAfterIdle(Duration d)
+    {
+      if(d.isNegative()) throw new IllegalArgumentException(d.toString());
+      idle=d;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of keys, or key groups, tracked at the same time. When exceeded, the least recently
+     * used keys are forgotten. The bound is enforced per stripe, so that it is only approximate. The default value
+     * is 100000.
+     * @param max maximum number of keys.
+     * @return this instance.
+     */
+    public Builder<K> maximumKeys(int max)
+    {
+      if(max<=0) throw new IllegalArgumentException(Integer.toString(max));
+      maximumKeys=max;
+      return this;
+    }
+
+    /**
+     * Set the number of stripes, rounded up to a power of two. The default value is 16.
+     * @param count number of stripes.
+     * @return this instance.
+     */
+    public Builder<K> stripes(int count)
+    {
+      if(count<=0 || count>1<<16) throw new IllegalArgumentException(Integer.toString(count));
+      stripes=count==1?1:Integer.highestOneBit(count-1)<<1;
+      return this;
+    }
+  }
+}
@@ -0,0 +1,366 @@
+/**
+ * Copyright Acropolis Software SPRL (https://www.acrosoft.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.acrosoft.gaia.shared.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Second cache tier, holding serialized values outside of the Java heap, either in direct buffers or in a
+ * memory-mapped file.
+ * <p>
+ * The memory is split into fixed-size blocks, and a value is stored in as many blocks as needed, which do not
+ * have to be contiguous, so that the store never needs to be compacted. Only the index, mapping each key to its
+ * blocks, lives on the heap. When there are not enough free blocks for a new value, the least recently used
+ * values are dropped.
+ * <p>
+ * Memory is allocated in slabs of up to 1GB, so that the total capacity is not limited by the size of a
+ * ByteBuffer.
+ * <p>
+ * Instances of this class are thread-safe.
+ * @param <K> key type.
+ */
+class OffHeapStore<K>
+{
+  private static final Logger LOGGER=Logger.getLogger(OffHeapStore.class.getName());
+  
+  /**
+   * Size of a block, in bytes.
+   */
+  static final int BLOCK_SIZE=256;
+  private static final int BLOCKS_PER_SLAB=(1<<30)/BLOCK_SIZE;
+  
+  /**
+   * Value read from the store.
+   */
+  static class Value
+  {
+    /**
+     * Value. Can be null.
+     */
+    final Object value;
+    /**
+     * Expiration delay, or -1 if the value does not expire.
+     */
+    final long expiration;
+    /**
+     * Time after which the value is expired, in ms, or CacheItem.NEVER.
+     */
+    final long expiresAt;
+    /**
+     * Entry the value was read from.
+     */
+    final Entry entry;
+    
+    /**
+     * Create a new Value.
+     * @param v value.
+     * @param e entry the value was read from.
+     */
+    Value(Object v,Entry e)
+    {
+      value=v;
+      expiration=e.expiration;
+      expiresAt=e.expiresAt;
+      entry=e;
+    }
+  }
+  
+  /**
+   * Serialized value, ready to be stored.
+   */
+  static class Encoded
+  {
+    /**
+     * Serialized value, or null for a null value.
+     */
+    final byte[] data;
+    
+    /**
+     * Create a new Encoded.
+     * @param d serialized value.
+     */
+    Encoded(byte[] d)
+    {
+      data=d;
+    }
+  }
+  
+  private static final Encoded NULL_VALUE=new Encoded(null);
+  
+  /**
+   * Location of a stored value.
+   */
+  private static class Entry
+  {
+    /**
+     * Blocks, in order.
+     */
+    public final int[] blocks;
+    /**
+     * Length of the serialized value, or -1 for a null value.
+     */
+    public final int length;
+    public final long expiration;
+    public final long expiresAt;
+    
+    /**
+     * Create a new Entry.
+     * @param b blocks.
+     * @param l length.
+     * @param exp expiration delay.
+     * @param expAt expiration time.
+     */
+    public Entry(int[] b,int l,long exp,long expAt)
+    {
+      blocks=b;
+      length=l;
+      expiration=exp;
+      expiresAt=expAt;
+    }
+  }
+  
+  private final Cache.Serializer _serializer;
+  private final ByteBuffer[] _slabs;
+  /**
+   * Stack of free block indexes.
+   */
+  private final int[] _free;
+  private int _freeCount;
+  /**
+   * Stored values, in access order.
+   */
+  private final LinkedHashMap<K,Entry> _entries;
+  
+  /**
+   * Create a new OffHeapStore.
+   * @param capacity capacity, in bytes. Rounded down to a whole number of blocks.
+   * @param serializer value serializer.
+   * @param file file to map, or null to use direct buffers. The file is created if needed, and its content is
+   * overwritten.
+   * @throws IOException if the file cannot be mapped.
+   */
+  OffHeapStore(long capacity,Cache.Serializer serializer,Path file) throws IOException
+  {
+    long blocks=capacity/BLOCK_SIZE;
+    if(blocks<=0 || blocks>Integer.MAX_VALUE) throw new IllegalArgumentException(Long.toString(capacity));
+    int count=(int)blocks;
+    _serializer=serializer;
+    _slabs=new ByteBuffer[(count+BLOCKS_PER_SLAB-1)/BLOCKS_PER_SLAB];
+    if(file==null)
+    {
+      for(int i=0;i<_slabs.length;i++)
+        _slabs[i]=ByteBuffer.allocateDirect(slabBlocks(count,i)*BLOCK_SIZE);
+    }
+    else
+    {
+      //The mappings stay valid once the channel is closed.
+      try(FileChannel channel=FileChannel.open(file,StandardOpenOption.CREATE,StandardOpenOption.READ,StandardOpenOption.WRITE))
+      {
+        for(int i=0;i<_slabs.length;i++)
+          _slabs[i]=channel.map(FileChannel.MapMode.READ_WRITE,(long)i*BLOCKS_PER_SLAB*BLOCK_SIZE,(long)slabBlocks(count,i)*BLOCK_SIZE);
+      }
+    }
+    _free=new int[count];
+    for(int i=0;i<count;i++)
+      _free[i]=count-1-i;
+    _freeCount=count;
+    _entries=new LinkedHashMap<>(16,0.75f,true);
+  }
+  
+  private static int slabBlocks(int count,int slab)
+  {
+    return Math.min(BLOCKS_PER_SLAB,count-slab*BLOCKS_PER_SLAB);
+  }
+  
+  /**
+   * Release the blocks of the given entry.
+   * @param entry entry.
+   */
+  private void release(Entry entry)
+  {
+    for(int block:entry.blocks)
+      _free[_freeCount++]=block;
+  }
+  
+  /**
+   * Serialize the given value. The serializer is user code, so this is done without holding any lock, before
+   * storing the value with {@link #put(Object,Encoded,long,long)}.
+   * @param key key.
+   * @param value value. Can be null.
+   * @return serialized value, or null if the value cannot be serialized.
+   */
+  Encoded encode(K key,Object value)
+  {
+    if(value==null) return NULL_VALUE;
+    try
+    {
+      return new Encoded(_serializer.serialize(value));
+    }
+    catch(IOException ex)
+    {
+      LOGGER.log(Level.FINE,"Value of "+key+" not stored off-heap",ex); //$NON-NLS-1$
+      return null;
+    }
+  }
+  
+  /**
+   * Store the given serialized value, replacing any previous value for the key. If the value could not be
+   * serialized or is larger than the store, it is not stored, and any previous value is removed.
+   * @param key key.
+   * @param encoded serialized value, or null if the value could not be serialized.
+   * @param expiration expiration delay, or -1 if the value does not expire.
+   * @param expiresAt expiration time, or CacheItem.NEVER.
+   */
+  synchronized void put(K key,Encoded encoded,long expiration,long expiresAt)
+  {
+    Entry previous=_entries.remove(key);
+    if(previous!=null)
+      release(previous);
+    if(encoded==null) return;
+    byte[] data=encoded.data;
+    int length=data==null?-1:data.length;
+    int needed=(Math.max(length,0)+BLOCK_SIZE-1)/BLOCK_SIZE;
+    if(needed>_free.length) return;
+    
+    Iterator<Map.Entry<K,Entry>> it=_entries.entrySet().iterator();
+    while(_freeCount<needed)
+    {
+      release(it.next().getValue());
+      it.remove();
+    }
+    
+    int[] blocks=new int[needed];
+    for(int i=0;i<needed;i++)
+    {
+      blocks[i]=_free[--_freeCount];
+      int offset=i*BLOCK_SIZE;
+      ByteBuffer slab=_slabs[blocks[i]/BLOCKS_PER_SLAB];
+      slab.position((blocks[i]%BLOCKS_PER_SLAB)*BLOCK_SIZE);
+      slab.put(data,offset,Math.min(BLOCK_SIZE,length-offset));
+    }
+    _entries.put(key,new Entry(blocks,length,expiration,expiresAt));
+  }
+  
+  /**
+   * Get the value stored for the given key. Expired values, and values that cannot be deserialized, are
+   * removed.
+   * @param key key.
+   * @param now current time, in ms.
+   * @return value, or null if there is no valid value for this key.
+   */
+  Value get(K key,long now)
+  {
+    Entry entry;
+    byte[] data;
+    synchronized(this)
+    {
+      entry=_entries.get(key);
+      if(entry==null) return null;
+      if(entry.expiresAt!=CacheItem.NEVER && now>entry.expiresAt)
+      {
+        _entries.remove(key);
+        release(entry);
+        return null;
+      }
+      if(entry.length<0) return new Value(null,entry);
+      data=new byte[entry.length];
+      for(int i=0;i<entry.blocks.length;i++)
+      {
+        int offset=i*BLOCK_SIZE;
+        ByteBuffer slab=_slabs[entry.blocks[i]/BLOCKS_PER_SLAB];
+        slab.position((entry.blocks[i]%BLOCKS_PER_SLAB)*BLOCK_SIZE);
+        slab.get(data,offset,Math.min(BLOCK_SIZE,entry.length-offset));
+      }
+    }
+    
+    try
+    {
+      return new Value(_serializer.deserialize(data),entry);
+    }
+    catch(IOException ex)
+    {
+      LOGGER.log(Level.WARNING,"Unable to read the off-heap value of "+key,ex); //$NON-NLS-1$
+      synchronized(this)
+      {
+        if(_entries.get(key)==entry)
+        {
+          _entries.remove(key);
+          release(entry);
+        }
+      }
+      return null;
+    }
+  }
+  
+  /**
+   * Check whether the given value, read from this store, is still the one stored for its key.
+   * @param key key.
+   * @param value value read with {@link #get(Object,long)}.
+   * @return true if the value has not been removed or replaced since it was read.
+   */
+  synchronized boolean isCurrent(K key,Value value)
+  {
+    return _entries.get(key)==value.entry;
+  }
+  
+  /**
+   * Remove the value stored for the given key, if any.
+   * @param key key.
+   */
+  synchronized void remove(K key)
+  {
+    Entry entry=_entries.remove(key);
+    if(entry!=null)
+      release(entry);
+  }
+  
+  /**
+   * Remove all values.
+   */
+  synchronized void clear()
+  {
+    for(Entry entry:_entries.values())
+      release(entry);
+    _entries.clear();
+  }
+  
+  /**
+   * Get the number of stored values.
+   * @return number of values.
+   */
+  synchronized int size()
+  {
+    return _entries.size();
+  }
+  
+  /**
+   * Get the number of bytes used by the stored values, including the unused end of their last block.
+   * @return used bytes.
+   */
+  synchronized long getUsedBytes()
+  {
+    return (long)(_free.length-_freeCount)*BLOCK_SIZE;
+  }
+}
@@ -15,15 +15,17 @@
  */
 package be.acrosoft.gaia.shared.util;
 
-import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
 
 /**
  * This class implements an array partition. A partition is a set of Element. Each
@@ -32,12 +34,24 @@ import java.util.function.Function;
  * or there can be several partition element per category if the partition is not merged in order
  * to preserve ordering.<br/>
  * Once an array partition is created, several arrays can be merged into a single, bigger array,
- * following the partition.
+ * following the partition.<br/>
+ * Internally, each array item is mapped to the ordinal of its category, and elements are ranges over
+ * a single permutation of the array indexes, so that no intermediate collection is built. Categories
+ * that are enum constants or booleans are mapped to their ordinal without hashing.
  * @param <T> array item type.
  * @param <C> category type.
  */
 public class Partition<T,C> implements Iterable<Partition<T,C>.Element>
 {
+  /**
+   * Maximum number of constants of an enum for its categories to be mapped through a lookup table.
+   */
+  private static final int SMALL_ENUM=256;
+  /**
+   * Number of array items handled by each fork/join task of a parallel partition.
+   */
+  private static final int CHUNK=16384;
+
   /**
    * Data holder for the partition.
    * @param <T> item type.
@@ -56,12 +70,21 @@ public class Partition<T,C> implements Iterable<Partition<T,C>.Element>
        * @return new partition.
        */
       public Partition<T,C> merge();
-      
+
       /**
        * Create a partition, preserving order.
        * @return new partition.
        */
       public Partition<T,C> preserveOrder();
+
+      /**
+       * Get a split logic creating the partition using fork/join parallelism, which pays off for arrays of
+       * hundreds of thousands of items. The resulting partition is the same as the one created serially, but the
+       * category function may be called concurrently, from the common fork/join pool, and must therefore be
+       * thread-safe.
+       * @return parallel split logic.
+       */
+      public SplitLogic<T,C> parallel();
     }
 
     /**
@@ -70,8 +93,15 @@ public class Partition<T,C> implements Iterable<Partition<T,C>.Element>
      * @return split logic.
      */
     public <C> SplitLogic<T,C> using(Function<T,C> function);
+
+    /**
+     * Create a split logic using the given predicate to map elements to either the true or the false category.
+     * @param predicate predicate.
+     * @return split logic.
+     */
+    public SplitLogic<T,Boolean> split(Predicate<T> predicate);
   }
-  
+
   /**
    * Data injection source, created from an element.
    * @param <P> item type.
@@ -84,52 +114,88 @@ public class Partition<T,C> implements Iterable<Partition<T,C>.Element>
      */
     public void into(P[] target);
   }
-  
+
   /**
    * Element.
    */
   public class Element
   {
-    private C _category;
-    private T[] _items;
-    private int _firstIndex;
+    private int _ordinal;
+    private int _start;
+    private int _length;
     private boolean _merged;
-    
-    private Element(C category,T[] items,boolean merged,int firstIndex)
+    private T[] _items;
+
+    private Element(int ordinal,int start,int length,boolean merged)
     {
-      _category=category;
-      _items=items;
-      _firstIndex=firstIndex;
+      _ordinal=ordinal;
+      _start=start;
+      _length=length;
       _merged=merged;
+      _items=null;
     }
-    
+
     /**
      * Get the category.
      * @return the category.
      */
     public C getCategory()
     {
-      return _category;
+      return _categories.get(_ordinal);
     }
-    
+
     /**
      * Get the items.
      * @return the items.
      */
     public T[] getItems()
     {
+      if(_items==null)
+      {
+        if(_permutation==null)
+        {
+          _items=Arrays.copyOfRange(_array,_start,_start+_length);
+        }
+        else
+        {
+          T[] items=Arrays.copyOf(_array,_length);
+          for(int i=0;i<_length;i++)
+            items[i]=_array[_permutation[_start+i]];
+          _items=items;
+        }
+      }
       return _items;
     }
-    
+
+    /**
+     * Get the number of items.
+     * @return the number of items.
+     */
+    public int size()
+    {
+      return _length;
+    }
+
+    /**
+     * Get the index in the partitioned array of the given item of this element.
+     * @param i item index, between 0 and size()-1.
+     * @return index in the partitioned array.
+     */
+    public int getIndex(int i)
+    {
+      if(i<0 || i>=_length) throw new IndexOutOfBoundsException();
+      return _permutation==null?_start+i:_permutation[_start+i];
+    }
+
     /**
      * If this element is not merged, get the first index.
      * @return the first index. Undefined if isMerged() returns true.
      */
     public int getFirstIndex()
     {
-      return _firstIndex;
+      return _merged?-1:_start;
     }
-    
+
     /**
      * Check whether this element is a merged element.
      * @return true if element is a merge, false otherwise.
@@ -138,7 +204,7 @@ public class Partition<T,C> implements Iterable<Partition<T,C>.Element>
     {
       return _merged;
     }
-    
+
     /**
      * Inject an array into a larger array by following this element mapping.
      * The source array must have the same size as the partition.
@@ -154,43 +220,56 @@ public class Partition<T,C> implements Iterable<Partition<T,C>.Element>
         @Override
         public void into(P[] full)
         {
-          if(items.length!=getItems().length) throw new IllegalArgumentException();
-          if(full.length!=_categories.size()) throw new IllegalArgumentException();
-          
-          int itemIndex=0;
-          int first=0;
-          if(!isMerged()) first=getFirstIndex();
-          C cat=getCategory();
-          for(int i=first;i<full.length;i++)
+          if(items.length!=_length) throw new IllegalArgumentException();
+          if(full.length!=_array.length) throw new IllegalArgumentException();
+
+          if(_permutation==null)
+          {
+            System.arraycopy(items,0,full,_start,_length);
+          }
+          else
           {
-            if(_categories.get(i).equals(cat))
-            {
-              full[i]=items[itemIndex++];
-              if(itemIndex==items.length) break;
-            }
+            for(int i=0;i<_length;i++)
+              full[_permutation[_start+i]]=items[i];
           }
         }
       };
     }
-    
+
   }
-  
-  private ArrayList<Element> _elements;
+
+  private T[] _array;
   private ArrayList<C> _categories;
- 
+  private int[] _permutation;
+  private ArrayList<Element> _elements;
+
   /**
    * Create a new ArrayPartition.
    * @param array array to partition.
-   * @param provider array category provider used to assign a category to each array item.
+   * @param classifier category classifier used to assign a category to each array item.
    * @param merge true if a merged partition should be created, false is order must be
    * preserved.
+   * @param parallel true if the partition should be created using fork/join parallelism.
    */
-  private Partition(T[] array,Function<T,C> provider,boolean merge)
+  private Partition(T[] array,Classifier<C> classifier,boolean merge,boolean parallel)
   {
-    _categories=new ArrayList<>(array.length);
-    for(int i=0;i<array.length;i++)
-      _categories.add(provider.apply(array[i]));
-    
+    _array=array;
+    _categories=new ArrayList<>();
+    _permutation=null;
+
+    //Splitting small arrays is not worth it.
+    parallel=parallel && array.length>CHUNK;
+    int[] ordinals;
+    if(parallel)
+    {
+      ordinals=classifyParallel(array.length,classifier,_categories);
+    }
+    else
+    {
+      ordinals=new int[array.length];
+      classifier.classify(0,array.length,ordinals,_categories);
+    }
+
     if(array.length==0)
     {
       _elements=new ArrayList<>();
@@ -198,12 +277,14 @@ public class Partition<T,C> implements Iterable<Partition<T,C>.Element>
     else
     {
       if(!merge)
-        parseKeep(array);
+        parseKeep(ordinals);
+      else if(parallel)
+        parseMergeParallel(ordinals);
       else
-        parseMerge(array);
+        parseMerge(ordinals);
     }
   }
-  
+
   /**
    * Create a new holder, first step to create a partition.
    * @param array array to be partitioned.
@@ -214,93 +295,337 @@ public class Partition<T,C> implements Iterable<Partition<T,C>.Element>
     return new Holder<T>()
     {
       @Override
-      public <C> be.acrosoft.gaia.shared.util.Partition.Holder.SplitLogic<T,C> using(Function<T,C> function)
+      public <C> Holder.SplitLogic<T,C> using(Function<T,C> function)
       {
-        return new SplitLogic()
-        {
-          @Override
-          public Partition<T,C> preserveOrder()
-          {
-            return new Partition<T,C>(array,function,false);
-          }
-          
-          @Override
-          public Partition<T,C> merge()
-          {
-            return new Partition<T,C>(array,function,true);
-          }
-        };
+        return new Logic<T,C>(array,(from,to,ordinals,categories)->classify(array,from,to,function,ordinals,categories),
+          false);
+      }
+
+      @Override
+      public Holder.SplitLogic<T,Boolean> split(Predicate<T> predicate)
+      {
+        return new Logic<T,Boolean>(array,(from,to,ordinals,categories)->classify(array,from,to,predicate,ordinals,
+          categories),false);
       }
-      
     };
   }
-  
-  private T[] toArray(List<T> list,T[] array)
+
+  /**
+   * Map a range of array items to the ordinals of their categories, ordinals being assigned in order of first
+   * appearance.
+   * @param <C> category type.
+   */
+  private static interface Classifier<C>
   {
-    Object ans=Array.newInstance(array.getClass().getComponentType(),list.size());
-    for(int i=0;i<list.size();i++)
-      Array.set(ans,i,list.get(i));
-    return (T[])ans;
+    /**
+     * Classify a range of array items.
+     * @param from first item index, inclusive.
+     * @param to last item index, exclusive.
+     * @param ordinals array receiving the category ordinals, at the item indexes.
+     * @param categories list receiving the categories, by ordinal.
+     */
+    public void classify(int from,int to,int[] ordinals,ArrayList<C> categories);
   }
-  
-  private void parseKeep(T[] array)
+
+  /**
+   * Split logic implementation.
+   * @param <T> item type.
+   * @param <C> category type.
+   */
+  private static class Logic<T,C> implements Holder.SplitLogic<T,C>
   {
-    ArrayList<Element> global=new ArrayList<Element>();
-    ArrayList<T> current=new ArrayList<T>();
-    int first=0;
-    C currentCategory=_categories.get(first);
-    current.add(array[first]);
-    
-    for(int i=1;i<array.length;i++)
+    private T[] _array;
+    private Classifier<C> _classifier;
+    private boolean _parallel;
+
+    /**
+     * Create a new Logic.
+     * @param array array to partition.
+     * @param classifier category classifier.
+     * @param parallel whether to use fork/join parallelism.
+     */
+    public Logic(T[] array,Classifier<C> classifier,boolean parallel)
+    {
+      _array=array;
+      _classifier=classifier;
+      _parallel=parallel;
+    }
+
+    @Override
+    public Partition<T,C> merge()
+    {
+      return new Partition<T,C>(_array,_classifier,true,_parallel);
+    }
+
+    @Override
+    public Partition<T,C> preserveOrder()
     {
-      if(_categories.get(i).equals(currentCategory))
+      return new Partition<T,C>(_array,_classifier,false,_parallel);
+    }
+
+    @Override
+    public Holder.SplitLogic<T,C> parallel()
+    {
+      return new Logic<T,C>(_array,_classifier,true);
+    }
+  }
+
+  /**
+   * Fork/join task running an action on each chunk of a range of chunks.
+   */
+  private static class ChunkTask extends RecursiveAction
+  {
+    private static final long serialVersionUID=1L;
+
+    private int _from;
+    private int _to;
+    private transient IntConsumer _action;
+
+    /**
+     * Create a new ChunkTask.
+     * @param from first chunk, inclusive.
+     * @param to last chunk, exclusive.
+     * @param action action to run on each chunk.
+     */
+    public ChunkTask(int from,int to,IntConsumer action)
+    {
+      _from=from;
+      _to=to;
+      _action=action;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if(_to-_from==1)
       {
-        current.add(array[i]);
+        _action.accept(_from);
       }
       else
       {
-        Element el=new Element(currentCategory,toArray(current,array),false,first);
-        first=i;
-        global.add(el);
-        current.clear();
-        currentCategory=_categories.get(first);
-        current.add(array[first]);
+        int middle=(_from+_to)>>>1;
+        invokeAll(new ChunkTask(_from,middle,_action),new ChunkTask(middle,_to,_action));
       }
     }
-    
-    Element el=new Element(currentCategory,toArray(current,array),false,first);
-    global.add(el);
-    
-    _elements=global;
   }
-  
-  private void parseMerge(T[] array)
+
+  /**
+   * Run an action on each chunk, in parallel.
+   * @param chunks number of chunks.
+   * @param action action to run on each chunk.
+   */
+  private static void forEachChunk(int chunks,IntConsumer action)
+  {
+    ForkJoinPool.commonPool().invoke(new ChunkTask(0,chunks,action));
+  }
+
+  /**
+   * Map each array item to the ordinal of its category, in parallel. Each chunk is classified on its own, then the
+   * chunk categories are merged in chunk order so that ordinals are still assigned in order of first appearance.
+   * @param length array length.
+   * @param classifier category classifier.
+   * @param categories list receiving the categories, by ordinal.
+   * @return category ordinals.
+   */
+  private static <C> int[] classifyParallel(int length,Classifier<C> classifier,ArrayList<C> categories)
   {
-    HashMap<C,ArrayList<T>> map=new HashMap<C,ArrayList<T>>();
-    
-    for(int i=0;i<array.length;i++)
+    int[] ordinals=new int[length];
+    int chunks=(length+CHUNK-1)/CHUNK;
+    @SuppressWarnings("unchecked")
+    ArrayList<C>[] local=(ArrayList<C>[])new ArrayList<?>[chunks];
+    forEachChunk(chunks,c->{
+      local[c]=new ArrayList<>();
+      classifier.classify(c*CHUNK,Math.min(length,(c+1)*CHUNK),ordinals,local[c]);
+    });
+
+    HashMap<C,Integer> map=new HashMap<>();
+    int[][] remap=new int[chunks][];
+    for(int c=0;c<chunks;c++)
     {
-      C cat=_categories.get(i);
-      ArrayList<T> element=map.get(cat);
-      if(element==null)
+      remap[c]=new int[local[c].size()];
+      for(int j=0;j<remap[c].length;j++)
       {
-        element=new ArrayList<T>();
-        map.put(cat,element);
+        C cat=local[c].get(j);
+        Integer existing=map.get(cat);
+        if(existing==null)
+        {
+          existing=Integer.valueOf(categories.size());
+          map.put(cat,existing);
+          categories.add(cat);
+        }
+        remap[c][j]=existing.intValue();
       }
-      element.add(array[i]);
     }
-    
-    Set<Map.Entry<C,ArrayList<T>>> entrySet=map.entrySet();
-    _elements=new ArrayList<>(entrySet.size());
-    
-    for(Map.Entry<C,ArrayList<T>> category:entrySet)
+
+    forEachChunk(chunks,c->{
+      int[] r=remap[c];
+      int to=Math.min(length,(c+1)*CHUNK);
+      for(int i=c*CHUNK;i<to;i++)
+        ordinals[i]=r[ordinals[i]];
+    });
+    return ordinals;
+  }
+
+  /**
+   * Map a range of array items to the ordinals of their categories.
+   * @param array array to partition.
+   * @param from first item index, inclusive.
+   * @param to last item index, exclusive.
+   * @param function category function.
+   * @param ordinals array receiving the category ordinals.
+   * @param categories list receiving the categories, by ordinal.
+   */
+  private static <T,C> void classify(T[] array,int from,int to,Function<T,C> function,int[] ordinals,
+    ArrayList<C> categories)
+  {
+    HashMap<C,Integer> map=null;
+    Class<?> enumType=null;
+    int[] slots=null;
+    for(int i=from;i<to;i++)
     {
-      ArrayList<T> elements=category.getValue();
-      T[] els=toArray(elements,array);
-      _elements.add(new Element(category.getKey(),els,true,-1));
+      C cat=function.apply(array[i]);
+      int ordinal;
+      if(slots!=null && cat instanceof Enum && ((Enum<?>)cat).getDeclaringClass()==enumType)
+      {
+        int slot=((Enum<?>)cat).ordinal();
+        ordinal=slots[slot];
+        if(ordinal<0)
+        {
+          ordinal=categories.size();
+          slots[slot]=ordinal;
+          categories.add(cat);
+        }
+      }
+      else if(slots==null && map==null && cat instanceof Enum
+        && ((Enum<?>)cat).getDeclaringClass().getEnumConstants().length<=SMALL_ENUM)
+      {
+        //Only the first category decides on the lookup table, any other category goes through the map.
+        enumType=((Enum<?>)cat).getDeclaringClass();
+        slots=new int[enumType.getEnumConstants().length];
+        Arrays.fill(slots,-1);
+        ordinal=categories.size();
+        slots[((Enum<?>)cat).ordinal()]=ordinal;
+        categories.add(cat);
+      }
+      else
+      {
+        if(map==null) map=new HashMap<>();
+        Integer existing=map.get(cat);
+        if(existing==null)
+        {
+          ordinal=categories.size();
+          map.put(cat,ordinal);
+          categories.add(cat);
+        }
+        else
+        {
+          ordinal=existing.intValue();
+        }
+      }
+      ordinals[i]=ordinal;
     }
   }
-  
+
+  /**
+   * Map a range of array items to the ordinals of their boolean categories.
+   * @param array array to partition.
+   * @param from first item index, inclusive.
+   * @param to last item index, exclusive.
+   * @param predicate category predicate.
+   * @param ordinals array receiving the category ordinals.
+   * @param categories list receiving the categories, by ordinal.
+   */
+  private static <T> void classify(T[] array,int from,int to,Predicate<T> predicate,int[] ordinals,
+    ArrayList<Boolean> categories)
+  {
+    int[] slots={-1,-1};
+    for(int i=from;i<to;i++)
+    {
+      int slot=predicate.test(array[i])?1:0;
+      int ordinal=slots[slot];
+      if(ordinal<0)
+      {
+        ordinal=categories.size();
+        slots[slot]=ordinal;
+        categories.add(Boolean.valueOf(slot==1));
+      }
+      ordinals[i]=ordinal;
+    }
+  }
+
+  private void parseKeep(int[] ordinals)
+  {
+    _elements=new ArrayList<Element>();
+    int first=0;
+    for(int i=1;i<ordinals.length;i++)
+    {
+      if(ordinals[i]!=ordinals[first])
+      {
+        _elements.add(new Element(ordinals[first],first,i-first,false));
+        first=i;
+      }
+    }
+    _elements.add(new Element(ordinals[first],first,ordinals.length-first,false));
+  }
+
+  private void parseMerge(int[] ordinals)
+  {
+    //Counting sort of the array indexes by category, which keeps the original order within each category.
+    int count=_categories.size();
+    int[] starts=new int[count+1];
+    for(int ordinal:ordinals)
+      starts[ordinal+1]++;
+    for(int i=0;i<count;i++)
+      starts[i+1]+=starts[i];
+
+    _elements=new ArrayList<>(count);
+    for(int i=0;i<count;i++)
+      _elements.add(new Element(i,starts[i],starts[i+1]-starts[i],true));
+
+    _permutation=new int[ordinals.length];
+    for(int i=0;i<ordinals.length;i++)
+      _permutation[starts[ordinals[i]]++]=i;
+  }
+
+  private void parseMergeParallel(int[] ordinals)
+  {
+    //Same counting sort, each chunk writing its indexes after the ones of the previous chunks.
+    int count=_categories.size();
+    int length=ordinals.length;
+    int chunks=(length+CHUNK-1)/CHUNK;
+    int[][] offsets=new int[chunks][];
+    forEachChunk(chunks,c->{
+      int[] counts=new int[count];
+      int to=Math.min(length,(c+1)*CHUNK);
+      for(int i=c*CHUNK;i<to;i++)
+        counts[ordinals[i]]++;
+      offsets[c]=counts;
+    });
+
+    _elements=new ArrayList<>(count);
+    int start=0;
+    for(int i=0;i<count;i++)
+    {
+      int first=start;
+      for(int c=0;c<chunks;c++)
+      {
+        int n=offsets[c][i];
+        offsets[c][i]=start;
+        start+=n;
+      }
+      _elements.add(new Element(i,first,start-first,true));
+    }
+
+    int[] permutation=new int[length];
+    forEachChunk(chunks,c->{
+      int[] offset=offsets[c];
+      int to=Math.min(length,(c+1)*CHUNK);
+      for(int i=c*CHUNK;i<to;i++)
+        permutation[offset[ordinals[i]]++]=i;
+    });
+    _permutation=permutation;
+  }
+
   /**
    * Get all the elements in this partition.
    * @return all the partition elements.
@@ -15,8 +15,16 @@
  */
 package be.acrosoft.gaia.shared.util;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * The QuotedStringTokenizer serves the same purpose as the standard
@@ -26,39 +34,177 @@ import java.util.List;
  * If several quote characters are defined, quote characters within
  * quotes are considered as regular characters. For example, if ' and
  * " are quotes, "'" returns ' and '"' return ".
+ * <p>
+ * Besides the static parse methods, an instance of this class is a cursor over a CharSequence or a Reader, moving
+ * from one token to the next without building any intermediate string. Each token is reported with its boundaries
+ * in the input, quotes included, and its value, quotes excluded. Instances of this class are not thread-safe.
  */
 public class QuotedStringTokenizer
 {
+  private static final int BUFFER_SIZE=8192;
+
+  private final CharSequence _sequence;
+  private final Reader _reader;
+  private final char[] _buffer;
   /**
-   * Parse the given string using " and ' as quotes, and space as separator.
-   * @param string string to parse.
-   * @return tokens.
+   * Separator bitmap for characters below 256.
    */
-  public static String[] parse(String string)
+  private final long[] _separators;
+  /**
+   * Quote bitmap for characters below 256.
+   */
+  private final long[] _quotes;
+  /**
+   * Separators from 256 onwards, or null if there are none.
+   */
+  private final String _extendedSeparators;
+  /**
+   * Quotes from 256 onwards, or null if there are none.
+   */
+  private final String _extendedQuotes;
+  private final StringBuilder _token;
+
+  private int _offset;
+  private int _count;
+  private long _position;
+  private long _start;
+  private long _end;
+
+  /**
+   * Create a new QuotedStringTokenizer using " and ' as quotes, and space as separator.
+   * @param sequence input.
+   */
+  public QuotedStringTokenizer(CharSequence sequence)
   {
-    return parse(string," ","\"'");  //$NON-NLS-1$//$NON-NLS-2$
+    this(sequence," ","\"'"); //$NON-NLS-1$ //$NON-NLS-2$
   }
-  
+
   /**
-   * Parse the given string.
-   * @param string string to parse.
+   * Create a new QuotedStringTokenizer.
+   * @param sequence input.
    * @param separators separators. Each character of the string is considered as separator.
    * @param quotes quotes. Each character of the string is considered as quote.
-   * @return tokens.
    */
-  public static String[] parse(String string,String separators,String quotes)
+  public QuotedStringTokenizer(CharSequence sequence,String separators,String quotes)
   {
-    List<String> ans=new ArrayList<String>();
-    
-    StringBuilder current=new StringBuilder();
-    
+    this(sequence,null,separators,quotes);
+  }
+
+  /**
+   * Create a new QuotedStringTokenizer using " and ' as quotes, and space as separator.
+   * @param reader input. The reader is read as tokens are requested, and is not closed by the tokenizer.
+   */
+  public QuotedStringTokenizer(Reader reader)
+  {
+    this(reader," ","\"'"); //$NON-NLS-1$ //$NON-NLS-2$
+  }
+
+  /**
+   * Create a new QuotedStringTokenizer.
+   * @param reader input. The reader is read as tokens are requested, and is not closed by the tokenizer.
+   * @param separators separators. Each character of the string is considered as separator.
+   * @param quotes quotes. Each character of the string is considered as quote.
+   */
+  public QuotedStringTokenizer(Reader reader,String separators,String quotes)
+  {
+    this(null,reader,separators,quotes);
+  }
+
+  private QuotedStringTokenizer(CharSequence sequence,Reader reader,String separators,String quotes)
+  {
+    _sequence=sequence;
+    _reader=reader;
+    _buffer=reader==null?null:new char[BUFFER_SIZE];
+    _separators=new long[4];
+    _quotes=new long[4];
+    _extendedSeparators=toBitmap(separators,_separators);
+    _extendedQuotes=toBitmap(quotes,_quotes);
+    _token=new StringBuilder();
+    _offset=0;
+    _count=0;
+    _position=0;
+    _start=-1;
+    _end=-1;
+  }
+
+  /**
+   * Set the bits of the given characters below 256.
+   * @param chars characters.
+   * @param bitmap bitmap to fill.
+   * @return characters from 256 onwards, or null if there are none.
+   */
+  private static String toBitmap(String chars,long[] bitmap)
+  {
+    StringBuilder extended=new StringBuilder();
+    for(int i=0;i<chars.length();i++)
+    {
+      char c=chars.charAt(i);
+      if(c<256)
+        bitmap[c>>>6]|=1L<<(c&63);
+      else
+        extended.append(c);
+    }
+    return extended.length()==0?null:extended.toString();
+  }
+
+  private static boolean matches(int c,long[] bitmap,String extended)
+  {
+    if(c<256)
+      return (bitmap[c>>>6]&(1L<<(c&63)))!=0;
+    return extended!=null && extended.indexOf(c)>=0;
+  }
+
+  /**
+   * Read the next input character.
+   * @return character, or -1 at the end of the input.
+   */
+  private int read()
+  {
+    if(_reader==null)
+    {
+      if(_position>=_sequence.length())
+        return -1;
+      return _sequence.charAt((int)_position++);
+    }
+
+    if(_offset>=_count)
+    {
+      try
+      {
+        do
+        {
+          _count=_reader.read(_buffer);
+        }
+        while(_count==0);
+      }
+      catch(IOException ex)
+      {
+        throw new GaiaRuntimeException(ex);
+      }
+      _offset=0;
+      if(_count<0)
+        return -1;
+    }
+    _position++;
+    return _buffer[_offset++];
+  }
+
+  /**
+   * Move to the next token.
+   * @return true if there is a next token, false if the end of the input is reached.
+   * @throws GaiaRuntimeException if the input reader fails.
+   */
+  public boolean next()
+  {
+    _token.setLength(0);
+
     char currentQuote=0;
     boolean inQuote=false;
-    
-    for(int i=0;i<string.length();i++)
+    boolean started=false;
+
+    int c;
+    while((c=read())>=0)
     {
-      char c=string.charAt(i);
-      
       if(inQuote)
       {
         if(c==currentQuote)
@@ -67,34 +213,159 @@ public class QuotedStringTokenizer
         }
         else
         {
-          current.append(c);
+          _token.append((char)c);
         }
       }
-      else
+      else if(matches(c,_quotes,_extendedQuotes))
       {
-        if(quotes.indexOf(c)>=0)
+        if(!started)
         {
-          currentQuote=c;
-          inQuote=true;
+          _start=_position-1;
+          started=true;
         }
-        else if(separators.indexOf(c)>=0)
+        currentQuote=(char)c;
+        inQuote=true;
+      }
+      else if(matches(c,_separators,_extendedSeparators))
+      {
+        if(_token.length()>0)
         {
-          if(current.length()>0)
-          {
-            ans.add(current.toString());
-            current=new StringBuilder();
-          }
+          _end=_position-1;
+          return true;
         }
-        else
+        //Quotes with nothing between them do not make a token.
+        started=false;
+      }
+      else
+      {
+        if(!started)
         {
-          current.append(c);
+          _start=_position-1;
+          started=true;
         }
+        _token.append((char)c);
       }
     }
-    
-    if(current.length()>0)
-      ans.add(current.toString());
-    
+
+    if(_token.length()>0)
+    {
+      _end=_position;
+      return true;
+    }
+    _start=-1;
+    _end=-1;
+    return false;
+  }
+
+  /**
+   * Get the index of the first character of the current token, quotes included.
+   * @return start index, or -1 if there is no current token.
+   */
+  public long getStart()
+  {
+    return _start;
+  }
+
+  /**
+   * Get the index following the last character of the current token, quotes included.
+   * @return end index, or -1 if there is no current token.
+   */
+  public long getEnd()
+  {
+    return _end;
+  }
+
+  /**
+   * Get the value of the current token.
+   * @return token, without quotes, or null if there is no current token.
+   */
+  public String getToken()
+  {
+    if(_end<0)
+      return null;
+    return _token.toString();
+  }
+
+  /**
+   * Append the value of the current token to the given builder.
+   * @param out builder receiving the token, without quotes. Nothing is appended if there is no current token.
+   * @return out.
+   */
+  public StringBuilder appendToken(StringBuilder out)
+  {
+    return out.append(_token);
+  }
+
+  /**
+   * Get an iterator on the remaining tokens. Tokens are parsed as the iteration goes, and moving the iterator moves
+   * this tokenizer as well.
+   * @return iterator.
+   * @throws GaiaRuntimeException on iteration if the input reader fails.
+   */
+  public Iterator<String> iterator()
+  {
+    return new Iterator<String>()
+    {
+      private boolean _ready=false;
+      private boolean _done=false;
+
+      @Override
+      public boolean hasNext()
+      {
+        if(!_ready && !_done)
+        {
+          if(QuotedStringTokenizer.this.next())
+            _ready=true;
+          else
+            _done=true;
+        }
+        return _ready;
+      }
+
+      @Override
+      public String next()
+      {
+        if(!hasNext())
+          throw new NoSuchElementException();
+        _ready=false;
+        return getToken();
+      }
+    };
+  }
+
+  /**
+   * Get a sequential stream of the remaining tokens. Tokens are parsed lazily, as the stream is consumed.
+   * @return stream.
+   * @throws GaiaRuntimeException on consumption if the input reader fails.
+   */
+  public Stream<String> stream()
+  {
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(),Spliterator.ORDERED|Spliterator.NONNULL),false);
+  }
+
+  /**
+   * Parse the given string using " and ' as quotes, and space as separator.
+   * @param string string to parse.
+   * @return tokens.
+   */
+  public static String[] parse(String string)
+  {
+    return parse(string," ","\"'");  //$NON-NLS-1$//$NON-NLS-2$
+  }
+  
+  /**
+   * Parse the given string.
+   * @param string string to parse.
+   * @param separators separators. Each character of the string is considered as separator.
+   * @param quotes quotes. Each character of the string is considered as quote.
+   * @return tokens.
+   */
+  public static String[] parse(String string,String separators,String quotes)
+  {
+    List<String> ans=new ArrayList<String>();
+    QuotedStringTokenizer tokenizer=new QuotedStringTokenizer(string,separators,quotes);
+    while(tokenizer.next())
+      ans.add(tokenizer.getToken());
     return ans.toArray(new String[ans.size()]);
   }
 
@@ -117,31 +388,12 @@ public class QuotedStringTokenizer
   public static List<Pair<Integer,Integer>> parseRanges(String string,String separators)
   {
     List<Pair<Integer,Integer>> ans=new ArrayList<Pair<Integer,Integer>>();
-    
-    int currentStart=0;
-    int currentLength=0;
-    
-    for(int i=0;i<string.length();i++)
+    QuotedStringTokenizer tokenizer=new QuotedStringTokenizer(string,separators,""); //$NON-NLS-1$
+    while(tokenizer.next())
     {
-      char c=string.charAt(i);
-      
-      if(separators.indexOf(c)>=0)
-      {
-        if(currentLength>0)
-          ans.add(new Pair<Integer,Integer>(currentStart,currentLength));
-        currentLength=0;
-      }
-      else
-      {
-        if(currentLength==0)
-          currentStart=i;
-        currentLength++;
-      }
+      int start=(int)tokenizer.getStart();
+      ans.add(new Pair<Integer,Integer>(start,(int)tokenizer.getEnd()-start));
     }
-    
-    if(currentLength>0)
-      ans.add(new Pair<Integer,Integer>(currentStart,currentLength));
-    
     return ans;
   }
 }
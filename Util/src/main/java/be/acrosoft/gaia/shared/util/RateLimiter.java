@@ -18,35 +18,123 @@ package be.acrosoft.gaia.shared.util;
 import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The RateLimiter is used to filter consecutive executions and limit their rate of execution.
  * <p>
  * The behavior is based on a maximum number of occurrences within a specified duration. These allowed occurrences
- * will be accepted. Any subsequent occurrence within the duration will be rejected.
+ * will be accepted. Any subsequent occurrence within the duration will be rejected. By default, the count of
+ * occurrences is only reset once no occurrence happened for the whole duration, so that a steady stream of
+ * occurrences keeps being rejected. The builder can select a token bucket or a sliding window instead, which
+ * keep accepting occurrences at the allowed rate.
+ * <p>
+ * The whole state of a RateLimiter is packed in a single long updated with compare-and-set, so that concurrent
+ * callers never block each other.
+ * <p>
+ * Callers that must eventually proceed rather than be rejected can wait for their occurrences to be accepted,
+ * either blocking with acquire or asynchronously with acquireAsync.
  * <p>
  * Instances of this class are thread-safe.
  */
 public class RateLimiter
 {
-  private Duration _duration;
-  private int _maxOccurrences;
-  private Clock _clock;
+  /**
+   * Limiting algorithm.
+   */
+  private static enum Mode
+  {
+    /**
+     * Reject occurrences beyond the maximum until no occurrence happened for the whole duration.
+     */
+    QUIET_PERIOD,
+    /**
+     * Token bucket holding up to the maximum number of occurrences, refilled continuously over the duration.
+     */
+    TOKEN_BUCKET,
+    /**
+     * Sliding window counter, interpolating the count of the previous window.
+     */
+    SLIDING_WINDOW
+  }
+
+  /**
+   * Number of time ticks per duration used to detect quiet periods.
+   */
+  private static final long QUIET_TICKS=1024;
+  /**
+   * Maximum number of occurrences in sliding window mode.
+   */
+  private static final int MAX_WINDOW_COUNT=0xFFFF;
+  private static final long NANOS_PER_SECOND=1000000000L;
+
+  private static ScheduledExecutorService _executor=null;
 
-  private int _currentCount;
-  private Instant _previousInstant;
-  
-  private Object _lock=new Object();
+  private final Mode _mode;
+  private final long _duration;
+  private final int _maxOccurrences;
+  private final Clock _clock;
+  private final long _origin;
 
-  private RateLimiter(Duration duration,int maxOccurrences,Clock clock)
+  /**
+   * Quiet period mode: duration of a time tick, in ns.
+   */
+  private final long _tick;
+  /**
+   * Quiet period mode: number of ticks in the duration.
+   */
+  private final long _quietTicks;
+  /**
+   * Token bucket mode: time needed to get one token back, in ns.
+   */
+  private final long _interval;
+
+  /**
+   * Packed state. Quiet period mode: last tick (32 bits) and count (32 bits). Token bucket mode: theoretical
+   * arrival time of the next occurrence, in ns. Sliding window mode: current window index (32 bits), previous
+   * window count (16 bits) and current window count (16 bits).
+   */
+  private final AtomicLong _state;
+
+  private RateLimiter(Mode mode,Duration duration,int maxOccurrences,Clock clock)
   {
-    _duration=duration;
+    _mode=mode;
+    _duration=Math.max(1,duration.toNanos());
     _maxOccurrences=maxOccurrences;
     _clock=clock;
-    _currentCount=0;
-    _previousInstant=null;
+    _origin=nanoTime(clock);
+    _tick=Math.max(1,_duration/QUIET_TICKS);
+    _quietTicks=_duration/_tick;
+    _interval=Math.max(1,_duration/Math.max(1,maxOccurrences));
+    _state=new AtomicLong(0);
+  }
+
+  /**
+   * Get the current time of the given clock.
+   * @param clock clock, or null to use System.nanoTime().
+   * @return current time, in ns, from an arbitrary origin.
+   */
+  static long nanoTime(Clock clock)
+  {
+    if(clock==null) return System.nanoTime();
+    Instant instant=clock.instant();
+    return instant.getEpochSecond()*NANOS_PER_SECOND+instant.getNano();
+  }
+
+  /**
+   * Get the current time.
+   * @return time elapsed since this instance creation, in ns.
+   */
+  private long now()
+  {
+    return nanoTime(_clock)-_origin;
   }
-  
+
   /**
    * Return whether a new occurrence should be accepted at this time.
    * @return true if the occurrence is accepted, which means that the number of occurrences does not exceed the
@@ -54,25 +142,244 @@ public class RateLimiter
    */
   public boolean accept()
   {
-    Instant now=_clock.instant();
-    
-    synchronized(_lock)
+    return tryAcquire(1);
+  }
+
+  /**
+   * Return whether several occurrences should be accepted at this time, all of them being either accepted or
+   * rejected.
+   * @param permits number of occurrences.
+   * @return true if the occurrences are accepted, false otherwise.
+   */
+  public boolean tryAcquire(int permits)
+  {
+    if(permits<=0) throw new IllegalArgumentException(Integer.toString(permits));
+    return attempt(permits,true)==0;
+  }
+
+  /**
+   * Wait until several occurrences can be accepted, then accept them.
+   * @param permits number of occurrences, which cannot exceed the maximum occurrences.
+   * @throws InterruptedException if the wait gets interrupted.
+   */
+  public void acquire(int permits) throws InterruptedException
+  {
+    checkPermits(permits);
+    while(true)
     {
-      if(_previousInstant!=null)
+      long wait=attempt(permits,false);
+      if(wait==0) return;
+      TimeUnit.NANOSECONDS.sleep(wait);
+    }
+  }
+
+  /**
+   * Wait until several occurrences can be accepted, then accept them, unless that would take longer than the
+   * given timeout.
+   * @param permits number of occurrences, which cannot exceed the maximum occurrences.
+   * @param timeout maximum duration to wait.
+   * @return true if the occurrences have been accepted, false if the timeout would expire before. In that case,
+   * this method returns as soon as it knows that the timeout is too short.
+   * @throws InterruptedException if the wait gets interrupted.
+   */
+  public boolean tryAcquire(int permits,Duration timeout) throws InterruptedException
+  {
+    checkPermits(permits);
+    long deadline=now()+timeout.toNanos();
+    while(true)
+    {
+      long wait=attempt(permits,false);
+      if(wait==0) return true;
+      long now=now();
+      if(now+wait>deadline) return false;
+      TimeUnit.NANOSECONDS.sleep(wait);
+    }
+  }
+
+  /**
+   * Accept several occurrences as soon as they can be, without blocking the calling thread. The waits are
+   * scheduled on a shared daemon thread.
+   * @param permits number of occurrences, which cannot exceed the maximum occurrences.
+   * @return stage completed once the occurrences have been accepted. Dependent stages that are not async are run
+   * from the shared thread, and must therefore be short.
+   */
+  public CompletionStage<Void> acquireAsync(int permits)
+  {
+    return acquireAsync(permits,getExecutor());
+  }
+
+  /**
+   * Accept several occurrences as soon as they can be, without blocking the calling thread.
+   * @param permits number of occurrences, which cannot exceed the maximum occurrences.
+   * @param executor executor on which the waits are scheduled.
+   * @return stage completed once the occurrences have been accepted. Cancelling the stage gives up.
+   */
+  public CompletionStage<Void> acquireAsync(int permits,ScheduledExecutorService executor)
+  {
+    checkPermits(permits);
+    CompletableFuture<Void> future=new CompletableFuture<Void>();
+    retry(permits,executor,future);
+    return future;
+  }
+
+  private void retry(int permits,ScheduledExecutorService executor,CompletableFuture<Void> future)
+  {
+    if(future.isDone()) return;
+    long wait=attempt(permits,false);
+    if(wait==0)
+    {
+      //If the stage has been cancelled in the meantime, the occurrences are lost.
+      future.complete(null);
+      return;
+    }
+    try
+    {
+      executor.schedule(()->retry(permits,executor,future),wait,TimeUnit.NANOSECONDS);
+    }
+    catch(RuntimeException ex)
+    {
+      future.completeExceptionally(ex);
+    }
+  }
+
+  private void checkPermits(int permits)
+  {
+    if(permits<=0 || permits>_maxOccurrences) throw new IllegalArgumentException(Integer.toString(permits));
+  }
+
+  private static synchronized ScheduledExecutorService getExecutor()
+  {
+    if(_executor==null)
+    {
+      ScheduledThreadPoolExecutor executor=new ScheduledThreadPoolExecutor(1,runnable->{
+        Thread thread=new Thread(runnable,"Rate limiter"); //$NON-NLS-1$
+        thread.setDaemon(true);
+        return thread;
+      });
+      executor.setRemoveOnCancelPolicy(true);
+      _executor=executor;
+    }
+    return _executor;
+  }
+
+  /**
+   * Try to accept several occurrences.
+   * @param permits number of occurrences.
+   * @param record whether a rejected attempt counts as an occurrence, which matters in quiet period mode.
+   * @return 0 if the occurrences have been accepted, otherwise the estimated time to wait before they can be, in ns.
+   * Long.MAX_VALUE if they can never be.
+   */
+  private long attempt(int permits,boolean record)
+  {
+    long now=now();
+    switch(_mode)
+    {
+      case TOKEN_BUCKET:
+        return acquireBucket(now,permits);
+      case SLIDING_WINDOW:
+        return acquireWindow(now,permits);
+      default:
+        return acquireQuiet(now,permits,record);
+    }
+  }
+
+  private long acquireQuiet(long now,int permits,boolean record)
+  {
+    long tick=Math.floorDiv(now,_tick);
+    while(true)
+    {
+      long state=_state.get();
+      long count=state&0xFFFFFFFFL;
+      long last=tick;
+      if(count>0)
       {
-        Duration delta=Duration.between(_previousInstant,now);
-        if(delta.compareTo(_duration)>0)
+        //Ticks are compared modulo 2^32, so a delta above 2^31 ticks, which is about 2 million durations, wraps
+        //around and looks negative. Only a negative delta within a duration is clock skew between threads, anything
+        //else is a long idle period.
+        int delta=(int)(tick-(state>>>32));
+        if(delta>_quietTicks || delta<-_quietTicks)
+          count=0;
+        else
+          last=tick-delta;
+      }
+      //Rejected occurrences count as well, so that they extend the period. The count saturates once above the
+      //maximum.
+      long updated=Math.min(count+permits,(long)_maxOccurrences+1);
+      long wait=updated<=_maxOccurrences?0:Math.max(1,(last+_quietTicks+1)*_tick-now);
+      if(permits>_maxOccurrences) wait=Long.MAX_VALUE;
+      if(wait!=0 && !record) return wait;
+      long next=(tick<<32)|updated;
+      if(_state.compareAndSet(state,next))
+        return wait;
+    }
+  }
+
+  private long acquireBucket(long now,int permits)
+  {
+    if(permits>_maxOccurrences) return Long.MAX_VALUE;
+    long cost=_interval*permits;
+    long capacity=_interval*_maxOccurrences;
+    while(true)
+    {
+      long tat=_state.get();
+      long next=Math.max(tat,now)+cost;
+      if(next-now>capacity) return next-now-capacity;
+      if(_state.compareAndSet(tat,next)) return 0;
+    }
+  }
+
+  private long acquireWindow(long now,int permits)
+  {
+    if(permits>_maxOccurrences) return Long.MAX_VALUE;
+    while(true)
+    {
+      long window=Math.floorDiv(now,_duration);
+      long elapsed=Math.floorMod(now,_duration);
+      long state=_state.get();
+      long previous=(state>>>16)&MAX_WINDOW_COUNT;
+      long current=state&MAX_WINDOW_COUNT;
+      //Windows are compared modulo 2^32, so a delta above 2^31 windows wraps around and looks negative. Only the
+      //previous window is clock skew between threads, anything else is a long idle period.
+      int delta=(int)(window-(state>>>32));
+      if(delta==1)
+      {
+        previous=current;
+        current=0;
+      }
+      else if(delta==-1)
+      {
+        //The clock went backwards: stay in the current window.
+        window++;
+        elapsed=0;
+      }
+      else if(delta!=0)
+      {
+        previous=0;
+        current=0;
+      }
+
+      double estimate=previous*(double)(_duration-elapsed)/_duration+current;
+      if(estimate+permits>_maxOccurrences)
+      {
+        long free=_maxOccurrences-permits;
+        double needed;
+        if(current<=free)
         {
-          _currentCount=0;
+          //Wait for the previous window to weigh less.
+          needed=_duration-(double)(free-current)*_duration/previous;
         }
+        else
+        {
+          //Wait for the next window, until the current window weighs little enough.
+          needed=_duration+_duration*(1-(double)free/current);
+        }
+        return Math.max(1,(long)Math.ceil(needed)-elapsed);
       }
-      _currentCount++;
-      _previousInstant=now;
-      return _currentCount<=_maxOccurrences;
+      long next=((window&0xFFFFFFFFL)<<32)|(previous<<16)|(current+permits);
+      if(_state.compareAndSet(state,next)) return 0;
     }
-    
   }
-  
+
   /**
    * Builder.
    */
@@ -81,23 +388,44 @@ public class RateLimiter
     private Duration duration;
     private int maxOccurrences;
     private Clock clock;
+    private Mode mode;
 
     private Builder(Duration d)
     {
       duration=d;
       maxOccurrences=1;
-      clock=Clock.systemUTC();
+      clock=null;
+      mode=Mode.QUIET_PERIOD;
     }
-    
+
     /**
      * Create the RateLimiter using the builder options.
      * @return new RateLimiter.
      */
     public RateLimiter build()
     {
-      return new RateLimiter(duration,maxOccurrences,clock);
+      if(maxOccurrences<0) throw new IllegalArgumentException(Integer.toString(maxOccurrences));
+      if(mode==Mode.SLIDING_WINDOW && maxOccurrences>MAX_WINDOW_COUNT)
+        throw new IllegalArgumentException(Integer.toString(maxOccurrences));
+      return new RateLimiter(mode,duration,maxOccurrences,clock);
+    }
+
+    /**
+     * Create a builder for a KeyedRateLimiter, limiting each key separately using the options of this builder.
+     * @param <K> key type.
+     * @return new KeyedRateLimiter builder.
+     */
+    public <K> KeyedRateLimiter.Builder<K> perKey()
+    {
+      Builder copy=new Builder(duration);
+      copy.maxOccurrences=maxOccurrences;
+      copy.clock=clock;
+      copy.mode=mode;
+      //Check the options right away rather than on the first key.
+      copy.build();
+      return new KeyedRateLimiter.Builder<K>(copy::build,duration,clock);
     }
-    
+
     /**
      * Set the maximum occurrences within the minimum period. The default value is 1.
      * @param occurrences number of occurrences accepted within the minimum period.
@@ -110,7 +438,7 @@ public class RateLimiter
     }
 
     /**
-     * Set the clock used to get the current time.
+     * Set the clock used to get the current time. By default, System.nanoTime() is used.
      * @param c clock to use.
      * @return this instance.
      */
@@ -119,8 +447,31 @@ public class RateLimiter
       clock=c;
       return this;
     }
+
+    /**
+     * Use a token bucket: up to the maximum occurrences are accepted at once, then occurrences are accepted at
+     * the steady rate of the maximum occurrences per duration.
+     * @return this instance.
+     */
+    public Builder tokenBucket()
+    {
+      mode=Mode.TOKEN_BUCKET;
+      return this;
+    }
+
+    /**
+     * Use a sliding window: occurrences are accepted as long as the number of occurrences within the last duration
+     * does not exceed the maximum. The count of the last duration is estimated from the counts of the current and
+     * previous fixed windows. The maximum occurrences cannot exceed 65535 in this mode.
+     * @return this instance.
+     */
+    public Builder slidingWindow()
+    {
+      mode=Mode.SLIDING_WINDOW;
+      return this;
+    }
   }
-  
+
   /**
    * Create a new builder, specifying the minimum duration between occurrences.
    * @param duration minimum duration between occurrences.
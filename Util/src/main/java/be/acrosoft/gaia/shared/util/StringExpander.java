@@ -15,8 +15,13 @@
  */
 package be.acrosoft.gaia.shared.util;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.function.Function;
 
 /**
  * The StringExpander allows string expansion from a given set of string->string map.
@@ -26,44 +31,117 @@ import java.util.Properties;
  * Note that the "$$" sequence is replaced with one single "$" character.
  * The expansion does not perform recursively. If an expanded value contains
  * an expansion sequence, it won't be processed.
+ * <p>
+ * Templates that are expanded repeatedly should be compiled once, the resulting Template
+ * being rendered without parsing the template again.
  */
 public class StringExpander
 {
   /**
-   * Expand the given string, using a map as expansion source.
-   * @param string string to expand.
-   * @param map mapping.
-   * @return expanded string.
+   * Compiled template: the literal parts of the template, with the variables between them. Instances of this class
+   * are immutable and thread-safe.
    */
-  public static String expand(String string,Map<String,String> map)
+  public static class Template
+  {
+    /**
+     * Literal parts, with escape sequences already processed. There is always one more literal than variables.
+     */
+    private final String[] _literals;
+    /**
+     * Variables, the variable at index i being between literals i and i+1.
+     */
+    private final String[] _variables;
+    /**
+     * Total length of the literals.
+     */
+    private final int _length;
+
+    private Template(String[] literals,String[] variables)
+    {
+      _literals=literals;
+      _variables=variables;
+      int length=0;
+      for(String literal:literals)
+        length+=literal.length();
+      _length=length;
+    }
+
+    /**
+     * Get the variables of this template.
+     * @return variables, in template order, possibly with duplicates.
+     */
+    public List<String> getVariables()
+    {
+      return Collections.unmodifiableList(Arrays.asList(_variables));
+    }
+
+    /**
+     * Render this template, appending the result to the given builder. Reusing the same builder across calls avoids
+     * allocating any intermediate string.
+     * @param resolver function giving the value of a variable, or null if the variable should be replaced with an
+     * empty string.
+     * @param out builder receiving the expanded string.
+     * @return out.
+     */
+    public StringBuilder render(Function<String,String> resolver,StringBuilder out)
+    {
+      out.append(_literals[0]);
+      for(int i=0;i<_variables.length;i++)
+      {
+        String value=resolver.apply(_variables[i]);
+        if(value!=null)
+          out.append(value);
+        out.append(_literals[i+1]);
+      }
+      return out;
+    }
+
+    /**
+     * Render this template.
+     * @param resolver function giving the value of a variable, or null if the variable should be replaced with an
+     * empty string.
+     * @return expanded string.
+     */
+    public String render(Function<String,String> resolver)
+    {
+      if(_variables.length==0)
+        return _literals[0];
+      return render(resolver,new StringBuilder(_length+16*_variables.length)).toString();
+    }
+  }
+
+  private static final Function<String,String> SYSTEM_RESOLVER=StringExpander::resolveSystem;
+
+  private static String resolveSystem(String name)
   {
-    Properties prop=new Properties();
-    prop.putAll(map);
-    return expand(string,prop);
+    //The environment is an immutable snapshot taken by the JVM, whereas system properties can change at any time but
+    //can be looked up without locking.
+    String value=System.getenv().get(name);
+    if(value!=null)
+      return value;
+    return System.getProperties().getProperty(name);
   }
-    
+
   /**
-   * Expand the given string, using both the system properties and system environment
-   * for expansion.
-   * @param string string to expand.
-   * @return expanded string.
+   * Get a resolver giving the system environment variables, then the system properties, as with expand(String).
+   * The resolver does not copy the environment or the properties.
+   * @return resolver.
    */
-  public static String expand(String string)
+  public static Function<String,String> systemResolver()
   {
-    Properties props=new Properties(System.getProperties());
-    props.putAll(System.getenv());
-    return expand(string,props);
+    return SYSTEM_RESOLVER;
   }
-  
+
   /**
-   * Expand the given string, using a Properties instance as expansion source.
-   * @param string string to expand.
-   * @param prop mapping.
-   * @return expanded string.
+   * Compile the given template.
+   * @param string template.
+   * @return compiled template.
    */
-  public static String expand(String string,Properties prop)
+  public static Template compile(String string)
   {
-    StringBuilder ans=new StringBuilder();
+    ArrayList<String> literals=new ArrayList<>();
+    ArrayList<String> variables=new ArrayList<>();
+    StringBuilder literal=new StringBuilder();
     
     int current=0;
     
@@ -72,18 +150,18 @@ public class StringExpander
       int next=string.indexOf('$',current);
       if(next<0 || next==string.length()-1)
       {
-        ans.append(string.substring(current));
+        literal.append(string,current,string.length());
         current=string.length();
       }
       else
       {
-        ans.append(string.substring(current,next));
+        literal.append(string,current,next);
         current=next;
         
         char nextChar=string.charAt(next+1);
         if(nextChar=='$')
         {
-          ans.append('$');
+          literal.append('$');
           current+=2;
         }
         else if(nextChar=='(')
@@ -91,27 +169,61 @@ public class StringExpander
           int endVar=string.indexOf(')',next+2);
           if(endVar<0)
           {
-            ans.append(string.substring(current));
+            literal.append(string,current,string.length());
             current=string.length();
           }
           else
           {
-            String var=string.substring(next+2,endVar);
-            var=prop.getProperty(var,""); //$NON-NLS-1$
-            ans.append(var);
+            literals.add(literal.toString());
+            literal.setLength(0);
+            variables.add(string.substring(next+2,endVar));
             current=endVar+1;
           }
         }
         else
         {
-          ans.append('$');
-          ans.append(nextChar);
+          literal.append('$');
+          literal.append(nextChar);
           current+=2;
         }
       }
     }
+    literals.add(literal.toString());
     
-    return ans.toString();
+    return new Template(literals.toArray(new String[literals.size()]),variables.toArray(new String[variables.size()]));
+  }
+
+  /**
+   * Expand the given string, using a map as expansion source.
+   * @param string string to expand.
+   * @param map mapping.
+   * @return expanded string.
+   */
+  public static String expand(String string,Map<String,String> map)
+  {
+    return compile(string).render(map::get);
+  }
+    
+  /**
+   * Expand the given string, using both the system properties and system environment
+   * for expansion.
+   * @param string string to expand.
+   * @return expanded string.
+   */
+  public static String expand(String string)
+  {
+    return compile(string).render(SYSTEM_RESOLVER);
+  }
+  
+  /**
+   * Expand the given string, using a Properties instance as expansion source.
+   * @param string string to expand.
+   * @param prop mapping.
+   * @return expanded string.
+   */
+  public static String expand(String string,Properties prop)
+  {
+    return compile(string).render(prop::getProperty);
   }
 
 }
@@ -0,0 +1,190 @@
+/**
+ * Copyright Acropolis Software SPRL (https://www.acrosoft.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.acrosoft.gaia.shared.util;
+
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timer wheel used to expire cache items in amortized O(1).
+ * <p>
+ * Each level is a ring of buckets, every bucket being a doubly-linked list of items expiring within the same time
+ * span. Level 0 has 64 buckets of 64ms, level 1 has 64 buckets of 4s, and so on, the last level being a single
+ * overflow bucket for items expiring more than 12 days ahead. When time advances, the buckets that have been
+ * passed over are emptied: items that have expired are reported, the others are rescheduled to a finer level.
+ * <p>
+ * This class is not thread-safe: all methods must be called from the cache maintenance lock.
+ * @param <K> key type.
+ */
+class TimerWheel<K>
+{
+  private static final int[] SHIFTS={6,12,18,24,30};
+  private static final int[] BUCKETS={64,64,64,64,1};
+
+  private final CacheItem<K>[][] _wheel;
+  private long _time;
+  private int _count;
+
+  /**
+   * Create a new TimerWheel.
+   * @param time current time, in ms.
+   */
+  TimerWheel(long time)
+  {
+    _time=time;
+    _count=0;
+    @SuppressWarnings("unchecked")
+    CacheItem<K>[][] wheel=(CacheItem<K>[][])new CacheItem<?>[BUCKETS.length][];
+    _wheel=wheel;
+    for(int i=0;i<BUCKETS.length;i++)
+    {
+      @SuppressWarnings("unchecked")
+      CacheItem<K>[] buckets=(CacheItem<K>[])new CacheItem<?>[BUCKETS[i]];
+      _wheel[i]=buckets;
+      for(int j=0;j<BUCKETS[i];j++)
+      {
+        CacheItem<K> sentinel=CacheItem.sentinel();
+        sentinel.wheelPrev=sentinel;
+        sentinel.wheelNext=sentinel;
+        _wheel[i][j]=sentinel;
+      }
+    }
+  }
+
+  private CacheItem<K> findBucket(long expiresAt)
+  {
+    //Items that are already expired go to the current bucket, which is processed by the next advance.
+    long time=Math.max(expiresAt,_time);
+    long delay=time-_time;
+    for(int i=0;i<BUCKETS.length-1;i++)
+    {
+      if(delay<1L<<SHIFTS[i+1])
+      {
+        int index=(int)((time>>>SHIFTS[i])&(BUCKETS[i]-1));
+        return _wheel[i][index];
+      }
+    }
+    return _wheel[BUCKETS.length-1][0];
+  }
+
+  private void link(CacheItem<K> sentinel,CacheItem<K> item)
+  {
+    item.wheelPrev=sentinel.wheelPrev;
+    item.wheelNext=sentinel;
+    sentinel.wheelPrev.wheelNext=item;
+    sentinel.wheelPrev=item;
+  }
+
+  /**
+   * Schedule the given item according to its expiration time.
+   * @param item item to schedule.
+   */
+  void schedule(CacheItem<K> item)
+  {
+    if(item.wheelNext!=null) return;
+    link(findBucket(item.expiresAt),item);
+    _count++;
+  }
+
+  /**
+   * Remove the given item from the wheel, if it is scheduled.
+   * @param item item to remove.
+   */
+  void remove(CacheItem<K> item)
+  {
+    if(item.wheelNext==null) return;
+    item.wheelPrev.wheelNext=item.wheelNext;
+    item.wheelNext.wheelPrev=item.wheelPrev;
+    item.wheelPrev=null;
+    item.wheelNext=null;
+    _count--;
+  }
+
+  /**
+   * Advance the wheel to the given time, reporting all the items that are expired at that time.
+   * @param time current time, in ms.
+   * @param expired callback receiving expired items, which are already removed from the wheel.
+   */
+  void advance(long time,Consumer<CacheItem<K>> expired)
+  {
+    long previous=_time;
+    if(time<=previous) return;
+    _time=time;
+    if(_count==0) return;
+
+    for(int i=0;i<BUCKETS.length;i++)
+    {
+      long previousTicks=previous>>>SHIFTS[i];
+      long currentTicks=time>>>SHIFTS[i];
+      if(currentTicks<=previousTicks) break;
+      expire(i,previousTicks,currentTicks-previousTicks,expired);
+    }
+  }
+
+  private void expire(int level,long previousTicks,long delta,Consumer<CacheItem<K>> expired)
+  {
+    CacheItem<K>[] buckets=_wheel[level];
+    int mask=buckets.length-1;
+    int steps=(int)Math.min(delta+1,buckets.length);
+    int start=(int)(previousTicks&mask);
+    for(int i=start;i<start+steps;i++)
+    {
+      CacheItem<K> sentinel=buckets[i&mask];
+      CacheItem<K> item=sentinel.wheelNext;
+      sentinel.wheelPrev=sentinel;
+      sentinel.wheelNext=sentinel;
+      while(item!=sentinel)
+      {
+        CacheItem<K> next=item.wheelNext;
+        item.wheelPrev=null;
+        item.wheelNext=null;
+        _count--;
+        if(item.expiresAt<_time)
+        {
+          expired.accept(item);
+        }
+        else
+        {
+          schedule(item);
+        }
+        item=next;
+      }
+    }
+  }
+
+  /**
+   * Remove all items from the wheel.
+   */
+  void clear()
+  {
+    for(CacheItem<K>[] buckets:_wheel)
+    {
+      for(CacheItem<K> sentinel:buckets)
+      {
+        while(sentinel.wheelNext!=sentinel)
+          remove(sentinel.wheelNext);
+      }
+    }
+  }
+
+  /**
+   * Get the number of scheduled items.
+   * @return number of scheduled items.
+   */
+  int getCount()
+  {
+    return _count;
+  }
+}
@@ -0,0 +1,245 @@
+/**
+ * Copyright Acropolis Software SPRL (https://www.acrosoft.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.acrosoft.gaia.shared.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pending writes of a write-behind Cache. Writes are coalesced per storage and per key, the last value written
+ * for a key being the only one sent to the storage. Pending writes are flushed in batches from a background
+ * executor, either when enough keys are pending or when the oldest pending write has waited long enough.
+ * <p>
+ * Flushes are serialized, so that the storage always receives the values of a given key in the order they were
+ * written. If a background flush fails, its writes are queued again, unless they have been superseded in the
+ * meantime, and retried after the flush delay.
+ * <p>
+ * Instances of this class are thread-safe.
+ * @param <K> key type.
+ */
+class WriteBehindQueue<K>
+{
+  private static final Logger LOGGER=Logger.getLogger(WriteBehindQueue.class.getName());
+
+  /**
+   * Coalesced writes to the same storage.
+   */
+  private class Batch
+  {
+    /**
+     * Empty key array, with the runtime type of the arrays given by the caller.
+     */
+    public final K[] template;
+    /**
+     * Values per key, in first write order.
+     */
+    public final LinkedHashMap<K,Object> writes;
+
+    /**
+     * Create a new Batch.
+     * @param keys keys array given by the caller.
+     */
+    public Batch(K[] keys)
+    {
+      template=Arrays.copyOf(keys,0);
+      writes=new LinkedHashMap<>();
+    }
+  }
+
+  private final int _batchSize;
+  private final long _delay;
+  private final ScheduledExecutorService _timer;
+  private final Executor _executor;
+  private final Object _flushLock=new Object();
+
+  /**
+   * Writes waiting to be flushed, per storage. Guarded by this.
+   */
+  private Map<Storage<K>,Batch> _pending;
+  /**
+   * Writes being flushed, per storage. Guarded by this.
+   */
+  private Map<Storage<K>,Batch> _inFlight;
+  private int _count;
+  private ScheduledFuture<?> _scheduled;
+  private boolean _flushRequested;
+
+  /**
+   * Create a new WriteBehindQueue.
+   * @param batchSize number of pending keys triggering a flush.
+   * @param delay maximum delay before pending writes are flushed, in ms.
+   * @param timer executor timing the background flushes.
+   * @param executor executor running the background flushes.
+   */
+  WriteBehindQueue(int batchSize,long delay,ScheduledExecutorService timer,Executor executor)
+  {
+    _batchSize=batchSize;
+    _delay=delay;
+    _timer=timer;
+    _executor=executor;
+    _pending=new HashMap<>();
+    _inFlight=new HashMap<>();
+    _count=0;
+    _scheduled=null;
+    _flushRequested=false;
+  }
+
+  /**
+   * Queue the given writes.
+   * @param keys keys.
+   * @param values values.
+   * @param storage storage to write to.
+   */
+  synchronized void add(K[] keys,Object[] values,Storage<K> storage)
+  {
+    Batch batch=_pending.computeIfAbsent(storage,s->new Batch(keys));
+    for(int i=0;i<keys.length;i++)
+    {
+      if(!batch.writes.containsKey(keys[i]))
+        _count++;
+      batch.writes.put(keys[i],values[i]);
+    }
+
+    if(_count>=_batchSize)
+    {
+      if(!_flushRequested)
+      {
+        _flushRequested=true;
+        _executor.execute(this::backgroundFlush);
+      }
+    }
+    else if(_scheduled==null)
+    {
+      _scheduled=_timer.schedule(this::scheduledFlush,_delay,TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Look up a write that has not reached the storage yet.
+   * @param key key.
+   * @param storage storage.
+   * @return pending value, or Cache.NOT_PRESENT if there is no pending write for this key.
+   */
+  synchronized Object lookup(K key,Storage<K> storage)
+  {
+    Batch batch=_pending.get(storage);
+    if(batch!=null && batch.writes.containsKey(key)) return batch.writes.get(key);
+    batch=_inFlight.get(storage);
+    if(batch!=null && batch.writes.containsKey(key)) return batch.writes.get(key);
+    return Cache.NOT_PRESENT;
+  }
+
+  /**
+   * Check whether some writes are pending.
+   * @return true if some writes have not reached the storage yet.
+   */
+  synchronized boolean isEmpty()
+  {
+    return _pending.isEmpty() && _inFlight.isEmpty();
+  }
+
+  private void scheduledFlush()
+  {
+    //The timer is not used for the storage writes, which can take long.
+    _executor.execute(this::backgroundFlush);
+  }
+
+  private void backgroundFlush()
+  {
+    try
+    {
+      flush();
+    }
+    catch(RuntimeException ex)
+    {
+      LOGGER.log(Level.WARNING,"Write-behind flush failed, will retry",ex); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * Write all pending writes to their storage, from the calling thread.
+   * @throws RuntimeException if a storage write fails. The writes that could not be done are queued again.
+   */
+  void flush()
+  {
+    synchronized(_flushLock)
+    {
+      synchronized(this)
+      {
+        _inFlight=_pending;
+        _pending=new HashMap<>();
+        _count=0;
+        _flushRequested=false;
+        if(_scheduled!=null)
+        {
+          _scheduled.cancel(false);
+          _scheduled=null;
+        }
+      }
+
+      try
+      {
+        while(true)
+        {
+          Map.Entry<Storage<K>,Batch> entry;
+          synchronized(this)
+          {
+            if(_inFlight.isEmpty()) break;
+            entry=_inFlight.entrySet().iterator().next();
+          }
+          Batch batch=entry.getValue();
+          K[] keys=batch.writes.keySet().toArray(batch.template);
+          Object[] values=batch.writes.values().toArray();
+          entry.getKey().write(keys,values);
+          synchronized(this)
+          {
+            _inFlight.remove(entry.getKey());
+          }
+        }
+      }
+      finally
+      {
+        synchronized(this)
+        {
+          //Writes done after the failed flush are more recent and win over the ones we could not write.
+          for(Map.Entry<Storage<K>,Batch> entry:_inFlight.entrySet())
+          {
+            Batch batch=_pending.computeIfAbsent(entry.getKey(),s->new Batch(entry.getValue().template));
+            for(Map.Entry<K,Object> write:entry.getValue().writes.entrySet())
+            {
+              if(!batch.writes.containsKey(write.getKey()))
+              {
+                batch.writes.put(write.getKey(),write.getValue());
+                _count++;
+              }
+            }
+          }
+          _inFlight=new HashMap<>();
+          if(_scheduled==null && !_pending.isEmpty())
+            _scheduled=_timer.schedule(this::scheduledFlush,_delay,TimeUnit.MILLISECONDS);
+        }
+      }
+    }
+  }
+}
@@ -6,4 +6,5 @@ module be.acrosoft.gaia.shared.util {
 
     requires java.desktop;
     requires java.logging;
+    requires transitive java.management;
 }
\ No newline at end of file
@@ -0,0 +1,238 @@
+/**
+ * Copyright Acropolis Software SPRL (https://www.acrosoft.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.acrosoft.gaia.shared.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+@SuppressWarnings({"javadoc","nls"})
+public class BlockingFIFOBufferTest
+{
+  @Test
+  public void testStreams() throws Exception
+  {
+    BlockingFIFOBuffer buffer=new BlockingFIFOBuffer(16);
+    int count=100000;
+    AtomicReference<Throwable> error=new AtomicReference<>();
+    Thread producer=new Thread(()->{
+      try(OutputStream out=buffer.getOutputStream())
+      {
+        byte[] chunk=new byte[7];
+        for(int i=0;i<count;i+=chunk.length)
+        {
+          int size=Math.min(chunk.length,count-i);
+          for(int j=0;j<size;j++)
+            chunk[j]=(byte)(i+j);
+          out.write(chunk,0,size);
+        }
+      }
+      catch(Throwable ex)
+      {
+        error.set(ex);
+      }
+    });
+    producer.start();
+    
+    int total=0;
+    try(InputStream in=buffer.getInputStream())
+    {
+      byte[] b=new byte[5];
+      int read=in.read(b);
+      while(read>=0)
+      {
+        for(int i=0;i<read;i++)
+          assertEquals((byte)(total+i),b[i]);
+        total+=read;
+        read=in.read(b);
+      }
+    }
+    producer.join();
+    if(error.get()!=null) throw new AssertionError(error.get());
+    assertEquals(count,total);
+  }
+  
+  @Test
+  public void testChannels() throws Exception
+  {
+    BlockingFIFOBuffer buffer=new BlockingFIFOBuffer(8);
+    AtomicReference<Throwable> error=new AtomicReference<>();
+    Thread producer=new Thread(()->{
+      try(WritableByteChannel out=buffer.getWritableChannel())
+      {
+        for(int i=0;i<100;i++)
+          out.write(ByteBuffer.wrap(new byte[] {(byte)i,(byte)i,(byte)i}));
+      }
+      catch(Throwable ex)
+      {
+        error.set(ex);
+      }
+    });
+    producer.start();
+    
+    ReadableByteChannel in=buffer.getReadableChannel();
+    ByteBuffer dst=ByteBuffer.allocate(301);
+    while(in.read(dst)>=0)
+    {
+      //Keep reading until end-of-stream.
+    }
+    producer.join();
+    if(error.get()!=null) throw new AssertionError(error.get());
+    assertEquals(300,dst.position());
+    for(int i=0;i<300;i++)
+      assertEquals((byte)(i/3),dst.get(i));
+  }
+  
+  @Test
+  public void testTimeouts() throws Exception
+  {
+    BlockingFIFOBuffer buffer=new BlockingFIFOBuffer(4);
+    assertEquals(0,buffer.read(new byte[4],0,4,10));
+    assertEquals(4,buffer.write(new byte[] {1,2,3,4,5,6},0,6,10));
+    
+    buffer.setWriteTimeout(10);
+    try
+    {
+      buffer.getOutputStream().write(1);
+      fail();
+    }
+    catch(InterruptedIOException ex)
+    {
+      assertEquals(0,ex.bytesTransferred);
+    }
+    
+    byte[] b=new byte[8];
+    assertEquals(4,buffer.read(b,0,8,10));
+    assertArrayEquals(new byte[] {1,2,3,4,0,0,0,0},b);
+    buffer.setReadTimeout(10);
+    try
+    {
+      buffer.getInputStream().read();
+      fail();
+    }
+    catch(InterruptedIOException ex)
+    {
+      //Expected.
+    }
+  }
+  
+  @Test
+  public void testClose() throws Exception
+  {
+    BlockingFIFOBuffer buffer=new BlockingFIFOBuffer(4);
+    buffer.write(new byte[] {1,2},0,2,-1);
+    buffer.closeOutput();
+    InputStream in=buffer.getInputStream();
+    assertEquals(1,in.read());
+    assertEquals(2,in.read());
+    assertEquals(-1,in.read());
+    
+    buffer=new BlockingFIFOBuffer(4);
+    buffer.write(new byte[] {1,2,3,4},0,4,-1);
+    BlockingFIFOBuffer blocked=buffer;
+    AtomicReference<Throwable> error=new AtomicReference<>();
+    Thread producer=new Thread(()->{
+      try
+      {
+        blocked.write(new byte[1],0,1,-1);
+      }
+      catch(Throwable ex)
+      {
+        error.set(ex);
+      }
+    });
+    producer.start();
+    Thread.sleep(50);
+    buffer.closeInput();
+    producer.join();
+    assertEquals(true,error.get() instanceof IOException);
+  }
+  
+  @Test
+  public void testWatermarks() throws Exception
+  {
+    BlockingFIFOBuffer buffer=new BlockingFIFOBuffer(16);
+    List<String> events=new ArrayList<>();
+    buffer.setWatermarks(4,12,()->events.add("high"),()->events.add("low"));
+    
+    buffer.write(new byte[11],0,11,-1);
+    assertEquals(0,events.size());
+    buffer.write(new byte[2],0,2,-1);
+    assertEquals(1,events.size());
+    buffer.write(new byte[2],0,2,-1);
+    buffer.read(new byte[10],0,10,-1);
+    assertEquals(1,events.size());
+    buffer.read(new byte[1],0,1,-1);
+    assertEquals(2,events.size());
+    buffer.read(new byte[4],0,4,-1);
+    buffer.write(new byte[12],0,12,-1);
+    assertEquals(List.of("high","low","high"),events);
+  }
+  
+  @Test
+  public void testWatermarksWithBlockedWriter() throws Exception
+  {
+    for(int i=0;i<200;i++)
+    {
+      BlockingFIFOBuffer buffer=new BlockingFIFOBuffer(16);
+      List<String> events=new ArrayList<>();
+      buffer.setWatermarks(4,12,()->events.add("high"),()->events.add("low"));
+      
+      //The writer crosses the high watermark, then blocks on the full buffer while the reader drains it.
+      Thread writer=new Thread(()->{
+        try
+        {
+          buffer.write(new byte[20],0,20,-1);
+        }
+        catch(IOException ex)
+        {
+          throw new RuntimeException(ex);
+        }
+      });
+      writer.start();
+      byte[] dst=new byte[20];
+      int read=0;
+      while(read<20)
+        read+=buffer.read(dst,read,20-read,-1);
+      writer.join();
+      
+      //Callbacks alternate, and the observer ends up told that the buffer is below the low watermark. A crossing
+      //drained before the writer could report it is not reported at all.
+      assertEquals(0,events.size()%2);
+      for(int j=0;j<events.size();j++)
+        assertEquals(j%2==0?"high":"low",events.get(j));
+    }
+  }
+  
+  @Test(expected=IllegalArgumentException.class)
+  public void testInvalidWatermarks()
+  {
+    new BlockingFIFOBuffer(16).setWatermarks(8,8,null,null);
+  }
+}
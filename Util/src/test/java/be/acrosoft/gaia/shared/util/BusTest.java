@@ -17,9 +17,15 @@ package be.acrosoft.gaia.shared.util;
 
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.Test;
 
 import be.acrosoft.gaia.shared.util.Bus.Token;
@@ -31,7 +37,7 @@ public class BusTest
   private static class ServerRunnable implements Runnable
   {
     private Bus _bus;
-    private int _count;
+    private volatile int _count;
     
     /**
      * Create a new ServerRunnable.
@@ -53,8 +59,9 @@ public class BusTest
           Pair<Token,Object> request=_bus.getRequest(0);
           int v=(Integer)request.b;
           Token token=request.a;
-          _bus.sendResponse(token,2*v);
+          //Count before responding: the client may be done as soon as it gets the response.
           _count++;
+          _bus.sendResponse(token,2*v);
         }
         catch(InterruptedException ex)
         {
@@ -251,4 +258,141 @@ public class BusTest
     bus.sendRequest("hello");
     assertEquals("hello",bus.getRequest(10).b);
   }
+
+  @Test
+  public void testGetRequests() throws Exception
+  {
+    Bus bus=new Bus();
+    assertEquals(0,bus.getRequests(10,-1).size());
+    assertEquals(0,bus.getRequests(10,10).size());
+    Token[] tokens=new Token[25];
+    for(int i=0;i<tokens.length;i++)
+      tokens[i]=bus.sendRequest(i);
+    
+    int total=0;
+    while(total<tokens.length)
+    {
+      List<Pair<Token,Object>> requests=bus.getRequests(10,-1);
+      assertEquals(Math.min(10,tokens.length-total),requests.size());
+      for(Pair<Token,Object> request:requests)
+      {
+        bus.sendResponse(request.a,"R"+request.b);
+        total++;
+      }
+    }
+    assertEquals(0,bus.getRequests(10,-1).size());
+    for(int i=0;i<tokens.length;i++)
+      assertEquals("R"+i,bus.getResponse(tokens[i],-1));
+  }
+  
+  @Test(expected=GaiaRuntimeException.class)
+  public void testInvalidGetRequests() throws Exception
+  {
+    new Bus().getRequests(0,-1);
+  }
+  
+  @Test
+  public void testBatchServer() throws Exception
+  {
+    Bus bus=new Bus();
+    Thread server=new Thread(()->{
+      try
+      {
+        while(true)
+        {
+          for(Pair<Token,Object> request:bus.getRequests(16,0))
+            bus.sendResponse(request.a,2*(Integer)request.b);
+        }
+      }
+      catch(InterruptedException ex)
+      {
+        //Done.
+      }
+    });
+    server.setDaemon(true);
+    server.start();
+    
+    Token[] tokens=new Token[1000];
+    for(int i=0;i<tokens.length;i++)
+      tokens[i]=bus.sendRequest(i);
+    //Responses are waited for in reverse order, each one only waking up its own caller.
+    for(int i=tokens.length-1;i>=0;i--)
+      assertEquals(2*i,((Integer)bus.getResponse(tokens[i],0)).intValue());
+    server.interrupt();
+  }
+  
+  @Test
+  public void testResponseDoesNotWakeOthers() throws Exception
+  {
+    Bus bus=new Bus();
+    Token first=bus.sendRequest("first");
+    Token second=bus.sendRequest("second");
+    Thread responder=new Thread(()->{
+      try
+      {
+        Thread.sleep(20);
+        bus.sendResponse(second,"two");
+      }
+      catch(InterruptedException ex)
+      {
+        throw new GaiaRuntimeException(ex);
+      }
+    });
+    responder.start();
+    assertNull(bus.getResponse(first,200));
+    responder.join();
+    assertEquals("two",bus.getResponse(second,-1));
+  }
+
+  @Test
+  public void testAsync() throws Exception
+  {
+    Bus bus=new Bus();
+    Thread server=new Thread(()->{
+      try
+      {
+        while(true)
+        {
+          for(Pair<Token,Object> request:bus.getRequests(16,0))
+            bus.sendResponse(request.a,2*(Integer)request.b);
+        }
+      }
+      catch(InterruptedException ex)
+      {
+        //Done.
+      }
+    });
+    server.setDaemon(true);
+    server.start();
+    
+    @SuppressWarnings("unchecked")
+    CompletableFuture<Integer>[] futures=new CompletableFuture[1000];
+    for(int i=0;i<futures.length;i++)
+      futures[i]=bus.sendRequestAsync(i).thenApply(v->(Integer)v+1).toCompletableFuture();
+    CompletableFuture.allOf(futures).get(10,TimeUnit.SECONDS);
+    for(int i=0;i<futures.length;i++)
+      assertEquals(2*i+1,futures[i].get().intValue());
+    server.interrupt();
+  }
+  
+  @Test
+  public void testAsyncReleasesToken() throws Exception
+  {
+    Bus bus=new Bus();
+    CompletionStage<Object> stage=bus.sendRequestAsync("hello");
+    Pair<Token,Object> request=bus.getRequest(-1);
+    assertEquals("hello",request.b);
+    assertFalse(stage.toCompletableFuture().isDone());
+    bus.sendResponse(request.a,"world");
+    assertEquals("world",stage.toCompletableFuture().getNow(null));
+    try
+    {
+      bus.getResponse(request.a,-1);
+      fail();
+    }
+    catch(GaiaRuntimeException ex)
+    {
+      //Expected: the token is not valid anymore.
+    }
+  }
 }
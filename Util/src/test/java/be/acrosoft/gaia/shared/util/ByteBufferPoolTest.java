@@ -0,0 +1,84 @@
+/**
+ * Copyright Acropolis Software SPRL (https://www.acrosoft.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.acrosoft.gaia.shared.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+@SuppressWarnings({"javadoc","nls"})
+public class ByteBufferPoolTest
+{
+  @Test
+  public void testSizeClass()
+  {
+    assertEquals(1,ByteBufferPool.getSizeClass(0));
+    assertEquals(1,ByteBufferPool.getSizeClass(1));
+    assertEquals(2,ByteBufferPool.getSizeClass(2));
+    assertEquals(4,ByteBufferPool.getSizeClass(3));
+    assertEquals(1024,ByteBufferPool.getSizeClass(1000));
+    assertEquals(1024,ByteBufferPool.getSizeClass(1024));
+    assertEquals(1<<30,ByteBufferPool.getSizeClass((1<<29)+1));
+  }
+  
+  @Test(expected=IllegalArgumentException.class)
+  public void testTooLarge()
+  {
+    ByteBufferPool.getSizeClass((1<<30)+1);
+  }
+  
+  @Test
+  public void testReuse()
+  {
+    ByteBufferPool pool=new ByteBufferPool(true,2048);
+    ByteBuffer a=pool.acquire(1000);
+    assertTrue(a.isDirect());
+    assertEquals(1024,a.capacity());
+    a.put((byte)1);
+    pool.release(a);
+    assertEquals(1024,pool.getRetained());
+    
+    ByteBuffer b=pool.acquire(600);
+    assertSame(a,b);
+    assertEquals(0,b.position());
+    assertEquals(1024,b.limit());
+    assertEquals(0,pool.getRetained());
+    assertNotSame(a,pool.acquire(1024));
+  }
+  
+  @Test
+  public void testRetainedLimit()
+  {
+    ByteBufferPool pool=new ByteBufferPool(false,1024);
+    assertFalse(pool.isDirect());
+    pool.release(pool.acquire(1024));
+    pool.release(pool.acquire(1024).duplicate());
+    pool.release(ByteBuffer.allocate(512));
+    assertEquals(1024,pool.getRetained());
+    
+    //Not from a pool of the same kind.
+    pool=new ByteBufferPool(false,1024);
+    pool.release(ByteBuffer.allocateDirect(512));
+    pool.release(ByteBuffer.allocate(100));
+    assertEquals(0,pool.getRetained());
+  }
+}
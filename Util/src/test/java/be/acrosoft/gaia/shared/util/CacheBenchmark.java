@@ -0,0 +1,125 @@
+/**
+ * Copyright Acropolis Software SPRL (https://www.acrosoft.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.acrosoft.gaia.shared.util;
+
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+/**
+ * Multi-threaded micro-benchmark comparing the concurrent Cache with the former single-monitor design. This is
+ * not a unit test: run it manually with the main method, optionally passing the maximum number of threads.
+ */
+@SuppressWarnings({"javadoc","nls"})
+public class CacheBenchmark
+{
+  private static final int KEYS=10000;
+  private static final int OPERATIONS=2000000;
+
+  /**
+   * Reference implementation reproducing the former Cache locking scheme: one HashMap guarded by one monitor.
+   */
+  private static class SynchronizedCache
+  {
+    private HashMap<Integer,SoftReference<Object>> _map=new HashMap<>();
+
+    public void put(Integer key,Object value)
+    {
+      synchronized(_map)
+      {
+        _map.put(key,new SoftReference<Object>(value));
+      }
+    }
+
+    public Object get(Integer key)
+    {
+      synchronized(_map)
+      {
+        SoftReference<Object> ref=_map.get(key);
+        Object v=ref==null?null:ref.get();
+        return v==null?Cache.NOT_PRESENT:v;
+      }
+    }
+  }
+
+  private static long run(int threads,Function<Integer,Object> get,Runnable warmup) throws InterruptedException
+  {
+    warmup.run();
+    CountDownLatch start=new CountDownLatch(1);
+    Thread[] workers=new Thread[threads];
+    for(int i=0;i<threads;i++)
+    {
+      workers[i]=new Thread(()->{
+        try
+        {
+          start.await();
+        }
+        catch(InterruptedException ex)
+        {
+          return;
+        }
+        ThreadLocalRandom random=ThreadLocalRandom.current();
+        int count=OPERATIONS/threads;
+        for(int j=0;j<count;j++)
+        {
+          if(get.apply(random.nextInt(KEYS))==Cache.NOT_PRESENT)
+            throw new IllegalStateException();
+        }
+      });
+      workers[i].start();
+    }
+
+    long before=System.nanoTime();
+    start.countDown();
+    for(Thread worker:workers)
+      worker.join();
+    return System.nanoTime()-before;
+  }
+
+  public static void main(String[] args) throws InterruptedException
+  {
+    int maxThreads=args.length>0?Integer.parseInt(args[0]):Runtime.getRuntime().availableProcessors();
+
+    //Keep strong references so that soft references are not cleared during the run.
+    Integer[] values=new Integer[KEYS];
+    for(int i=0;i<KEYS;i++)
+      values[i]=Integer.valueOf(i);
+
+    Cache<Integer> cache=new Cache<>();
+    SynchronizedCache reference=new SynchronizedCache();
+    for(int i=0;i<KEYS;i++)
+    {
+      cache.put(values[i],values[i],-1);
+      reference.put(values[i],values[i]);
+    }
+
+    System.out.println("threads\tsynchronized (ns/op)\tconcurrent (ns/op)");
+    for(int threads=1;threads<=maxThreads;threads<<=1)
+    {
+      long sync=run(threads,reference::get,()->run1(reference::get));
+      long conc=run(threads,cache::get,()->run1(cache::get));
+      System.out.println(threads+"\t"+(sync*threads/OPERATIONS)+"\t"+(conc*threads/OPERATIONS));
+    }
+  }
+
+  private static void run1(Function<Integer,Object> get)
+  {
+    for(int i=0;i<OPERATIONS;i++)
+      get.apply(i%KEYS);
+  }
+}
@@ -18,9 +18,31 @@ package be.acrosoft.gaia.shared.util;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.lang.management.ManagementFactory;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.junit.Test;
 
@@ -187,4 +209,989 @@ public class CacheTest
     Cache<String> cache=new Cache<String>();
     cache.write(new String[] {"Item"},new Object[] {Cache.NOT_PRESENT},store);
   }
+  
+  @Test
+  public void testConcurrentAccess() throws InterruptedException
+  {
+    Cache<Integer> cache=new Cache<>();
+    Integer[] values=new Integer[100];
+    for(int i=0;i<values.length;i++)
+      values[i]=Integer.valueOf(i);
+    
+    Thread[] threads=new Thread[8];
+    AtomicInteger errors=new AtomicInteger();
+    for(int t=0;t<threads.length;t++)
+    {
+      threads[t]=new Thread(()->{
+        for(int i=0;i<10000;i++)
+        {
+          int k=i%values.length;
+          cache.put(k,values[k],-1);
+          Object v=cache.get(k);
+          if(v!=Cache.NOT_PRESENT && !values[k].equals(v))
+            errors.incrementAndGet();
+          if(i%7==0)
+            cache.discard(k);
+        }
+      });
+      threads[t].start();
+    }
+    for(Thread thread:threads)
+      thread.join();
+    
+    assertEquals(0,errors.get());
+  }
+  
+  @Test
+  public void testCachedNullFromStorage()
+  {
+    TestStorage store=new TestStorage()
+    {
+      @Override
+      public Object[] read(String[] key)
+      {
+        super.read(key);
+        return new Object[key.length];
+      }
+    };
+    
+    Cache<String> cache=new Cache<String>();
+    assertArrayEquals(new Object[] {null},cache.read(new String[] {"CachedOne"},store));
+    assertArrayEquals(new Object[] {null},cache.read(new String[] {"CachedOne"},store));
+    assertEquals(1,store.readCount);
+  }
+  
+  @Test
+  public void testMaximumSize()
+  {
+    Cache<String> cache=Cache.builder().strongValues().maximumSize(3).build();
+    cache.put("One",1,-1);
+    cache.put("Two",2,-1);
+    cache.put("Three",3,-1);
+    assertEquals(1,cache.get("One"));
+    cache.put("Four",4,-1);
+    assertEquals(3,cache.size());
+    assertEquals(Cache.NOT_PRESENT,cache.get("Two"));
+    assertEquals(1,cache.get("One"));
+    assertEquals(3,cache.get("Three"));
+    assertEquals(4,cache.get("Four"));
+    
+    //Replacing an entry does not evict anything.
+    cache.put("Four",44,-1);
+    assertEquals(3,cache.size());
+    assertEquals(44,cache.get("Four"));
+    
+    cache.discard("One");
+    cache.put("Five",5,-1);
+    assertEquals(3,cache.size());
+    assertEquals(3,cache.get("Three"));
+    
+    cache.clear();
+    assertEquals(0,cache.size());
+    cache.put("Six",6,-1);
+    assertEquals(6,cache.get("Six"));
+  }
+  
+  @Test
+  public void testMaximumWeight()
+  {
+    Cache<String> cache=Cache.builder().strongValues().maximumWeight(10,(String k,Object v)->v==null?0:((String)v).length()).build();
+    cache.put("One","12345",-1);
+    cache.put("Two","1234",-1);
+    cache.put("Null",null,-1);
+    assertEquals("12345",cache.get("One"));
+    cache.put("Three","12",-1);
+    assertEquals(Cache.NOT_PRESENT,cache.get("Two"));
+    assertEquals("12345",cache.get("One"));
+    assertNull(cache.get("Null"));
+    
+    //An entry heavier than the whole cache cannot be kept.
+    cache.put("Four","12345678901",-1);
+    assertEquals(Cache.NOT_PRESENT,cache.get("Four"));
+  }
+  
+  @Test
+  public void testMaximumSizeWithManyReads()
+  {
+    Cache<Integer> cache=Cache.builder().strongValues().maximumSize(10).build();
+    for(int i=0;i<10;i++)
+      cache.put(i,i,-1);
+    for(int i=0;i<1000;i++)
+      assertEquals(i%5,cache.get(i%5));
+    for(int i=10;i<15;i++)
+      cache.put(i,i,-1);
+    for(int i=0;i<5;i++)
+      assertEquals(i,cache.get(i));
+    for(int i=5;i<10;i++)
+      assertEquals(Cache.NOT_PRESENT,cache.get(i));
+  }
+  
+  @Test
+  public void testBoundedStorage()
+  {
+    TestStorage store=new TestStorage();
+    Cache<String> cache=Cache.builder().strongValues().maximumSize(2).build();
+    cache.read(new String[] {"CachedOne","CachedTwo","CachedThree"},store);
+    assertEquals(2,cache.size());
+    assertEquals(3,store.readCount);
+  }
+  
+  @Test(expected=IllegalArgumentException.class)
+  public void testInvalidMaximumSize()
+  {
+    Cache.builder().maximumSize(-1);
+  }
+  
+  @Test(expected=IllegalArgumentException.class)
+  public void testNegativeWeight()
+  {
+    Cache<String> cache=Cache.builder().maximumWeight(10,(String k,Object v)->-1).build();
+    cache.put("One",1,-1);
+  }
+  
+  @Test
+  public void testClockExpiration()
+  {
+    InstantClock clock=new InstantClock();
+    Cache<String> cache=Cache.builder().strongValues().usingClock(clock).build();
+    cache.put("Key","Val",100);
+    clock.sleep(100);
+    assertEquals("Val",cache.get("Key"));
+    clock.sleep(1);
+    assertEquals(Cache.NOT_PRESENT,cache.get("Key"));
+  }
+  
+  @Test
+  public void testExpiredEntriesAreReclaimed()
+  {
+    InstantClock clock=new InstantClock();
+    Cache<Integer> cache=Cache.builder().strongValues().usingClock(clock).build();
+    
+    //Spread expirations over all the wheel levels. Entries are reclaimed once the wheel bucket they belong to
+    //has been passed over, so we allow for the bucket span of each level.
+    long[] expirations= {10,1000,100000,10000000,2000000000L};
+    long[] spans= {64,64,4096,262144,1L<<30};
+    Instant start=clock.instant();
+    for(int i=0;i<expirations.length;i++)
+      cache.put(i,i,expirations[i]);
+    cache.put(-1,-1,-1);
+    assertEquals(6,cache.size());
+    
+    for(int i=0;i<expirations.length;i++)
+    {
+      clock.set(start.plusMillis(expirations[i]));
+      cache.cleanUp();
+      assertEquals(6-i,cache.size());
+      clock.set(start.plusMillis(expirations[i]+spans[i]));
+      cache.cleanUp();
+      assertEquals(5-i,cache.size());
+    }
+    assertEquals(-1,cache.get(-1));
+  }
+  
+  @Test
+  public void testExpirationWithReplacement()
+  {
+    InstantClock clock=new InstantClock();
+    Cache<String> cache=Cache.builder().strongValues().usingClock(clock).build();
+    cache.put("Key","Val",100);
+    cache.put("Key","Val2",-1);
+    clock.sleep(1000);
+    cache.cleanUp();
+    assertEquals("Val2",cache.get("Key"));
+    cache.put("Key","Val3",100);
+    cache.discard("Key");
+    cache.put("Other","Val",100);
+    clock.sleep(1000);
+    cache.cleanUp();
+    assertEquals(0,cache.size());
+  }
+  
+  @Test
+  public void testCollectedEntriesAreReclaimed() throws InterruptedException
+  {
+    Cache<String> cache=new Cache<>(true);
+    WeakReference<byte[]> ref=new WeakReference<>(new byte[1024*1024]);
+    cache.put("Key",ref.get(),-1);
+    assertEquals(1,cache.size());
+    while(ref.get()!=null) System.gc();
+    long deadline=System.currentTimeMillis()+10000;
+    while(cache.size()>0 && System.currentTimeMillis()<deadline)
+    {
+      Thread.sleep(10);
+      cache.cleanUp();
+    }
+    assertEquals(0,cache.size());
+  }
+  
+  @Test
+  public void testSweep() throws InterruptedException
+  {
+    InstantClock clock=new InstantClock();
+    Cache<String> cache=Cache.builder().strongValues().usingClock(clock).sweepEvery(Duration.ofMillis(5)).build();
+    cache.put("Key","Val",100);
+    clock.sleep(200);
+    long deadline=System.currentTimeMillis()+10000;
+    while(cache.size()>0 && System.currentTimeMillis()<deadline)
+      Thread.sleep(10);
+    assertEquals(0,cache.size());
+  }
+  
+  private static class SlowStorage extends TestStorage
+  {
+    public final AtomicInteger calls=new AtomicInteger();
+    public final CountDownLatch started=new CountDownLatch(1);
+    public volatile RuntimeException failure=null;
+    
+    @Override
+    public Object[] read(String[] key)
+    {
+      calls.incrementAndGet();
+      started.countDown();
+      try
+      {
+        Thread.sleep(200);
+      }
+      catch(InterruptedException ex)
+      {
+        throw new GaiaRuntimeException(ex);
+      }
+      if(failure!=null) throw failure;
+      synchronized(this)
+      {
+        return super.read(key);
+      }
+    }
+  }
+  
+  @Test
+  public void testSingleFlight() throws InterruptedException
+  {
+    SlowStorage store=new SlowStorage();
+    Cache<String> cache=Cache.builder().strongValues().build();
+    
+    Thread[] threads=new Thread[8];
+    AtomicInteger errors=new AtomicInteger();
+    for(int i=0;i<threads.length;i++)
+    {
+      threads[i]=new Thread(()->{
+        Object[] v=cache.read(new String[] {"CachedOne","NotCached","CachedTwo"},store);
+        if(!"CachedOne".equals(v[0]) || !"NotCached".equals(v[1]) || !"CachedTwo".equals(v[2]))
+          errors.incrementAndGet();
+      });
+    }
+    threads[0].start();
+    store.started.await();
+    for(int i=1;i<threads.length;i++)
+      threads[i].start();
+    for(Thread thread:threads)
+      thread.join();
+    
+    assertEquals(0,errors.get());
+    
+    //Cachable keys were read only once, the other one every time.
+    assertEquals(2+threads.length,store.readCount);
+  }
+  
+  @Test
+  public void testSingleFlightFailure() throws InterruptedException
+  {
+    SlowStorage store=new SlowStorage();
+    store.failure=new IllegalStateException("Failed");
+    Cache<String> cache=Cache.builder().strongValues().build();
+    
+    AtomicInteger failures=new AtomicInteger();
+    Runnable reader=()->{
+      try
+      {
+        cache.read(new String[] {"CachedOne"},store);
+      }
+      catch(IllegalStateException ex)
+      {
+        if(ex==store.failure)
+          failures.incrementAndGet();
+      }
+    };
+    Thread first=new Thread(reader);
+    Thread second=new Thread(reader);
+    first.start();
+    store.started.await();
+    second.start();
+    first.join();
+    second.join();
+    
+    assertEquals(2,failures.get());
+    
+    //Failed loads are not remembered.
+    store.failure=null;
+    assertArrayEquals(new Object[] {"CachedOne"},cache.read(new String[] {"CachedOne"},store));
+  }
+  
+  @Test
+  public void testDuplicateKeys()
+  {
+    TestStorage store=new TestStorage();
+    Cache<String> cache=new Cache<String>();
+    assertArrayEquals(new Object[] {"CachedOne","CachedOne","Two","Two"},cache.read(new String[] {"CachedOne","CachedOne","Two","Two"},store));
+  }
+  
+  private static class RecordingStorage extends TestStorage
+  {
+    public final Map<String,Object> written=new ConcurrentHashMap<>();
+    public final AtomicInteger batches=new AtomicInteger();
+    public volatile boolean fail=false;
+    
+    @Override
+    public synchronized void write(String[] key,Object[] value)
+    {
+      if(fail) throw new IllegalStateException("Failed");
+      super.write(key,value);
+      batches.incrementAndGet();
+      for(int i=0;i<key.length;i++)
+        written.put(key[i],value[i]==null?"null":value[i]);
+    }
+    
+    public synchronized int getWriteCount()
+    {
+      return writeCount;
+    }
+  }
+  
+  private static void waitFor(BooleanSupplier condition) throws InterruptedException
+  {
+    long deadline=System.currentTimeMillis()+10000;
+    while(!condition.getAsBoolean() && System.currentTimeMillis()<deadline)
+      Thread.sleep(5);
+  }
+  
+  @Test
+  public void testWriteBehindBatchSize() throws InterruptedException
+  {
+    RecordingStorage store=new RecordingStorage();
+    Cache<String> cache=Cache.builder().strongValues().writeBehind(3,Duration.ofHours(1)).build();
+    cache.write(new String[] {"CachedOne","CachedTwo"},new Object[] {"1","2"},store);
+    assertEquals(0,store.getWriteCount());
+    assertArrayEquals(new Object[] {"1","2"},cache.read(new String[] {"CachedOne","CachedTwo"},store));
+    assertEquals(0,store.readCount);
+    
+    cache.write(new String[] {"CachedThree"},new Object[] {"3"},store);
+    waitFor(()->store.getWriteCount()==3);
+    assertEquals(3,store.getWriteCount());
+    assertEquals(1,store.batches.get());
+    cache.close();
+  }
+  
+  @Test
+  public void testWriteBehindDelay() throws InterruptedException
+  {
+    RecordingStorage store=new RecordingStorage();
+    Cache<String> cache=Cache.builder().strongValues().writeBehind(100,Duration.ofMillis(20)).build();
+    cache.write(new String[] {"CachedOne"},new Object[] {"1"},store);
+    waitFor(()->store.getWriteCount()==1);
+    assertEquals("1",store.written.get("CachedOne"));
+  }
+  
+  @Test
+  public void testWriteBehindCoalescing()
+  {
+    RecordingStorage store=new RecordingStorage();
+    Cache<String> cache=Cache.builder().strongValues().writeBehind(100,Duration.ofHours(1)).build();
+    for(int i=0;i<5;i++)
+      cache.write(new String[] {"CachedOne","Two"},new Object[] {Integer.valueOf(i),null},store);
+    
+    //Non-cachable keys are written through.
+    assertEquals(5,store.getWriteCount());
+    cache.flush();
+    assertEquals(6,store.getWriteCount());
+    assertEquals(4,store.written.get("CachedOne"));
+    
+    cache.flush();
+    assertEquals(6,store.getWriteCount());
+  }
+  
+  @Test
+  public void testWriteBehindHungStorage() throws InterruptedException
+  {
+    CountDownLatch release=new CountDownLatch(1);
+    CountDownLatch hung=new CountDownLatch(1);
+    RecordingStorage slow=new RecordingStorage()
+    {
+      @Override
+      public void write(String[] key,Object[] value)
+      {
+        hung.countDown();
+        try
+        {
+          release.await();
+        }
+        catch(InterruptedException ex)
+        {
+          Thread.currentThread().interrupt();
+        }
+        super.write(key,value);
+      }
+    };
+    Cache<String> slowCache=Cache.builder().strongValues().writeBehind(1,Duration.ofMillis(20)).build();
+    slowCache.write(new String[] {"CachedOne"},new Object[] {"1"},slow);
+    assertTrue(hung.await(10,TimeUnit.SECONDS));
+    
+    //A storage that never returns must not delay the flushes of another cache.
+    RecordingStorage store=new RecordingStorage();
+    Cache<String> cache=Cache.builder().strongValues().writeBehind(100,Duration.ofMillis(20)).build();
+    cache.write(new String[] {"CachedOne"},new Object[] {"1"},store);
+    waitFor(()->store.getWriteCount()==1);
+    assertEquals(1,store.getWriteCount());
+    
+    release.countDown();
+    slowCache.close();
+    assertEquals(1,slow.getWriteCount());
+  }
+  
+  @Test
+  public void testWriteBehindExecutor() throws InterruptedException
+  {
+    ScheduledThreadPoolExecutor executor=new ScheduledThreadPoolExecutor(1,runnable->new Thread(runnable,"Custom"));
+    try
+    {
+      Map<String,String> threads=new ConcurrentHashMap<>();
+      RecordingStorage store=new RecordingStorage()
+      {
+        @Override
+        public void write(String[] key,Object[] value)
+        {
+          threads.put(key[0],Thread.currentThread().getName());
+          super.write(key,value);
+        }
+      };
+      Cache<String> cache=Cache.builder().strongValues().writeBehind(100,Duration.ofMillis(20)).executor(executor).build();
+      cache.write(new String[] {"CachedOne"},new Object[] {"1"},store);
+      waitFor(()->store.getWriteCount()==1);
+      assertEquals("Custom",threads.get("CachedOne"));
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+  }
+  
+  @Test
+  public void testWriteBehindPendingRead()
+  {
+    RecordingStorage store=new RecordingStorage();
+    Cache<String> cache=Cache.builder().strongValues().maximumSize(1).writeBehind(100,Duration.ofHours(1)).build();
+    cache.write(new String[] {"CachedOne","CachedTwo"},new Object[] {"1",null},store);
+    
+    //One of the two keys has been evicted from the cache, but its write is still pending.
+    assertArrayEquals(new Object[] {"1",null},cache.read(new String[] {"CachedOne","CachedTwo"},store));
+    assertEquals(0,store.readCount);
+    cache.close();
+    assertEquals(2,store.getWriteCount());
+  }
+  
+  @Test
+  public void testWriteBehindFailure()
+  {
+    RecordingStorage store=new RecordingStorage();
+    store.fail=true;
+    Cache<String> cache=Cache.builder().strongValues().writeBehind(100,Duration.ofHours(1)).build();
+    cache.write(new String[] {"CachedOne","CachedTwo"},new Object[] {"1","2"},store);
+    try
+    {
+      cache.flush();
+      fail();
+    }
+    catch(IllegalStateException ex)
+    {
+      //Expected.
+    }
+    cache.write(new String[] {"CachedTwo"},new Object[] {"22"},store);
+    store.fail=false;
+    cache.close();
+    assertEquals(2,store.getWriteCount());
+    assertEquals("1",store.written.get("CachedOne"));
+    assertEquals("22",store.written.get("CachedTwo"));
+    
+    //Once closed, writes are write-through.
+    cache.write(new String[] {"CachedThree"},new Object[] {"3"},store);
+    assertEquals(3,store.getWriteCount());
+  }
+  
+  @Test(expected=IllegalArgumentException.class)
+  public void testInvalidWriteBehind()
+  {
+    Cache.builder().writeBehind(0,Duration.ofSeconds(1));
+  }
+  
+  private static class VersionedStorage extends TestStorage
+  {
+    public final AtomicInteger version=new AtomicInteger();
+    public final AtomicInteger batches=new AtomicInteger();
+    
+    @Override
+    public long getExpiration(String key)
+    {
+      return 100;
+    }
+    
+    @Override
+    public Object[] read(String[] key)
+    {
+      batches.incrementAndGet();
+      int v=version.incrementAndGet();
+      Object[] ans=new Object[key.length];
+      for(int i=0;i<key.length;i++)
+        ans[i]=key[i]+v;
+      return ans;
+    }
+  }
+  
+  @Test
+  public void testRefreshAhead() throws InterruptedException
+  {
+    InstantClock clock=new InstantClock();
+    VersionedStorage store=new VersionedStorage();
+    Cache<String> cache=Cache.builder().strongValues().usingClock(clock).refreshAhead(0.5).build();
+    String[] keys=new String[] {"CachedOne"};
+    assertArrayEquals(new Object[] {"CachedOne1"},cache.read(keys,store));
+    
+    clock.sleep(50);
+    assertArrayEquals(new Object[] {"CachedOne1"},cache.read(keys,store));
+    assertEquals(1,store.batches.get());
+    
+    //Past the refresh point, the current value is returned and the key is reloaded in the background.
+    clock.sleep(1);
+    assertArrayEquals(new Object[] {"CachedOne1"},cache.read(keys,store));
+    waitFor(()->"CachedOne2".equals(cache.get("CachedOne")));
+    assertArrayEquals(new Object[] {"CachedOne2"},cache.read(keys,store));
+    assertEquals(2,store.batches.get());
+    
+    //The refreshed items have a new lifetime.
+    clock.sleep(99);
+    assertEquals("CachedOne2",cache.get("CachedOne"));
+  }
+  
+  @Test
+  public void testRefreshAheadHungStorage() throws InterruptedException
+  {
+    CountDownLatch release=new CountDownLatch(1);
+    CountDownLatch hung=new CountDownLatch(1);
+    VersionedStorage slow=new VersionedStorage()
+    {
+      @Override
+      public Object[] read(String[] key)
+      {
+        if(version.get()>0)
+        {
+          hung.countDown();
+          try
+          {
+            release.await();
+          }
+          catch(InterruptedException ex)
+          {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return super.read(key);
+      }
+    };
+    InstantClock clock=new InstantClock();
+    String[] keys=new String[] {"CachedOne"};
+    Cache<String> slowCache=Cache.builder().strongValues().usingClock(clock).refreshAhead(0.5).build();
+    slowCache.read(keys,slow);
+    clock.sleep(51);
+    slowCache.read(keys,slow);
+    assertTrue(hung.await(10,TimeUnit.SECONDS));
+    
+    //A refresh that never returns must not delay the refreshes of another cache.
+    VersionedStorage store=new VersionedStorage();
+    Cache<String> cache=Cache.builder().strongValues().usingClock(clock).refreshAhead(0.5).build();
+    cache.read(keys,store);
+    clock.sleep(51);
+    cache.read(keys,store);
+    waitFor(()->"CachedOne2".equals(cache.get("CachedOne")));
+    assertEquals("CachedOne2",cache.get("CachedOne"));
+    release.countDown();
+  }
+  
+  @Test
+  public void testRefreshAheadDoesNotOverwrite() throws InterruptedException
+  {
+    InstantClock clock=new InstantClock();
+    VersionedStorage store=new VersionedStorage();
+    Cache<String> cache=Cache.builder().strongValues().usingClock(clock).refreshAhead(0.5).build();
+    cache.read(new String[] {"CachedOne"},store);
+    clock.sleep(60);
+    
+    //Simple gets never trigger a refresh.
+    assertEquals("CachedOne1",cache.get("CachedOne"));
+    Thread.sleep(50);
+    assertEquals(1,store.batches.get());
+    
+    cache.put("CachedOne","Written",-1);
+    cache.read(new String[] {"CachedOne"},store);
+    Thread.sleep(50);
+    assertEquals("Written",cache.get("CachedOne"));
+  }
+  
+  @Test
+  public void testRefreshAheadPendingWrite() throws InterruptedException
+  {
+    InstantClock clock=new InstantClock();
+    VersionedStorage store=new VersionedStorage();
+    Cache<String> cache=Cache.builder().strongValues().usingClock(clock).refreshAhead(0.5)
+      .writeBehind(100,Duration.ofHours(1)).build();
+    String[] keys=new String[] {"CachedOne"};
+    cache.write(keys,new Object[] {"Written"},store);
+    
+    //The write has not reached the storage yet, so reloading the key would bring an older value back.
+    clock.sleep(60);
+    assertArrayEquals(new Object[] {"Written"},cache.read(keys,store));
+    Thread.sleep(50);
+    assertEquals("Written",cache.get("CachedOne"));
+    assertEquals(0,store.batches.get());
+    
+    //Once written, the key is refreshed again.
+    cache.flush();
+    assertArrayEquals(new Object[] {"Written"},cache.read(keys,store));
+    waitFor(()->"CachedOne1".equals(cache.get("CachedOne")));
+    assertEquals("CachedOne1",cache.get("CachedOne"));
+    cache.close();
+  }
+  
+  @Test(expected=IllegalArgumentException.class)
+  public void testInvalidRefreshAhead()
+  {
+    Cache.builder().refreshAhead(1);
+  }
+  
+  @Test
+  public void testStats()
+  {
+    InstantClock clock=new InstantClock();
+    TestStorage store=new TestStorage();
+    Cache<String> cache=Cache.builder().strongValues().maximumSize(2).usingClock(clock).build();
+    
+    cache.read(new String[] {"CachedOne","CachedTwo","Other"},store);
+    cache.read(new String[] {"CachedOne","CachedTwo"},store);
+    assertEquals(Cache.NOT_PRESENT,cache.get("Missing"));
+    assertEquals("CachedOne",cache.get("CachedOne"));
+    
+    CacheStats stats=cache.stats();
+    assertEquals(3,stats.getHitCount());
+    assertEquals(3,stats.getMissCount());
+    assertEquals(1,stats.getNotPresentCount());
+    assertEquals(0.5,stats.getHitRate(),0.0);
+    assertEquals(1,stats.getLoadCount());
+    assertEquals(3,stats.getLoadedKeyCount());
+    assertEquals(3.0,stats.getAverageLoadSize(),0.0);
+    assertEquals(0,stats.getEvictionCount());
+    
+    cache.put("CachedThree","Three",-1);
+    cache.put("CachedFour","Four",10);
+    assertEquals(2,cache.stats().getEvictionCount());
+    clock.sleep(11);
+    assertEquals(Cache.NOT_PRESENT,cache.get("CachedFour"));
+    
+    CacheStats delta=cache.stats().minus(stats);
+    assertEquals(1,delta.getExpirationCount());
+    assertEquals(1,delta.getMissCount());
+    assertEquals(0,delta.getHitCount());
+    assertEquals(0,delta.getLoadCount());
+  }
+  
+  @Test
+  public void testStatsLoadFailure()
+  {
+    Cache<String> cache=new Cache<String>();
+    TestStorage store=new TestStorage()
+    {
+      @Override
+      public Object[] read(String[] key)
+      {
+        throw new IllegalStateException();
+      }
+    };
+    try
+    {
+      cache.read(new String[] {"CachedOne"},store);
+      fail();
+    }
+    catch(IllegalStateException ex)
+    {
+      //Expected.
+    }
+    CacheStats stats=cache.stats();
+    assertEquals(1,stats.getLoadCount());
+    assertEquals(1,stats.getLoadFailureCount());
+    assertEquals(0,stats.getLoadedKeyCount());
+  }
+  
+  @Test
+  public void testStatsCollected() throws InterruptedException
+  {
+    Cache<String> cache=new Cache<String>(true);
+    cache.put("CachedOne",new Object(),-1);
+    waitFor(()->{
+      System.gc();
+      cache.cleanUp();
+      return cache.size()==0;
+    });
+    assertEquals(1,cache.stats().getCollectedCount());
+  }
+  
+  @Test
+  public void testMBean() throws Exception
+  {
+    MBeanServer server=ManagementFactory.getPlatformMBeanServer();
+    TestStorage store=new TestStorage();
+    Cache<String> cache=new Cache<String>();
+    ObjectName name=cache.registerMBean("test, with a comma");
+    assertEquals("Cache",name.getKeyProperty("type"));
+    
+    cache.read(new String[] {"CachedOne","CachedOne"},store);
+    cache.read(new String[] {"CachedOne"},store);
+    assertEquals(1L,server.getAttribute(name,"HitCount"));
+    assertEquals(1L,server.getAttribute(name,"MissCount"));
+    assertEquals(1,server.getAttribute(name,"Size"));
+    
+    try
+    {
+      new Cache<String>().registerMBean("test, with a comma");
+      fail();
+    }
+    catch(GaiaRuntimeException ex)
+    {
+      //Expected.
+    }
+    
+    cache.close();
+    assertFalse(server.isRegistered(name));
+  }
+  
+  @Test
+  public void testOffHeap()
+  {
+    TestStorage store=new TestStorage();
+    Cache<String> cache=Cache.builder().strongValues().maximumSize(1).offHeap(1<<16,Cache.Serializer.standard()).build();
+    String big=new String(new char[1000]).replace('\0','x');
+    cache.put("CachedOne",big,-1);
+    cache.put("CachedTwo",null,-1);
+    cache.put("CachedThree","Three",-1);
+    assertEquals(1,cache.size());
+    
+    //Evicted from the heap, but still off-heap.
+    Object one=cache.get("CachedOne");
+    assertEquals(big,one);
+    assertNotSame(big,one);
+    assertNull(cache.get("CachedTwo"));
+    assertArrayEquals(new Object[] {big,"Three"},cache.read(new String[] {"CachedOne","CachedThree"},store));
+    assertEquals(0,store.readCount);
+    
+    cache.discard("CachedOne");
+    assertEquals(Cache.NOT_PRESENT,cache.get("CachedOne"));
+    cache.clear();
+    assertEquals(Cache.NOT_PRESENT,cache.get("CachedThree"));
+  }
+  
+  @Test
+  public void testOffHeapConcurrentWrites() throws Exception
+  {
+    //A slow serializer widens the window between the heap and off-heap updates.
+    Cache.Serializer standard=Cache.Serializer.standard();
+    Cache.Serializer slow=new Cache.Serializer()
+    {
+      @Override
+      public byte[] serialize(Object value) throws IOException
+      {
+        try
+        {
+          Thread.sleep(1);
+        }
+        catch(InterruptedException ex)
+        {
+          Thread.currentThread().interrupt();
+        }
+        return standard.serialize(value);
+      }
+      
+      @Override
+      public Object deserialize(byte[] data) throws IOException
+      {
+        return standard.deserialize(data);
+      }
+    };
+    Cache<String> cache=Cache.builder().strongValues().maximumSize(1).offHeap(1<<16,slow).build();
+    for(int i=0;i<200;i++)
+    {
+      String key="Cached"+i;
+      CyclicBarrier barrier=new CyclicBarrier(3);
+      Thread[] threads={
+        new Thread(()->{await(barrier);cache.put(key,"1",-1);}),
+        new Thread(()->{await(barrier);cache.put(key,"2",-1);}),
+        new Thread(()->{await(barrier);cache.discard(key);})
+      };
+      for(Thread thread:threads)
+        thread.start();
+      for(Thread thread:threads)
+        thread.join();
+      
+      //A key missing from the heap must be missing from the off-heap tier as well, and once evicted from the heap,
+      //a key must be read back from the off-heap tier with the same value.
+      boolean onHeap=cache.size()==1;
+      Object value=cache.get(key);
+      if(!onHeap)
+        assertEquals(Cache.NOT_PRESENT,value);
+      cache.put("Other",null,-1);
+      cache.discard("Other");
+      assertEquals(value,cache.get(key));
+      cache.discard(key);
+    }
+  }
+  
+  @Test
+  public void testOffHeapSerializerOutsideMapLock() throws Exception
+  {
+    //"Aa" and "BB" have the same hash code, so they share the same map bin and its lock.
+    Cache.Serializer standard=Cache.Serializer.standard();
+    CountDownLatch[] serializing={new CountDownLatch(1),new CountDownLatch(1)};
+    CountDownLatch[] deserializing={new CountDownLatch(1),new CountDownLatch(1)};
+    Cache.Serializer blocking=new Cache.Serializer()
+    {
+      @Override
+      public byte[] serialize(Object value) throws IOException
+      {
+        if("Serialized".equals(value))
+          block(serializing);
+        return standard.serialize(value);
+      }
+      
+      @Override
+      public Object deserialize(byte[] data) throws IOException
+      {
+        Object value=standard.deserialize(data);
+        if("Deserialized".equals(value))
+          block(deserializing);
+        return value;
+      }
+      
+      private void block(CountDownLatch[] latches)
+      {
+        latches[0].countDown();
+        try
+        {
+          latches[1].await();
+        }
+        catch(InterruptedException ex)
+        {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    Cache<String> cache=Cache.builder().strongValues().maximumSize(1).offHeap(1<<16,blocking).build();
+    
+    //A value being serialized does not block the other keys.
+    Thread slow=new Thread(()->cache.put("Aa","Serialized",-1));
+    slow.start();
+    assertTrue(serializing[0].await(10,TimeUnit.SECONDS));
+    Thread fast=new Thread(()->cache.put("BB","Fast",-1));
+    fast.start();
+    fast.join(10000);
+    assertFalse(fast.isAlive());
+    serializing[1].countDown();
+    slow.join();
+    
+    //Neither does a value being deserialized.
+    cache.put("Aa","Deserialized",-1);
+    cache.put("Other",null,-1);
+    cache.discard("Other");
+    assertEquals(0,cache.size());
+    Object[] read=new Object[1];
+    slow=new Thread(()->read[0]=cache.get("Aa"));
+    slow.start();
+    assertTrue(deserializing[0].await(10,TimeUnit.SECONDS));
+    fast=new Thread(()->cache.put("BB","Fast",-1));
+    fast.start();
+    fast.join(10000);
+    assertFalse(fast.isAlive());
+    deserializing[1].countDown();
+    slow.join();
+    assertEquals("Deserialized",read[0]);
+  }
+  
+  private static void await(CyclicBarrier barrier)
+  {
+    try
+    {
+      barrier.await();
+    }
+    catch(InterruptedException|BrokenBarrierException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+  }
+  
+  @Test
+  public void testOffHeapCapacity()
+  {
+    Cache<String> cache=Cache.builder().strongValues().maximumSize(1).offHeap(4*OffHeapStore.BLOCK_SIZE,Cache.Serializer.standard()).build();
+    byte[] large=new byte[3*OffHeapStore.BLOCK_SIZE];
+    cache.put("CachedOne","One",-1);
+    cache.put("CachedTwo","Two",-1);
+    cache.get("CachedOne");
+    
+    //Needs all blocks but one: the least recently used value is dropped.
+    cache.put("CachedLarge",large,-1);
+    cache.put("CachedThree","Three",-1);
+    assertEquals(Cache.NOT_PRESENT,cache.get("CachedTwo"));
+    assertEquals("Three",cache.get("CachedThree"));
+    
+    //Too large for the second tier.
+    cache.put("CachedHuge",new byte[5*OffHeapStore.BLOCK_SIZE],-1);
+    cache.put("CachedFour","Four",-1);
+    assertEquals(Cache.NOT_PRESENT,cache.get("CachedHuge"));
+    
+    //Not serializable.
+    cache.put("CachedObject",new Object(),-1);
+    cache.put("CachedFive","Five",-1);
+    assertEquals(Cache.NOT_PRESENT,cache.get("CachedObject"));
+    assertEquals("Four",cache.get("CachedFour"));
+  }
+  
+  @Test
+  public void testOffHeapExpiration()
+  {
+    InstantClock clock=new InstantClock();
+    Cache<String> cache=Cache.builder().strongValues().maximumSize(1).usingClock(clock).offHeap(1<<16,Cache.Serializer.standard()).build();
+    cache.put("CachedOne","One",100);
+    cache.put("CachedTwo","Two",-1);
+    clock.sleep(60);
+    assertEquals("One",cache.get("CachedOne"));
+    
+    //The promoted value keeps its original expiration.
+    clock.sleep(41);
+    assertEquals(Cache.NOT_PRESENT,cache.get("CachedOne"));
+  }
+  
+  @Test
+  public void testMemoryMapped() throws IOException,InterruptedException
+  {
+    Path file=Files.createTempFile("cache",".bin");
+    try
+    {
+      Cache<String> cache=Cache.builder().weakValues().memoryMapped(file,1<<20,Cache.Serializer.standard()).build();
+      cache.put("CachedOne",new StringBuilder("One"),-1);
+      waitFor(()->{
+        System.gc();
+        cache.cleanUp();
+        return cache.size()==0;
+      });
+      assertEquals("One",cache.get("CachedOne").toString());
+      assertEquals(1<<20,Files.size(file));
+    }
+    finally
+    {
+      Files.deleteIfExists(file);
+    }
+  }
 }
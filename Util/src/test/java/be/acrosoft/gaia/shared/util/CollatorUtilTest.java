@@ -16,8 +16,21 @@
 package be.acrosoft.gaia.shared.util;
 
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.text.CollationElementIterator;
+import java.util.Locale;
+import java.util.stream.Stream;
 
 import org.junit.Test;
 
@@ -75,5 +88,128 @@ public class CollatorUtilTest
     String user="\uE00A"; //User character
     assertEquals("a"+user+"c",CollatorUtil.cleanup("A"+user+"ç"));
   }
+
+  @Test
+  public void testLatin1()
+  {
+    CollationTable table=CollationTable.compute(Locale.ENGLISH);
+    assertNotNull(table.latin1);
+    assertEquals("a",table.latin1['\u00C0']);
+    assertEquals("ss",table.latin1['\u00DF']);
+    assertEquals("",table.latin1['\n']);
+    
+    //The direct lookup must give the same result as the collator, which is used as soon as a character is not Latin-1.
+    StringBuilder s=new StringBuilder();
+    for(int i=0;i<1000;i++)
+      s.append((char)((i*7919)%256));
+    String direct=CollatorUtil.cleanup(s.toString());
+    assertEquals(direct+"tm",CollatorUtil.cleanup(s+"\u2122"));
+  }
+  
+  @Test
+  public void testLocale() throws Exception
+  {
+    assertEquals("abc",CollatorUtil.cleanup("àBç",Locale.FRENCH));
+    assertEquals("strasse",CollatorUtil.cleanup("Straße",Locale.GERMAN));
+    assertNull(CollatorUtil.cleanup(null,Locale.GERMAN));
+    assertEquals("xabc",CollatorUtil.cleanup("àBç",new Locale("nl"),new StringBuilder("x")).toString());
+    
+    //Czech has a "ch" contraction, so that Latin-1 strings cannot be cleaned up character per character.
+    Locale czech=new Locale("cs");
+    assertNull(CollationTable.compute(czech).latin1);
+    assertEquals("chata",CollatorUtil.cleanup("cháta",czech));
+    assertEquals("CHata",CollatorUtil.cleanup("CHÁTA",czech));
+    
+    Locale[] locales={Locale.FRENCH,new Locale("nl"),Locale.GERMAN,Locale.ENGLISH,czech};
+    Thread[] threads=new Thread[locales.length*2];
+    String[] results=new String[threads.length];
+    for(int i=0;i<threads.length;i++)
+    {
+      int index=i;
+      threads[i]=new Thread(()->results[index]=CollatorUtil.cleanup("Àb\u2122",locales[index%locales.length]));
+      threads[i].start();
+    }
+    for(int i=0;i<threads.length;i++)
+    {
+      threads[i].join();
+      assertEquals("abtm",results[i]);
+    }
+  }
   
+  @Test
+  public void testBuilder()
+  {
+    StringBuilder out=new StringBuilder("x");
+    assertSame(out,CollatorUtil.cleanup("àBç",out));
+    assertSame(out,CollatorUtil.cleanup(null,out));
+    assertSame(out,CollatorUtil.cleanup(" \u2122",out));
+    assertEquals("xabc tm",out.toString());
+  }
+  
+  @Test
+  public void testBulk()
+  {
+    String[] input=new String[10000];
+    for(int i=0;i<input.length;i++)
+      input[i]=i%100==0?null:"Àb\u2122 "+i;
+    String[] output=CollatorUtil.cleanupAll(input);
+    assertEquals(input.length,output.length);
+    for(int i=0;i<input.length;i++)
+      assertEquals(CollatorUtil.cleanup(input[i]),output[i]);
+  }
+  
+  @Test
+  public void testCachedTable() throws Exception
+  {
+    Path dir=Files.createTempDirectory("collator");
+    String previous=System.getProperty(CollationTable.CACHE_PROPERTY);
+    System.setProperty(CollationTable.CACHE_PROPERTY,dir.toString());
+    try
+    {
+      Path file=CollationTable.getCacheFile(Locale.FRENCH);
+      assertFalse(Files.exists(file));
+      CollationTable computed=CollationTable.load(Locale.FRENCH);
+      assertTrue(Files.exists(file));
+      CollationTable loaded=CollationTable.load(Locale.FRENCH);
+      assertArrayEquals(computed.primaryToChar,loaded.primaryToChar);
+      assertArrayEquals(computed.whiteSpace,loaded.whiteSpace);
+      assertArrayEquals(computed.tab,loaded.tab);
+      assertArrayEquals(computed.latin1,loaded.latin1);
+      assertEquals('a',loaded.primaryToChar[CollationElementIterator.primaryOrder(
+        CollationTable.newCollator(Locale.FRENCH).getCollationElementIterator("A").next())]);
+      
+      //A file for another locale or runtime is ignored.
+      Files.copy(file,CollationTable.getCacheFile(Locale.GERMAN));
+      assertArrayEquals(CollationTable.compute(Locale.GERMAN).primaryToChar,CollationTable.load(Locale.GERMAN).primaryToChar);
+      
+      //A directory writable by other users is not used.
+      if(Files.getFileAttributeView(dir,PosixFileAttributeView.class)!=null)
+      {
+        Files.delete(file);
+        Files.setPosixFilePermissions(dir,PosixFilePermissions.fromString("rwxrwxrwx"));
+        CollationTable.load(Locale.FRENCH);
+        assertFalse(Files.exists(file));
+        Files.setPosixFilePermissions(dir,PosixFilePermissions.fromString("rwx------"));
+      }
+      
+      //The cache is disabled unless the property is set.
+      System.setProperty(CollationTable.CACHE_PROPERTY,"");
+      assertNull(CollationTable.getCacheFile(Locale.FRENCH));
+      System.clearProperty(CollationTable.CACHE_PROPERTY);
+      assertNull(CollationTable.getCacheFile(Locale.FRENCH));
+    }
+    finally
+    {
+      if(previous==null)
+        System.clearProperty(CollationTable.CACHE_PROPERTY);
+      else
+        System.setProperty(CollationTable.CACHE_PROPERTY,previous);
+      try(Stream<Path> files=Files.list(dir))
+      {
+        for(Path f:(Iterable<Path>)files::iterator)
+          Files.delete(f);
+      }
+      Files.delete(dir);
+    }
+  }
 }
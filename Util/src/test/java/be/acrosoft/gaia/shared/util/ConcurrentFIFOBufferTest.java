@@ -0,0 +1,163 @@
+/**
+ * Copyright Acropolis Software SPRL (https://www.acrosoft.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.acrosoft.gaia.shared.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+@SuppressWarnings({"javadoc","nls"})
+public class ConcurrentFIFOBufferTest
+{
+  @Test
+  public void testTyped()
+  {
+    for(boolean direct:new boolean[] {false,true})
+    {
+      ConcurrentFIFOBuffer buffer=new ConcurrentFIFOBuffer(16,direct);
+      //Shift the ring so that every value wraps at some point.
+      for(int shift=0;shift<16;shift++)
+      {
+        buffer.write(new byte[shift]);
+        buffer.remove(shift);
+        buffer.writeShort((short)0x0102);
+        buffer.writeChar('̄');
+        buffer.writeInt(0x05060708);
+        buffer.writeLong(0x090A0B0C0D0E0F10l);
+        assertEquals(16,buffer.getSize());
+        assertEquals(0,buffer.getFreeSpace());
+        assertEquals(0x0102,buffer.peekShort(0));
+        assertEquals('̄',buffer.peekChar(2));
+        assertEquals(0x05060708,buffer.peekInt(4));
+        assertEquals(0x090A0B0C0D0E0F10l,buffer.peekLong(8));
+        assertEquals(0x0708090A,buffer.peekInt(6));
+        byte[] b=new byte[16];
+        buffer.read(b);
+        for(int i=0;i<16;i++)
+          assertEquals(i+1,b[i]);
+        
+        buffer.writeFloat(1.5f);
+        buffer.writeDouble(-2.25);
+        buffer.writeByte((byte)7);
+        assertEquals(1.5f,buffer.peekFloat(0),0);
+        assertEquals(-2.25,buffer.peekDouble(4),0);
+        assertEquals(7,buffer.peekByte(12));
+        buffer.clear();
+        assertEquals(0,buffer.getSize());
+      }
+    }
+  }
+  
+  @Test
+  public void testByteBuffer()
+  {
+    ConcurrentFIFOBuffer buffer=new ConcurrentFIFOBuffer(8);
+    buffer.write(new byte[6]);
+    buffer.remove(6);
+    ByteBuffer src=ByteBuffer.wrap(new byte[] {0,1,2,3,4,5,6,7});
+    src.position(1);
+    buffer.write(src);
+    assertEquals(8,src.position());
+    assertEquals(8,src.limit());
+    byte[] b=new byte[7];
+    buffer.read(b);
+    assertArrayEquals(new byte[] {1,2,3,4,5,6,7},b);
+  }
+  
+  @Test
+  public void testChannels() throws Exception
+  {
+    ConcurrentFIFOBuffer buffer=new ConcurrentFIFOBuffer(16);
+    VectoredChannel ch=new VectoredChannel();
+    assertEquals(16,buffer.write(ch));
+    assertEquals(0,buffer.write(ch));
+    assertEquals(16,buffer.read(ch));
+    assertEquals(0,buffer.read(ch));
+    assertEquals(2,ch.simpleCalls);
+    
+    buffer.write(new byte[4]);
+    buffer.remove(4);
+    assertEquals(16,buffer.write(ch));
+    assertEquals(1,ch.vectoredCalls);
+    assertEquals(16,buffer.read(ch));
+    assertEquals(2,ch.vectoredCalls);
+  }
+  
+  @Test(expected=BufferOverflowException.class)
+  public void testOverflow()
+  {
+    ConcurrentFIFOBuffer buffer=new ConcurrentFIFOBuffer(10);
+    buffer.write(new byte[8]);
+    buffer.writeInt(0);
+  }
+  
+  @Test(expected=BufferUnderflowException.class)
+  public void testUnderflow()
+  {
+    ConcurrentFIFOBuffer buffer=new ConcurrentFIFOBuffer(10);
+    buffer.write(new byte[3]);
+    buffer.peekInt(0);
+  }
+  
+  @Test
+  public void testProducerConsumer() throws Exception
+  {
+    ConcurrentFIFOBuffer buffer=new ConcurrentFIFOBuffer(1000);
+    int count=1000000;
+    AtomicReference<Throwable> error=new AtomicReference<>();
+    Thread producer=new Thread(()->{
+      for(int i=0;i<count;i++)
+      {
+        while(buffer.getFreeSpace()<12)
+        {
+          if(error.get()!=null) return;
+          Thread.yield();
+        }
+        buffer.writeInt(i);
+        buffer.writeLong(-i);
+      }
+    });
+    Thread consumer=new Thread(()->{
+      try
+      {
+        for(int i=0;i<count;i++)
+        {
+          while(buffer.getSize()<12)
+            Thread.yield();
+          assertEquals(i,buffer.peekInt(0));
+          assertEquals(-i,buffer.peekLong(4));
+          buffer.remove(12);
+        }
+      }
+      catch(Throwable ex)
+      {
+        error.set(ex);
+      }
+    });
+    producer.start();
+    consumer.start();
+    producer.join(60000);
+    consumer.join(60000);
+    if(error.get()!=null) throw new AssertionError(error.get());
+    assertEquals(0,buffer.getSize());
+  }
+}
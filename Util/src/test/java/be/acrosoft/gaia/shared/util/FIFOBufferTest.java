@@ -18,10 +18,14 @@ package be.acrosoft.gaia.shared.util;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
 
 import org.junit.Test;
 
@@ -128,6 +132,121 @@ class TestChannel implements ByteChannel
   }
 }
 
+class VectoredChannel implements ByteChannel,ScatteringByteChannel,GatheringByteChannel
+{
+  public int vectoredCalls=0;
+  public int simpleCalls=0;
+  private byte _nextRead=0;
+  private byte _nextWrite=0;
+  
+  @Override
+  public int read(ByteBuffer dst) throws IOException
+  {
+    simpleCalls++;
+    int count=dst.remaining();
+    while(dst.hasRemaining())
+      dst.put(_nextRead++);
+    return count;
+  }
+  
+  @Override
+  public long read(ByteBuffer[] dsts,int offset,int length) throws IOException
+  {
+    vectoredCalls++;
+    long count=0;
+    for(int i=offset;i<offset+length;i++)
+    {
+      while(dsts[i].hasRemaining())
+      {
+        dsts[i].put(_nextRead++);
+        count++;
+      }
+    }
+    return count;
+  }
+  
+  @Override
+  public long read(ByteBuffer[] dsts) throws IOException
+  {
+    return read(dsts,0,dsts.length);
+  }
+  
+  @Override
+  public int write(ByteBuffer src) throws IOException
+  {
+    simpleCalls++;
+    int count=src.remaining();
+    while(src.hasRemaining())
+      assertEquals(_nextWrite++,src.get());
+    return count;
+  }
+  
+  @Override
+  public long write(ByteBuffer[] srcs,int offset,int length) throws IOException
+  {
+    vectoredCalls++;
+    long count=0;
+    for(int i=offset;i<offset+length;i++)
+    {
+      while(srcs[i].hasRemaining())
+      {
+        assertEquals(_nextWrite++,srcs[i].get());
+        count++;
+      }
+    }
+    return count;
+  }
+  
+  @Override
+  public long write(ByteBuffer[] srcs) throws IOException
+  {
+    return write(srcs,0,srcs.length);
+  }
+  
+  @Override
+  public boolean isOpen()
+  {
+    return true;
+  }
+  
+  @Override
+  public void close() throws IOException
+  {
+  }
+}
+
+class EofChannel implements ReadableByteChannel
+{
+  private int _available;
+  
+  public EofChannel(int available)
+  {
+    _available=available;
+  }
+  
+  @Override
+  public int read(ByteBuffer dst) throws IOException
+  {
+    if(_available==0) return -1;
+    int count=Math.min(_available,dst.remaining());
+    for(int i=0;i<count;i++)
+      dst.put((byte)i);
+    _available-=count;
+    return count;
+  }
+  
+  @Override
+  public boolean isOpen()
+  {
+    return true;
+  }
+  
+  @Override
+  public void close() throws IOException
+  {
+  }
+}
+
 @SuppressWarnings({"javadoc","nls"})
 public class FIFOBufferTest
 {
@@ -417,4 +536,233 @@ public class FIFOBufferTest
     assertEquals(0,(int)buffer.getArray().b.a);
     
   }
+  
+  @Test
+  public void testDirectPool() throws Exception
+  {
+    ByteBufferPool pool=new ByteBufferPool(true,1024*1024);
+    FIFOBuffer buffer=new FIFOBuffer(8,8,pool);
+    
+    for(int i=0;i<1000;i++)
+    {
+      buffer.write(new byte[] {1,2});
+      buffer.write(ByteBuffer.wrap(new byte[] {3,4,5}));
+      byte[] b=new byte[5];
+      buffer.read(b);
+      for(int z=0;z<b.length;z++)
+        assertEquals(z,b[z]-1);
+    }
+    
+    TestChannel ch=new TestChannel();
+    for(int i=0;i<1000;i++)
+    {
+      buffer.write(ch);
+      buffer.read(ch);
+    }
+    
+    buffer.clear();
+    buffer.write(new byte[] {0,0,0,0,0,0});
+    buffer.remove(6);
+    buffer.write(new byte[] {1,2,3,4,5,6,7,8});
+    assertEquals(0x0102030405060708l,buffer.peekLong(0));
+    buffer.release();
+    assertEquals(8,pool.getRetained());
+  }
+  
+  @Test
+  public void testDirectPoolResize() throws Exception
+  {
+    ByteBufferPool pool=new ByteBufferPool(true,4*1024*1024);
+    FIFOBuffer buffer=new FIFOBuffer(1024*1024,1000,pool);
+    byte[] data=new byte[1024*1024];
+    for(int i=0;i<data.length;i++)
+      data[i]=(byte)i;
+    buffer.write(data,0,1024*512);
+    buffer.remove(1024*256);
+    buffer.write(data,1024*512,1024*512);
+    assertEquals(1024*768,buffer.getSize());
+    
+    byte[] read=new byte[1024*768];
+    buffer.read(read);
+    for(int i=0;i<read.length;i++)
+      assertEquals((byte)(i+1024*256),read[i]);
+    
+    //Growing and shrinking again reuses the buffers released to the pool.
+    long retained=pool.getRetained();
+    assertTrue(retained>0);
+    buffer.write(data,0,1024*512);
+    buffer.read(new DevNull(1024*512));
+    assertEquals(retained,pool.getRetained());
+    buffer.release();
+  }
+  
+  @Test(expected=UnsupportedOperationException.class)
+  public void testDirectGetArray()
+  {
+    new FIFOBuffer(8,8,ByteBufferPool.getDirectPool()).getArray();
+  }
+  
+  @Test
+  public void testVectoredIO() throws Exception
+  {
+    for(ByteBufferPool pool:new ByteBufferPool[] {null,new ByteBufferPool(true,1024)})
+    {
+      FIFOBuffer buffer=new FIFOBuffer(16,16,pool);
+      VectoredChannel ch=new VectoredChannel();
+      
+      //Contiguous regions.
+      assertEquals(16,buffer.write(ch));
+      assertEquals(0,buffer.write(ch));
+      assertEquals(16,buffer.read(ch));
+      assertEquals(2,ch.simpleCalls);
+      
+      //Wrapped free region, filled in one call.
+      buffer=new FIFOBuffer(16,16,pool);
+      ch=new VectoredChannel();
+      buffer.write(new byte[8]);
+      buffer.remove(4);
+      assertEquals(12,buffer.write(ch));
+      assertEquals(1,ch.vectoredCalls);
+      assertEquals(16,buffer.getSize());
+      
+      //Wrapped content, drained in one call.
+      buffer.remove(4);
+      assertEquals(12,buffer.read(ch));
+      assertEquals(2,ch.vectoredCalls);
+      assertEquals(0,ch.simpleCalls);
+      assertEquals(0,buffer.getSize());
+    }
+  }
+  
+  @Test
+  public void testChannelEndOfStream() throws Exception
+  {
+    //Contiguous free region.
+    FIFOBuffer buffer=new FIFOBuffer(16,16);
+    assertEquals(-1,buffer.write(new EofChannel(0)));
+    assertEquals(0,buffer.getSize());
+    EofChannel ch=new EofChannel(3);
+    assertEquals(3,buffer.write(ch));
+    assertEquals(-1,buffer.write(ch));
+    assertEquals(3,buffer.getSize());
+    
+    //Wrapped free region, the channel reaching end-of-stream before or after the end of the internal buffer.
+    for(int available:new int[] {0,5,8})
+    {
+      buffer=new FIFOBuffer(16,16);
+      buffer.write(new byte[8]);
+      buffer.remove(4);
+      ch=new EofChannel(available);
+      assertEquals(available==0?-1:available,buffer.write(ch));
+      assertEquals(4+available,buffer.getSize());
+      assertEquals(-1,buffer.write(ch));
+      assertEquals(4+available,buffer.getSize());
+      buffer.remove(4);
+      for(int i=0;i<available;i++)
+        assertEquals((byte)i,buffer.peekByte(i));
+    }
+  }
+  
+  @Test
+  public void testBulkTyped()
+  {
+    for(ByteBufferPool pool:new ByteBufferPool[] {null,new ByteBufferPool(true,1024)})
+    {
+      FIFOBuffer buffer=new FIFOBuffer(64,8,pool);
+      int[] ints=new int[] {1,-2,0x01020304,Integer.MIN_VALUE,5};
+      long[] longs=new long[] {1,-2,0x0102030405060708l,Long.MAX_VALUE};
+      //Shift the ring so that values straddle the end of the internal buffer.
+      for(int shift=0;shift<16;shift++)
+      {
+        buffer.write(new byte[shift+1]);
+        buffer.remove(shift);
+        buffer.writeInts(ints);
+        buffer.writeLongs(longs);
+        assertEquals(0x01020304,buffer.peekInt(9));
+        buffer.remove(1);
+        int[] i2=new int[ints.length];
+        long[] l2=new long[longs.length];
+        buffer.readInts(i2);
+        buffer.readLongs(l2);
+        org.junit.Assert.assertArrayEquals(ints,i2);
+        org.junit.Assert.assertArrayEquals(longs,l2);
+        assertEquals(0,buffer.getSize());
+      }
+    }
+  }
+  
+  @Test(expected=java.nio.BufferUnderflowException.class)
+  public void testBulkUnderflow()
+  {
+    FIFOBuffer buffer=new FIFOBuffer(64);
+    buffer.writeInts(new int[] {1,2});
+    buffer.readLongs(new long[2]);
+  }
+  
+  @Test
+  public void testVarInt()
+  {
+    FIFOBuffer buffer=new FIFOBuffer(64,8);
+    buffer.writeVarInt(0);
+    buffer.writeVarInt(127);
+    buffer.writeVarInt(128);
+    buffer.writeVarInt(-1);
+    buffer.writeVarLong(Long.MIN_VALUE);
+    assertEquals(1+1+2+5+10,buffer.getSize());
+    assertEquals(0,buffer.readVarInt());
+    assertEquals(127,buffer.readVarInt());
+    assertEquals(128,buffer.readVarInt());
+    assertEquals(-1,buffer.readVarInt());
+    assertEquals(Long.MIN_VALUE,buffer.readVarLong());
+    
+    //Incomplete values leave the buffer unchanged.
+    buffer.writeByte((byte)0x80);
+    try
+    {
+      buffer.readVarLong();
+      fail();
+    }
+    catch(java.nio.BufferUnderflowException ex)
+    {
+      assertEquals(1,buffer.getSize());
+    }
+    buffer.writeByte((byte)0x01);
+    assertEquals(128,buffer.readVarLong());
+    
+    buffer.writeVarLong(1L<<32);
+    try
+    {
+      buffer.readVarInt();
+      fail();
+    }
+    catch(IllegalStateException ex)
+    {
+      assertEquals(5,buffer.getSize());
+    }
+  }
+  
+  @Test
+  public void testPeekViews()
+  {
+    FIFOBuffer buffer=new FIFOBuffer(16,16);
+    buffer.write(new byte[12]);
+    buffer.remove(10);
+    buffer.write(new byte[] {1,2,3,4,5,6,7,8});
+    buffer.remove(2);
+    
+    ByteBuffer[] views=buffer.peek(3);
+    assertEquals(1,views.length);
+    assertTrue(views[0].isReadOnly());
+    assertEquals(0,views[0].position());
+    assertEquals(3,views[0].remaining());
+    assertEquals(1,views[0].get(0));
+    
+    views=buffer.peek(8);
+    assertEquals(2,views.length);
+    assertEquals(4,views[0].remaining());
+    assertEquals(4,views[1].remaining());
+    assertEquals(0x01020304,views[0].getInt());
+    assertEquals(0x05060708,views[1].getInt());
+    assertEquals(8,buffer.getSize());
+  }
 }
@@ -15,6 +15,7 @@
  */
 package be.acrosoft.gaia.shared.util;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -47,4 +48,14 @@ public class HostCheckerTest
     assertTrue(HostChecker.isWithinList(InetAddress.getByName("127.0.0.1"),Arrays.asList("0.0.0.0/1")));
     assertFalse(HostChecker.isWithinList(InetAddress.getByName("127.0.0.1"),Arrays.asList("128.0.0.0/1")));
   }
+  
+  @Test
+  public void testSubNet() throws Exception
+  {
+    assertEquals(InetAddress.getByName("10.1.0.0"),HostChecker.getSubNet(InetAddress.getByName("10.1.2.3"),(short)16));
+    assertEquals(InetAddress.getByName("10.1.0.0"),HostChecker.getSubNet(InetAddress.getByName("10.1.127.3"),(short)17));
+    assertEquals(InetAddress.getByName("2001:db8::"),HostChecker.getSubNet(InetAddress.getByName("2001:db8::1"),(short)64));
+    assertEquals(InetAddress.getByName("10.1.128.0"),HostChecker.getSubNet(InetAddress.getByName("10.1.200.3"),(short)17));
+    assertEquals(InetAddress.getByName("10.1.2.3"),HostChecker.getSubNet(InetAddress.getByName("10.1.2.3"),(short)32));
+  }
 }
@@ -0,0 +1,119 @@
+/**
+ * Copyright Acropolis Software SPRL (https://www.acrosoft.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package be.acrosoft.gaia.shared.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+@SuppressWarnings({"javadoc","nls"})
+public class KeyedRateLimiterTest
+{
+  @Test
+  public void testPerKey() throws Exception
+  {
+    InstantClock clock=new InstantClock();
+    KeyedRateLimiter<String> limiter=RateLimiter.over(Duration.ofMillis(1000)).maxOccurrences(3).tokenBucket()
+      .usingClock(clock).<String>perKey().build();
+    for(int i=0;i<3;i++)
+    {
+      assertTrue(limiter.accept("alice"));
+      assertTrue(limiter.accept("bob"));
+    }
+    assertFalse(limiter.accept("alice"));
+    assertFalse(limiter.tryAcquire("bob",1));
+    assertTrue(limiter.tryAcquire("carol",3));
+    assertEquals(3,limiter.size());
+    clock.sleep(334);
+    assertTrue(limiter.accept("alice"));
+    assertFalse(limiter.accept("alice"));
+  }
+  
+  @Test
+  public void testIdleEviction() throws Exception
+  {
+    InstantClock clock=new InstantClock();
+    KeyedRateLimiter<Integer> limiter=RateLimiter.over(Duration.ofMillis(1000)).maxOccurrences(1).usingClock(clock)
+      .<Integer>perKey().stripes(1).build();
+    for(int i=0;i<100;i++)
+      assertTrue(limiter.accept(i));
+    assertFalse(limiter.accept(0));
+    assertEquals(100,limiter.size());
+    
+    clock.sleep(900);
+    assertFalse(limiter.accept(1));
+    clock.sleep(1200);
+    //Key 1 has been used recently, all the other keys are idle.
+    limiter.cleanUp();
+    assertEquals(1,limiter.size());
+    assertTrue(limiter.accept(0));
+  }
+  
+  @Test
+  public void testMaximumKeys() throws Exception
+  {
+    KeyedRateLimiter<Integer> limiter=RateLimiter.over(Duration.ofHours(1)).<Integer>perKey().maximumKeys(64)
+      .stripes(4).build();
+    for(int i=0;i<10000;i++)
+      limiter.accept(i);
+    assertTrue(limiter.size()<=64);
+    assertTrue(limiter.size()>=16);
+  }
+  
+  @Test
+  public void testSubNet() throws Exception
+  {
+    KeyedRateLimiter<InetAddress> limiter=RateLimiter.over(Duration.ofHours(1)).maxOccurrences(2)
+      .<InetAddress>perKey().groupingBy(a->HostChecker.getSubNet(a,(short)24)).build();
+    assertTrue(limiter.accept(InetAddress.getByName("192.168.1.10")));
+    assertTrue(limiter.accept(InetAddress.getByName("192.168.1.20")));
+    assertFalse(limiter.accept(InetAddress.getByName("192.168.1.30")));
+    assertTrue(limiter.accept(InetAddress.getByName("192.168.2.10")));
+  }
+  
+  @Test
+  public void testConcurrent() throws Exception
+  {
+    InstantClock clock=new InstantClock();
+    KeyedRateLimiter<Integer> limiter=RateLimiter.over(Duration.ofSeconds(1)).maxOccurrences(100).tokenBucket()
+      .usingClock(clock).<Integer>perKey().build();
+    AtomicInteger accepted=new AtomicInteger();
+    Thread[] threads=new Thread[4];
+    for(int i=0;i<threads.length;i++)
+    {
+      threads[i]=new Thread(()->{
+        for(int j=0;j<1000;j++)
+          if(limiter.accept(j%10)) accepted.incrementAndGet();
+      });
+      threads[i].start();
+    }
+    for(Thread thread:threads)
+      thread.join();
+    assertEquals(10*100,accepted.get());
+  }
+  
+  @Test(expected=IllegalArgumentException.class)
+  public void testInvalidStripes() throws Exception
+  {
+    RateLimiter.over(Duration.ofSeconds(1)).perKey().stripes(0);
+  }
+}
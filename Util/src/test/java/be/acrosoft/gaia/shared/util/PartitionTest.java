@@ -133,5 +133,163 @@ public class PartitionTest
   {
     Partition.array(new Integer[] {1,2}).using(i->i).merge().getElements().get(0).inject(new Integer[] {1}).into(new Integer[3]);
   }
-  
+
+  enum Parity
+  {
+    ODD,
+    EVEN,
+    UNUSED
+  }
+
+  @Test
+  public void testSplit()
+  {
+    Integer[] data=new Integer[] {1,2,3,5,7,8,10,12,4,5,6};
+    Partition<Integer,Boolean> part=Partition.array(data).split(i->i.intValue()%2==0).merge();
+
+    List<Partition<Integer,Boolean>.Element> elements=part.getElements();
+    assertEquals(2,elements.size());
+    assertEquals(Boolean.FALSE,elements.get(0).getCategory());
+    assertArrayEquals(new Integer[] {1,3,5,7,5},elements.get(0).getItems());
+    assertEquals(Boolean.TRUE,elements.get(1).getCategory());
+    assertArrayEquals(new Integer[] {2,8,10,12,4,6},elements.get(1).getItems());
+    assertEquals(6,elements.get(1).size());
+    assertEquals(1,elements.get(1).getIndex(0));
+    assertEquals(10,elements.get(1).getIndex(5));
+
+    Integer[] squares=new Integer[data.length];
+    for(Partition<Integer,Boolean>.Element el:part)
+    {
+      Integer[] items=el.getItems();
+      Integer[] v=new Integer[items.length];
+      for(int i=0;i<items.length;i++)
+        v[i]=items[i]*items[i];
+      el.inject(v).into(squares);
+    }
+    for(int i=0;i<data.length;i++)
+      assertEquals(data[i]*data[i],squares[i].intValue());
+
+    part=Partition.array(data).split(i->i.intValue()<6).preserveOrder();
+    elements=part.getElements();
+    assertEquals(4,elements.size());
+    assertEquals(Boolean.TRUE,elements.get(0).getCategory());
+    assertEquals(0,elements.get(0).getFirstIndex());
+    assertArrayEquals(new Integer[] {1,2,3,5},elements.get(0).getItems());
+    assertEquals(Boolean.FALSE,elements.get(1).getCategory());
+    assertEquals(4,elements.get(1).getFirstIndex());
+    assertArrayEquals(new Integer[] {7,8,10,12},elements.get(1).getItems());
+    assertEquals(Boolean.TRUE,elements.get(2).getCategory());
+    assertArrayEquals(new Integer[] {4,5},elements.get(2).getItems());
+    assertEquals(Boolean.FALSE,elements.get(3).getCategory());
+    assertEquals(10,elements.get(3).getIndex(0));
+  }
+
+  @Test
+  public void testEnumCategories()
+  {
+    Integer[] data=new Integer[] {1,2,3,5,7,8,10,12,4,5,6,0};
+    Partition<Integer,Object> part=Partition.array(data).<Object>using(i->{
+      if(i.intValue()==0) return "Zero";
+      if(i.intValue()%2==0) return Parity.EVEN;
+      return Parity.ODD;
+    }).merge();
+
+    List<Partition<Integer,Object>.Element> elements=part.getElements();
+    assertEquals(3,elements.size());
+    assertEquals(Parity.ODD,elements.get(0).getCategory());
+    assertArrayEquals(new Integer[] {1,3,5,7,5},elements.get(0).getItems());
+    assertEquals(Parity.EVEN,elements.get(1).getCategory());
+    assertArrayEquals(new Integer[] {2,8,10,12,4,6},elements.get(1).getItems());
+    assertEquals("Zero",elements.get(2).getCategory());
+    assertArrayEquals(new Integer[] {0},elements.get(2).getItems());
+    assertEquals(-1,elements.get(2).getFirstIndex());
+    assertEquals(11,elements.get(2).getIndex(0));
+  }
+
+  @Test
+  public void testLarge()
+  {
+    Integer[] data=new Integer[10000];
+    for(int i=0;i<data.length;i++)
+      data[i]=Integer.valueOf((i*7919)%1000);
+    Partition<Integer,Integer> part=Partition.array(data).using(i->Integer.valueOf(i.intValue()%13)).merge();
+    assertEquals(13,part.getElements().size());
+
+    Integer[] copy=new Integer[data.length];
+    int total=0;
+    for(Partition<Integer,Integer>.Element el:part)
+    {
+      Integer[] items=el.getItems();
+      int previous=-1;
+      for(int i=0;i<items.length;i++)
+      {
+        assertEquals(el.getCategory().intValue(),items[i].intValue()%13);
+        assertEquals(data[el.getIndex(i)],items[i]);
+        //Items keep their original order within a merged element.
+        assertEquals(true,el.getIndex(i)>previous);
+        previous=el.getIndex(i);
+      }
+      total+=items.length;
+      el.inject(items).into(copy);
+    }
+    assertEquals(data.length,total);
+    assertArrayEquals(data,copy);
+  }
+
+  @Test(expected=IndexOutOfBoundsException.class)
+  public void testInvalidIndex()
+  {
+    Partition.array(new Integer[] {1,2}).using(i->i).merge().getElements().get(0).getIndex(1);
+  }
+
+  private static <C> void assertSamePartition(Partition<Integer,C> expected,Partition<Integer,C> actual)
+  {
+    assertEquals(expected.getElements().size(),actual.getElements().size());
+    for(int i=0;i<expected.getElements().size();i++)
+    {
+      Partition<Integer,C>.Element e=expected.getElements().get(i);
+      Partition<Integer,C>.Element a=actual.getElements().get(i);
+      assertEquals(e.getCategory(),a.getCategory());
+      assertEquals(e.isMerged(),a.isMerged());
+      assertEquals(e.getFirstIndex(),a.getFirstIndex());
+      assertArrayEquals(e.getItems(),a.getItems());
+      for(int j=0;j<e.size();j++)
+        assertEquals(e.getIndex(j),a.getIndex(j));
+    }
+  }
+
+  @Test
+  public void testParallel()
+  {
+    Integer[] data=new Integer[300001];
+    for(int i=0;i<data.length;i++)
+      data[i]=Integer.valueOf((int)((i*2654435761L)%100003));
+
+    Function<Integer,String> strings=i->i.intValue()%100==0?null:"C"+(i.intValue()%37);
+    assertSamePartition(Partition.array(data).using(strings).merge(),
+      Partition.array(data).using(strings).parallel().merge());
+
+    Function<Integer,Parity> parities=i->i.intValue()%3==0?Parity.UNUSED:(i.intValue()%2==0?Parity.EVEN:Parity.ODD);
+    assertSamePartition(Partition.array(data).using(parities).merge(),
+      Partition.array(data).using(parities).parallel().merge());
+    assertSamePartition(Partition.array(data).using(parities).preserveOrder(),
+      Partition.array(data).using(parities).parallel().preserveOrder());
+
+    //Runs crossing the chunk boundaries must not be split.
+    Partition<Integer,Boolean> ordered=Partition.array(data).split(i->i.intValue()<(1<<30)).parallel().preserveOrder();
+    assertEquals(1,ordered.getElements().size());
+    assertEquals(0,ordered.getElements().get(0).getFirstIndex());
+    assertEquals(data.length,ordered.getElements().get(0).size());
+
+    Integer[] copy=new Integer[data.length];
+    Partition<Integer,Boolean> split=Partition.array(data).split(i->i.intValue()%2==0).parallel().merge();
+    assertSamePartition(Partition.array(data).split(i->i.intValue()%2==0).merge(),split);
+    for(Partition<Integer,Boolean>.Element el:split)
+      el.inject(el.getItems()).into(copy);
+    assertArrayEquals(data,copy);
+
+    //Small arrays are partitioned serially.
+    assertEquals(2,Partition.array(1,2,3).split(i->i.intValue()==2).parallel().merge().getElements().size());
+  }
+
 }
@@ -18,8 +18,17 @@ package be.acrosoft.gaia.shared.util;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
 
 import org.junit.Test;
 
@@ -172,4 +181,79 @@ public class QuotedStringTokenizerTest
     assertEquals(new Pair<Integer,Integer>(2,2),ranges.get(0));
     assertEquals(new Pair<Integer,Integer>(6,1),ranges.get(1));
   }
+  
+  @Test
+  public void testCursor()
+  {
+    QuotedStringTokenizer tokenizer=new QuotedStringTokenizer(new StringBuilder(" ab 'c d'e '' \"f"));
+    assertTrue(tokenizer.next());
+    assertEquals("ab",tokenizer.getToken());
+    assertEquals(1,tokenizer.getStart());
+    assertEquals(3,tokenizer.getEnd());
+    assertTrue(tokenizer.next());
+    assertEquals("c de",tokenizer.getToken());
+    assertEquals(4,tokenizer.getStart());
+    assertEquals(10,tokenizer.getEnd());
+    assertTrue(tokenizer.next());
+    assertEquals("x_f",tokenizer.appendToken(new StringBuilder("x_")).toString());
+    assertEquals(14,tokenizer.getStart());
+    assertEquals(16,tokenizer.getEnd());
+    assertFalse(tokenizer.next());
+    assertNull(tokenizer.getToken());
+    assertEquals(-1,tokenizer.getStart());
+    assertFalse(tokenizer.next());
+  }
+  
+  @Test
+  public void testExtendedChars()
+  {
+    QuotedStringTokenizer tokenizer=new QuotedStringTokenizer("a\u3000\u300Cb\u3000c\u300C,d",",\u3000","\u300C");
+    assertEquals(Arrays.asList("a","b\u3000c","d"),tokenizer.stream().collect(Collectors.toList()));
+  }
+  
+  @Test
+  public void testReader()
+  {
+    //Large enough to cross several reader buffers.
+    StringBuilder input=new StringBuilder();
+    for(int i=0;i<10000;i++)
+      input.append(i%7==0?"'quoted "+i+"'":"word"+i).append(i%3==0?"  ":" ");
+    String[] expected=QuotedStringTokenizer.parse(input.toString());
+    assertEquals(10000,expected.length);
+    
+    QuotedStringTokenizer sequence=new QuotedStringTokenizer(input);
+    QuotedStringTokenizer reader=new QuotedStringTokenizer(new StringReader(input.toString()));
+    for(String token:expected)
+    {
+      assertTrue(sequence.next());
+      assertTrue(reader.next());
+      assertEquals(token,reader.getToken());
+      assertEquals(sequence.getStart(),reader.getStart());
+      assertEquals(sequence.getEnd(),reader.getEnd());
+    }
+    assertFalse(sequence.next());
+    assertFalse(reader.next());
+  }
+  
+  @Test
+  public void testIterator()
+  {
+    Iterator<String> it=new QuotedStringTokenizer(new StringReader("a 'b c'")).iterator();
+    assertTrue(it.hasNext());
+    assertTrue(it.hasNext());
+    assertEquals("a",it.next());
+    assertEquals("b c",it.next());
+    assertFalse(it.hasNext());
+    try
+    {
+      it.next();
+      fail();
+    }
+    catch(NoSuchElementException ex)
+    {
+      //Expected.
+    }
+    
+    assertEquals(Arrays.asList("x"),new QuotedStringTokenizer("x y z").stream().limit(1).collect(Collectors.toList()));
+  }
 }
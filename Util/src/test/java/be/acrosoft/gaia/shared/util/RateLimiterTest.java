@@ -15,10 +15,14 @@
  */
 package be.acrosoft.gaia.shared.util;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -71,4 +75,188 @@ public class RateLimiterTest
     for(int i=0;i<9;i++) assertFalse(tt.accept());
   }
 
+  @Test
+  public void testTokenBucket() throws Exception
+  {
+    InstantClock clock=new InstantClock();
+    RateLimiter tt=RateLimiter.over(Duration.ofMillis(1000)).maxOccurrences(10).tokenBucket().usingClock(clock).build();
+    for(int i=0;i<10;i++) assertTrue(tt.accept());
+    assertFalse(tt.accept());
+    clock.sleep(50);
+    assertFalse(tt.accept());
+    clock.sleep(50);
+    assertTrue(tt.accept());
+    assertFalse(tt.accept());
+    
+    //A steady stream at the allowed rate is always accepted.
+    for(int i=0;i<100;i++)
+    {
+      clock.sleep(100);
+      assertTrue(tt.accept());
+    }
+    
+    clock.sleep(500);
+    assertTrue(tt.tryAcquire(5));
+    assertFalse(tt.tryAcquire(1));
+    clock.sleep(10000);
+    assertFalse(tt.tryAcquire(11));
+    assertTrue(tt.tryAcquire(10));
+  }
+  
+  @Test
+  public void testSlidingWindow() throws Exception
+  {
+    InstantClock clock=new InstantClock();
+    RateLimiter tt=RateLimiter.over(Duration.ofMillis(1000)).maxOccurrences(10).slidingWindow().usingClock(clock).build();
+    int accepted=0;
+    for(int i=0;i<20;i++)
+      if(tt.accept()) accepted++;
+    assertTrue(accepted<=10);
+    assertTrue(accepted>0);
+    
+    //Unlike the default mode, a steady stream keeps being accepted at the allowed rate.
+    clock.sleep(2000);
+    accepted=0;
+    for(int i=0;i<100;i++)
+    {
+      clock.sleep(50);
+      if(tt.accept()) accepted++;
+    }
+    assertTrue(accepted>=45);
+    assertTrue(accepted<=55);
+    
+    clock.sleep(5000);
+    assertFalse(tt.tryAcquire(11));
+    assertTrue(tt.tryAcquire(10));
+    assertFalse(tt.accept());
+  }
+  
+  @Test
+  public void testQuietPeriodPermits() throws Exception
+  {
+    InstantClock clock=new InstantClock();
+    RateLimiter tt=RateLimiter.over(Duration.ofMillis(500)).maxOccurrences(10).usingClock(clock).build();
+    assertTrue(tt.tryAcquire(8));
+    assertFalse(tt.tryAcquire(3));
+    clock.sleep(400);
+    assertFalse(tt.accept());
+    clock.sleep(600);
+    assertTrue(tt.tryAcquire(10));
+  }
+  
+  @Test
+  public void testLongIdle() throws Exception
+  {
+    //Ticks and windows are stored on 32 bits: a delta above 2^31 wraps around and must not look like clock skew.
+    InstantClock clock=new InstantClock();
+    RateLimiter quiet=RateLimiter.over(Duration.ofMillis(1024)).maxOccurrences(10).usingClock(clock).build();
+    RateLimiter window=RateLimiter.over(Duration.ofMillis(1)).maxOccurrences(10).slidingWindow().usingClock(clock).build();
+    assertTrue(quiet.tryAcquire(10));
+    assertTrue(window.tryAcquire(10));
+    assertFalse(quiet.accept());
+    assertFalse(window.accept());
+    clock.sleep((1L<<31)+5);
+    assertTrue(quiet.tryAcquire(10));
+    assertTrue(window.tryAcquire(10));
+    assertFalse(quiet.accept());
+    assertFalse(window.accept());
+    clock.sleep((1L<<31)+5000);
+    assertTrue(quiet.tryAcquire(10));
+    assertTrue(window.tryAcquire(10));
+  }
+  
+  @Test
+  public void testConcurrent() throws Exception
+  {
+    InstantClock clock=new InstantClock();
+    RateLimiter[] limiters=new RateLimiter[] {
+      RateLimiter.over(Duration.ofSeconds(1)).maxOccurrences(1000).usingClock(clock).build(),
+      RateLimiter.over(Duration.ofSeconds(1)).maxOccurrences(1000).tokenBucket().usingClock(clock).build(),
+      RateLimiter.over(Duration.ofSeconds(1)).maxOccurrences(1000).slidingWindow().usingClock(clock).build()};
+    for(RateLimiter tt:limiters)
+    {
+      AtomicInteger accepted=new AtomicInteger();
+      Thread[] threads=new Thread[4];
+      for(int i=0;i<threads.length;i++)
+      {
+        threads[i]=new Thread(()->{
+          for(int j=0;j<1000;j++)
+            if(tt.accept()) accepted.incrementAndGet();
+        });
+        threads[i].start();
+      }
+      for(Thread thread:threads)
+        thread.join();
+      assertEquals(1000,accepted.get());
+    }
+  }
+  
+  @Test(expected=IllegalArgumentException.class)
+  public void testInvalidPermits() throws Exception
+  {
+    RateLimiter.over(Duration.ofMillis(1000)).build().tryAcquire(0);
+  }
+  
+  @Test(expected=IllegalArgumentException.class)
+  public void testInvalidSlidingWindow() throws Exception
+  {
+    RateLimiter.over(Duration.ofMillis(1000)).maxOccurrences(100000).slidingWindow().build();
+  }
+
+  @Test
+  public void testAcquire() throws Exception
+  {
+    RateLimiter[] limiters=new RateLimiter[] {
+      RateLimiter.over(Duration.ofMillis(100)).maxOccurrences(5).build(),
+      RateLimiter.over(Duration.ofMillis(100)).maxOccurrences(5).tokenBucket().build(),
+      RateLimiter.over(Duration.ofMillis(100)).maxOccurrences(5).slidingWindow().build()};
+    for(RateLimiter tt:limiters)
+    {
+      long before=System.nanoTime();
+      for(int i=0;i<15;i++)
+        tt.acquire(1);
+      long elapsed=System.nanoTime()-before;
+      assertTrue(elapsed>=Duration.ofMillis(150).toNanos());
+      assertTrue(elapsed<Duration.ofSeconds(5).toNanos());
+    }
+  }
+  
+  @Test
+  public void testTryAcquireTimeout() throws Exception
+  {
+    RateLimiter tt=RateLimiter.over(Duration.ofMillis(1000)).maxOccurrences(2).tokenBucket().build();
+    assertTrue(tt.tryAcquire(2,Duration.ZERO));
+    long before=System.nanoTime();
+    //The bucket will not have 2 tokens back within 100ms: give up right away.
+    assertFalse(tt.tryAcquire(2,Duration.ofMillis(100)));
+    assertTrue(System.nanoTime()-before<Duration.ofMillis(100).toNanos());
+    assertTrue(tt.tryAcquire(1,Duration.ofMillis(1000)));
+    assertTrue(System.nanoTime()-before>=Duration.ofMillis(400).toNanos());
+  }
+  
+  @Test
+  public void testAcquireAsync() throws Exception
+  {
+    RateLimiter tt=RateLimiter.over(Duration.ofMillis(100)).maxOccurrences(5).tokenBucket().build();
+    AtomicInteger done=new AtomicInteger();
+    CompletableFuture<?>[] futures=new CompletableFuture[15];
+    long before=System.nanoTime();
+    for(int i=0;i<futures.length;i++)
+      futures[i]=tt.acquireAsync(1).thenRun(done::incrementAndGet).toCompletableFuture();
+    assertTrue(done.get()>=5);
+    assertTrue(done.get()<15);
+    CompletableFuture.allOf(futures).get(5,TimeUnit.SECONDS);
+    assertEquals(15,done.get());
+    assertTrue(System.nanoTime()-before>=Duration.ofMillis(150).toNanos());
+    
+    CompletableFuture<Void> cancelled=tt.acquireAsync(5).toCompletableFuture();
+    cancelled.cancel(false);
+    assertTrue(cancelled.isCancelled());
+  }
+  
+  @Test(expected=IllegalArgumentException.class)
+  public void testInvalidAcquire() throws Exception
+  {
+    RateLimiter.over(Duration.ofMillis(1000)).maxOccurrences(2).build().acquire(3);
+  }
 }
@@ -17,7 +17,10 @@ package be.acrosoft.gaia.shared.util;
 
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Properties;
 
 import org.junit.Test;
@@ -195,4 +198,42 @@ public class StringExpanderTest
     prop.setProperty("var2","$(val)");
     assertEquals("$(var2)",StringExpander.expand("$(var1)",prop));
   }
+  
+  @Test
+  public void compileTest()
+  {
+    StringExpander.Template template=StringExpander.compile("$$Left$(var1)Center$(var2)$(var1)Right$");
+    assertEquals(Arrays.asList("var1","var2","var1"),template.getVariables());
+    
+    HashMap<String,String> map=new HashMap<>();
+    map.put("var1","val1");
+    assertEquals("$Leftval1Centerval1Right$",template.render(map::get));
+    
+    StringBuilder out=new StringBuilder("x");
+    assertSame(out,template.render(map::get,out));
+    map.put("var2","val2");
+    template.render(map::get,out);
+    assertEquals("x$Leftval1Centerval1Right$$Leftval1Centerval2val1Right$",out.toString());
+    
+    assertEquals("Left$(Right",StringExpander.compile("Left$(Right").render(v->"x"));
+    assertEquals("$$(",StringExpander.compile("$$$$(").render(v->"x"));
+  }
+  
+  @Test
+  public void systemResolverTest()
+  {
+    System.setProperty("gaia.expander.test","before");
+    try
+    {
+      StringExpander.Template template=StringExpander.compile("$(gaia.expander.test)$()");
+      assertEquals("before",template.render(StringExpander.systemResolver()));
+      System.setProperty("gaia.expander.test","after");
+      assertEquals("after",template.render(StringExpander.systemResolver()));
+      assertEquals("after",StringExpander.expand("$(gaia.expander.test)"));
+    }
+    finally
+    {
+      System.clearProperty("gaia.expander.test");
+    }
+  }
 }